@@ -95,6 +95,19 @@ void setupEngine(boolean fwdlight,boolean revlight,
       boolean bell,boolean reverse,int status,
       int speedstep,int rpmstep,int speed,boolean estop,boolean mute);
 
+/**
+ *      Note a pushed speed or rpm report from the engine.  Values that are
+ *      not part of the report are passed as -1.
+ **/
+void noteTelemetry(int speedstep,int rpmstep,int speed);
+
+/**
+ *      Copy the most recent telemetry samples, oldest first, into the given
+ *      arrays (any of which may be null).  Returns the number copied.
+ **/
+int getTelemetry(long [] times,int [] steps,double [] rpms,double [] speeds);
+long getLastTelemetryTime();
+
 IfacePoint getCurrentPoint();
 IfacePoint getPriorPoint();
 
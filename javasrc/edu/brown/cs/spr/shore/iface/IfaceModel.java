@@ -156,6 +156,18 @@ Set<IfacePoint> findSuccessorPoints(IfacePoint current,IfacePoint entry,
 IfaceSensor findSensorForPoint(IfacePoint pt);
 
 
+/**
+ *      Find the switch whose pivot is the given point
+ **/
+IfaceSwitch findSwitchForPoint(IfacePoint pt);
+
+
+/**
+ *      Find a block given its id
+ **/
+IfaceBlock findBlockById(String id);
+
+
 /**
  *      Call to note setup error
  **/
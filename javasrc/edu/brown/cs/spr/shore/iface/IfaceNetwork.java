@@ -35,6 +35,8 @@
 
 package edu.brown.cs.spr.shore.iface;
 
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 
 /**
  *      This class represents the wifi network connections.  It provides calls to
@@ -75,6 +77,14 @@ void setSensor(IfaceSensor sen,ShoreSensorState set);
 void sendEmergencyStop(IfaceEngine train,boolean stop);
 
 
+/**
+ *      Emergency stop every known engine at once, resending until each
+ *      engine confirms.  The result completes when all have confirmed or
+ *      the stop times out.  This can be called from any thread.
+ **/
+CompletableFuture<StopReport> stopAllEngines();
+
+
 
 /**
  *      Sends a message to turn on or off the appropriate light.
@@ -140,6 +150,21 @@ void setUpdateSensors(ShoreSensorSetup state);
  **/
 void clearSwitchStates();
 
+
+
+/**
+ *      Outcome of stopping all engines
+ **/
+
+interface StopReport {
+   Collection<IfaceEngine> getStoppedEngines();
+   Collection<IfaceEngine> getUnconfirmedEngines();
+   long getStopTime(IfaceEngine eng);           // ms to confirm; -1 if unconfirmed
+   long getWorstStopTime();                     // slowest confirmation in ms
+   boolean isComplete();                        // all engines, even unnamed, confirmed
+}
+
+
 }	// end of interface IfaceNetwork
 
 
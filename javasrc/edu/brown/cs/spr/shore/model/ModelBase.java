@@ -41,9 +41,11 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -64,10 +66,10 @@ import edu.brown.cs.spr.shore.iface.IfaceSensor;
 import edu.brown.cs.spr.shore.iface.IfaceSignal;
 import edu.brown.cs.spr.shore.iface.IfaceSpeedZone;
 import edu.brown.cs.spr.shore.iface.IfaceSwitch;
+import edu.brown.cs.spr.shore.shore.ShoreControlLoop;
 import edu.brown.cs.spr.shore.shore.ShoreException;
 import edu.brown.cs.spr.shore.shore.ShoreLog;
 import edu.brown.cs.spr.shore.train.TrainFactory;
-import javafx.application.Platform;
 
 public class ModelBase implements ModelConstants, IfaceModel
 {
@@ -117,6 +119,19 @@ private List<ModelSpeedZone> speed_zones;
 private List<String> model_errors;
 private SwingEventListenerList<ModelCallback> model_listeners;
 private Element model_xml;
+private ModelGraph model_graph;
+
+private Map<IfacePoint,ModelSensor> point_sensors;
+private Map<IfacePoint,ModelSignal> point_signals;
+private Map<IfacePoint,ModelSwitch> point_switches;
+
+private Collection<IfaceSensor> sensor_view;
+private Collection<IfaceSignal> signal_view;
+private Collection<IfaceSwitch> switch_view;
+private Collection<IfaceBlock> block_view;
+private Collection<IfaceConnection> connection_view;
+private Collection<IfaceDiagram> diagram_view;
+private Collection<IfaceSpeedZone> zone_view;
 
 
 
@@ -141,6 +156,19 @@ public ModelBase(File file)
    speed_zones = new ArrayList<>();
    model_errors = new ArrayList<>();
    model_xml = null;
+   model_graph = null;
+   point_sensors = null;
+   point_signals = null;
+   point_switches = null;
+   
+   // read-only views so callers can iterate without copying
+   sensor_view = Collections.unmodifiableCollection(model_sensors.values());
+   signal_view = Collections.unmodifiableCollection(model_signals.values());
+   switch_view = Collections.unmodifiableCollection(model_switches.values());
+   block_view = Collections.unmodifiableCollection(model_blocks.values());
+   connection_view = Collections.unmodifiableCollection(block_connections);
+   diagram_view = Collections.unmodifiableCollection(model_diagrams.values());
+   zone_view = Collections.unmodifiableCollection(speed_zones);
    
    try {
       loadModel(file);
@@ -168,7 +196,7 @@ public ModelBase(File file)
 
 @Override public Collection<IfaceSensor> getSensors()
 {
-   return new ArrayList<>(model_sensors.values());
+   return sensor_view;
 }
 
 Collection<ModelSensor> getModelSensors()
@@ -178,7 +206,7 @@ Collection<ModelSensor> getModelSensors()
 
 @Override public Collection<IfaceSignal> getSignals()
 {
-   return new ArrayList<>(model_signals.values());
+   return signal_view;
 }
 
 Collection<ModelSignal> getModelSignals()
@@ -189,13 +217,13 @@ Collection<ModelSignal> getModelSignals()
 
 @Override public Collection<IfaceConnection> getConnections() 
 {
-   return new ArrayList<IfaceConnection>(block_connections);
+   return connection_view;
 }
 
 
 @Override public Collection<IfaceSwitch> getSwitches()
 {
-   return new ArrayList<>(model_switches.values());
+   return switch_view;
 }
 
 
@@ -205,27 +233,42 @@ Collection<ModelSwitch> getModelSwitches()
 }
 
 
+ModelGraph getModelGraph()
+{
+   return model_graph;
+}
+
+
 @Override public Collection<IfaceBlock> getBlocks() 
 {
-   return new ArrayList<>(model_blocks.values());
+   return block_view;
+}
+
+
+@Override public ModelBlock findBlockById(String id)
+{
+   if (id == null) return null;
+   
+   return model_blocks.get(id);
 }
 
 
 @Override public Collection<IfaceDiagram> getDiagrams()
 {
-   return new ArrayList<>(model_diagrams.values());  
+   return diagram_view;
 }
 
 
 @Override public Collection<IfaceSpeedZone> getSpeedZones()
 {
-   return new ArrayList<>(speed_zones);
+   return zone_view;
 }
 
 
 @Override public ModelSensor findSensorForPoint(IfacePoint pt)
 {
    if (pt == null) return null;
+   if (point_sensors != null) return point_sensors.get(pt);
    
    for (ModelSensor ms : getModelSensors()) { 
       if (ms.getAtPoint() == pt) {
@@ -240,6 +283,7 @@ Collection<ModelSwitch> getModelSwitches()
 ModelSignal findSignalForPoint(ModelPoint pt)
 {
    if (pt == null) return null;
+   if (point_signals != null) return point_signals.get(pt);
    
    for (ModelSignal ms : getModelSignals()) { 
       if (ms.getAtPoints().contains(pt)) {
@@ -251,9 +295,10 @@ ModelSignal findSignalForPoint(ModelPoint pt)
 }
 
 
-ModelSwitch findSwitchForPoint(IfacePoint pt)
+@Override public ModelSwitch findSwitchForPoint(IfacePoint pt)
 {
    if (pt == null) return null;
+   if (point_switches != null) return point_switches.get(pt);
    
    for (ModelSwitch ms : getModelSwitches()) { 
       if (ms.getPivotPoint() == pt) {
@@ -265,6 +310,33 @@ ModelSwitch findSwitchForPoint(IfacePoint pt)
 }
 
 
+/**
+ *      Index sensors, signals and switches by their points.  The points
+ *      are fixed once the elements are loaded, and the first element found
+ *      for a point wins, as with the scans above.
+ **/
+
+private void indexPoints()
+{
+   point_sensors = new IdentityHashMap<>();
+   for (ModelSensor ms : model_sensors.values()) {
+      if (ms.getAtPoint() != null) point_sensors.putIfAbsent(ms.getAtPoint(),ms);
+    }
+   
+   point_signals = new IdentityHashMap<>();
+   for (ModelSignal ms : model_signals.values()) {
+      for (IfacePoint pt : ms.getAtPoints()) {
+         if (pt != null) point_signals.putIfAbsent(pt,ms);
+       }
+    }
+   
+   point_switches = new IdentityHashMap<>();
+   for (ModelSwitch ms : model_switches.values()) {
+      if (ms.getPivotPoint() != null) point_switches.putIfAbsent(ms.getPivotPoint(),ms);
+    }
+}
+
+
 ModelDiagram findDiagram(String id)
 {
    return model_diagrams.get(id);
@@ -320,34 +392,7 @@ boolean hasErrors()
 
 @Override public boolean goesTo(IfacePoint prev,IfacePoint pt,IfacePoint tgt)
 {
-   Set<IfacePoint> done = new HashSet<>();
-   done.add(prev);
-   return goesTo(prev,pt,tgt,done);
-   
-}
-
-
-
-private boolean goesTo(IfacePoint prev,IfacePoint pt,IfacePoint tgt,Set<IfacePoint> done)
-{
-   if (pt == tgt) return true;
-   if (pt == prev) return false;
-   if (!done.add(pt)) return false;
-   
-   Collection<IfacePoint> next = pt.getConnectedTo();
-   if (pt.getType() == ShorePointType.SWITCH) {
-      ModelSwitch sw = findSwitchForPoint(pt);
-      IfacePoint xpt = findSwitchPoint(prev,sw);
-      if (xpt == sw.getNPoint()) done.add(sw.getRPoint());
-    }
-   else if (pt.getType() == ShorePointType.GAP) { 
-      return false;
-    }
-   for (IfacePoint npt : next) {
-      if (done.contains(npt)) continue;
-      if (goesTo(pt,npt,tgt,done)) return true;
-    }
-   return false;
+   return model_graph.goesTo(prev,pt,tgt);
 }
 
 
@@ -358,47 +403,12 @@ private boolean goesTo(IfacePoint prev,IfacePoint pt,IfacePoint tgt,Set<IfacePoi
    
    ShoreLog.logD("MODEL","Find next block " + prev + " -> " + cur);
    
-   Set<IfacePoint> next = findSuccessorPoints(cur,prev,true);
-   next.remove(cur);            // ignore how we came in
-   ShoreLog.logD("MODEL","Next points: " + next);
-   for (IfacePoint pt : next) {
-      IfaceBlock curblk = pt.getBlock();
-      for (IfaceConnection c : pt.getBlock().getConnections()) {
-         IfaceSensor xsen = c.getExitSensor(curblk);
-         if (xsen == null) continue;
-         if (next.contains(xsen.getAtPoint())) {
-            ShoreLog.logD("MODEL","Found next block " + 
-               xsen + " " + xsen.getAtPoint() + " " + curblk + " " +
-               c.getOtherBlock(curblk) + " " + c);
-            return c.getOtherBlock(curblk);
-          }
-       }
+   IfaceBlock blk = model_graph.findNextBlock(prev,cur);
+   if (blk != null) {
+      ShoreLog.logD("MODEL","Found next block " + cur.getBlock() + " -> " + blk);
     }
    
-   return null;
-}
-
-
-
-private IfacePoint findSwitchPoint(IfacePoint pt,ModelSwitch sw)
-{
-   Set<IfacePoint> done = new HashSet<>();
-   IfacePoint prev = sw.getPivotPoint();
-   while (pt != null) {
-      if (sw.getNPoint() == pt) return pt;
-      if (sw.getRPoint() == pt) return pt;
-      if (sw.getEntryPoint() == pt) return pt;
-      for (IfacePoint npt : pt.getConnectedTo()) {
-         if (npt == prev) continue;
-         if (!done.add(npt)) continue;
-         if (npt.getType() == ShorePointType.SWITCH) continue;
-         prev = pt;
-         pt = npt;
-         break;
-       }
-    }
-   
-   return null;
+   return blk;
 }
 
 
@@ -412,23 +422,7 @@ private IfacePoint findSwitchPoint(IfacePoint pt,ModelSwitch sw)
 @Override public Set<IfacePoint> findPriorPoints(IfacePoint cur,IfacePoint entry)
 {
    // note entry point might be a gap point from prior block
-   Set<IfacePoint> rslt = new HashSet<>();
-   rslt.add(cur);
-   addPriorPoints(entry,rslt,cur.getBlock());
-   rslt.remove(cur);
-   return rslt;
-}
-
-
-private void addPriorPoints(IfacePoint pt,Set<IfacePoint> rslt,IfaceBlock blk)
-{
-   if (!rslt.add(pt)) return;
-   for (IfacePoint npt : pt.getConnectedTo()) {
-      if (npt.getBlock() != blk) continue;
-      if (!rslt.contains(npt)) {
-         addPriorPoints(npt,rslt,blk);
-       }
-    }
+   return model_graph.findPriorPoints(cur,entry);
 }
 
 
@@ -436,50 +430,14 @@ private void addPriorPoints(IfacePoint pt,Set<IfacePoint> rslt,IfaceBlock blk)
 @Override public Set<IfacePoint> findSuccessorPoints(IfacePoint current,  
       IfacePoint prior,boolean usesw)
 {
-   Set<IfacePoint> priors = findPriorPoints(current,prior);
-   return findSuccessorPoints(current,priors,usesw);
+   return model_graph.findSuccessorPoints(current,prior,usesw);
 }
 
 
 @Override public Set<IfacePoint> findSuccessorPoints(IfacePoint current,
       Set<IfacePoint> prior,boolean usesw)
 {
-   Set<IfacePoint> rslt = new HashSet<>();
-   if (prior == null) prior = new HashSet<>();
-   addNextPoints(current,rslt,prior,usesw);
-   return rslt;
-}
-
-
-private void addNextPoints(IfacePoint pt,Set<IfacePoint> rslt,Set<IfacePoint> prior,boolean usesw)
-{
-   if (prior.contains(pt)) return;
-   if (pt.getType() == ShorePointType.GAP) return;
-   if (!rslt.add(pt)) return;
-   if (pt.getType() == ShorePointType.SWITCH) {
-      ModelSwitch sw = findSwitchForPoint(pt);
-      IfacePoint snpt = sw.getNPoint();
-      IfacePoint srpt = sw.getRPoint();
-      if (rslt.contains(snpt) || prior.contains(snpt)) {
-         prior.add(srpt);
-       }
-      else if (rslt.contains(srpt) || prior.contains(srpt)) {
-         prior.add(snpt);
-       }
-      else if (usesw) {
-         // coming from entry point
-         if (sw.getSwitchState() == ShoreSwitchState.N) {
-            prior.add(srpt);
-          }
-         else if (sw.getSwitchState() == ShoreSwitchState.R) {
-            prior.add(snpt);
-          }
-       }
-    }
-   for (IfacePoint npt : pt.getConnectedTo()) {
-      if (rslt.contains(npt) || prior.contains(npt)) continue;
-      addNextPoints(npt,rslt,prior,usesw);
-    }
+   return model_graph.findSuccessorPoints(current,prior,usesw);
 }
 
 
@@ -521,6 +479,7 @@ void firePreSensorChanged(ModelSensor sensor)
 
 void fireSwitchChanged(ModelSwitch sw)
 {
+   if (model_graph != null) model_graph.noteSwitchChanged(sw);
    runChange(new SwitchChanged(sw));
 }
 
@@ -652,17 +611,8 @@ private class BlockChanged implements Runnable {
 
 private void runChange(Runnable chng)
 {
-   if (!Platform.isFxApplicationThread()) {
-      try {
-         Platform.runLater(chng);
-       }
-      catch (IllegalStateException e) {
-         chng.run();
-       }
-    }
-   else {
-      chng.run();
-    }
+   // callbacks run on the control thread; views move to the FX thread themselves
+   ShoreControlLoop.getLoop().run(chng);
 }
 
 
@@ -721,6 +671,9 @@ private void loadModel(File file) throws ShoreException
    
    if (hasErrors()) return;
    
+   model_graph = new ModelGraph(model_points.values(),model_switches.values(),
+         model_blocks.values());
+   
    for (Element szxml : IvyXml.children(xml,"SPEEDZONE")) {
       ModelSensor pt0 = null;
       ModelSensor pt1 = null;
@@ -811,6 +764,8 @@ private void loadDiagramData(ModelDiagram md)
 
 private void normalizeModel() throws ShoreException
 {
+   indexPoints();
+   
    for (ModelBlock blk : model_blocks.values()) {
       blk.normalizeBlock(this); 
     }
@@ -45,8 +45,8 @@ import org.w3c.dom.Element;
 import edu.brown.cs.ivy.xml.IvyXml;
 import edu.brown.cs.spr.shore.iface.IfaceBlock;
 import edu.brown.cs.spr.shore.iface.IfaceConnection;
+import edu.brown.cs.spr.shore.shore.ShoreControlLoop;
 import edu.brown.cs.spr.shore.shore.ShoreLog;
-import javafx.application.Platform;
 
 class ModelBlock implements ModelConstants, IfaceBlock
 {
@@ -109,7 +109,7 @@ ModelBlock(ModelBase model,Element xml)
 
 @Override public void setBlockState(ShoreBlockState st)
 {
-   Platform.runLater(() -> actualSetBlockState(st));
+   ShoreControlLoop.getLoop().execute(() -> actualSetBlockState(st));
 }
 
 
@@ -130,7 +130,7 @@ void actualSetBlockState(ShoreBlockState st)
 
 @Override public void setPendingFrom(IfaceBlock blk)  
 {
-   Platform.runLater(() -> actualSetPendingFrom(blk));
+   ShoreControlLoop.getLoop().execute(() -> actualSetPendingFrom(blk));
 }
 
 
@@ -0,0 +1,707 @@
+/********************************************************************************/
+/*                                                                              */
+/*              ModelGraph.java                                                 */
+/*                                                                              */
+/*      Compiled point graph for path queries                                   */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2023 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2023, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ *  Permission to use, copy, modify, and distribute this software and its        *
+ *  documentation for any purpose other than its incorporation into a            *
+ *  commercial product is hereby granted without fee, provided that the          *
+ *  above copyright notice appear in all copies and that both that               *
+ *  copyright notice and this permission notice appear in supporting             *
+ *  documentation, and that the name of Brown University not be used in          *
+ *  advertising or publicity pertaining to distribution of the software          *
+ *  without specific, written prior permission.                                  *
+ *                                                                               *
+ *  BROWN UNIVERSITY DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS                *
+ *  SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND            *
+ *  FITNESS FOR ANY PARTICULAR PURPOSE.  IN NO EVENT SHALL BROWN UNIVERSITY      *
+ *  BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY          *
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS,              *
+ *  WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS               *
+ *  ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR PERFORMANCE          *
+ *  OF THIS SOFTWARE.                                                            *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+
+
+package edu.brown.cs.spr.shore.model;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import edu.brown.cs.spr.shore.iface.IfaceConnection;
+import edu.brown.cs.spr.shore.iface.IfacePoint;
+import edu.brown.cs.spr.shore.iface.IfaceSensor;
+
+/**
+ *      The track points compiled into integer-indexed arrays once the model
+ *      is loaded.  Point connections are stored in compressed rows (the 
+ *      connections of point i are conn_points[conn_start[i] .. conn_start[i+1]),
+ *      in the same order as ModelPoint.getModelConnectedTo()), along with the
+ *      block, kind, and switch legs of each point and the exits of each block.
+ *      Path queries walk this with explicit stacks and per-thread bit sets
+ *      rather than recursing over point collections.
+ *
+ *      The next block for a given entry into a block is remembered until
+ *      one of the switches that entry can reach changes.
+ **/
+
+class ModelGraph implements ModelConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private ModelPoint []   graph_points;
+private int []          conn_start;
+private int []          conn_points;
+private byte []         point_kind;
+private int []          point_block;
+private int []          point_switch;
+
+private ModelSwitch []  graph_switches;
+private Map<ModelSwitch,Integer> switch_index;
+private int [][]        switch_blocks;
+private int []          switch_n;
+private int []          switch_r;
+private int []          switch_entry;
+private int []          switch_pivot;
+
+private int []          exit_start;
+private int []          exit_points;
+private ModelBlock []   exit_blocks;
+
+private List<Map<Long,Integer>> next_tables;
+private AtomicIntegerArray block_version;
+
+private ThreadLocal<GraphScratch> graph_scratch;
+
+private static final byte KIND_OTHER = 0;
+private static final byte KIND_SWITCH = 1;
+private static final byte KIND_GAP = 2;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+ModelGraph(Collection<ModelPoint> pts,Collection<ModelSwitch> sws,
+      Collection<ModelBlock> blks)
+{
+   int npt = pts.size();
+   graph_points = pts.toArray(new ModelPoint[npt]);
+   for (int i = 0; i < npt; ++i) {
+      graph_points[i].setGraphIndex(i);
+    }
+   
+   Map<ModelBlock,Integer> blkidx = new HashMap<>();
+   ModelBlock [] blocks = blks.toArray(new ModelBlock[blks.size()]);
+   for (int i = 0; i < blocks.length; ++i) {
+      blkidx.put(blocks[i],i);
+    }
+   
+   conn_start = new int[npt+1];
+   point_kind = new byte[npt];
+   point_block = new int[npt];
+   point_switch = new int[npt];
+   int ncon = 0;
+   for (int i = 0; i < npt; ++i) {
+      ModelPoint mp = graph_points[i];
+      conn_start[i] = ncon;
+      ncon += mp.getModelConnectedTo().size();
+      switch (mp.getType()) {
+         case SWITCH :
+            point_kind[i] = KIND_SWITCH;
+            break;
+         case GAP :
+            point_kind[i] = KIND_GAP;
+            break;
+         default :
+            point_kind[i] = KIND_OTHER;
+            break;
+       }
+      Integer bi = (mp.getBlock() == null ? null : blkidx.get(mp.getBlock()));
+      point_block[i] = (bi == null ? -1 : bi);
+      point_switch[i] = -1;
+    }
+   conn_start[npt] = ncon;
+   conn_points = new int[ncon];
+   for (int i = 0; i < npt; ++i) {
+      int j = conn_start[i];
+      for (ModelPoint cpt : graph_points[i].getModelConnectedTo()) {
+         conn_points[j++] = getIndex(cpt);
+       }
+    }
+   
+   int nsw = sws.size();
+   graph_switches = sws.toArray(new ModelSwitch[nsw]);
+   switch_index = new HashMap<>();
+   switch_n = new int[nsw];
+   switch_r = new int[nsw];
+   switch_entry = new int[nsw];
+   switch_pivot = new int[nsw];
+   for (int i = 0; i < nsw; ++i) {
+      ModelSwitch sw = graph_switches[i];
+      switch_n[i] = getIndex(sw.getNPoint());
+      switch_r[i] = getIndex(sw.getRPoint());
+      switch_entry[i] = getIndex(sw.getEntryPoint());
+      switch_pivot[i] = getIndex(sw.getPivotPoint());
+      // the first switch found for a pivot wins, as in findSwitchForPoint
+      int pvt = switch_pivot[i];
+      if (pvt >= 0 && point_switch[pvt] < 0) point_switch[pvt] = i;
+      switch_index.put(sw,i);
+    }
+   
+   exit_start = new int[blocks.length+1];
+   int nexit = 0;
+   for (int i = 0; i < blocks.length; ++i) {
+      exit_start[i] = nexit;
+      nexit += blocks[i].getConnections().size();
+    }
+   exit_start[blocks.length] = nexit;
+   exit_points = new int[nexit];
+   exit_blocks = new ModelBlock[nexit];
+   for (int i = 0; i < blocks.length; ++i) {
+      int j = exit_start[i];
+      for (IfaceConnection c : blocks[i].getConnections()) {
+         IfaceSensor xsen = c.getExitSensor(blocks[i]);
+         exit_points[j] = (xsen == null ? -1 : getIndex(xsen.getAtPoint()));
+         exit_blocks[j] = (ModelBlock) c.getOtherBlock(blocks[i]);
+         ++j;
+       }
+    }
+   
+   graph_scratch = ThreadLocal.withInitial(() -> new GraphScratch(npt));
+   
+   next_tables = new ArrayList<>();
+   for (int i = 0; i < blocks.length; ++i) {
+      next_tables.add(new ConcurrentHashMap<>());
+    }
+   block_version = new AtomicIntegerArray(blocks.length);
+   switch_blocks = new int[nsw][];
+   for (int i = 0; i < nsw; ++i) {
+      switch_blocks[i] = findSwitchBlocks(switch_pivot[i]);
+    }
+}
+
+
+
+/**
+ *      Find the blocks whose next-block walk can reach the given pivot.  
+ *      The walk never enters a gap point, so these are the blocks of the
+ *      points connected to the pivot without going through a gap.
+ **/
+
+private int [] findSwitchBlocks(int pvt)
+{
+   if (pvt < 0) return new int[0];
+   
+   BitSet seen = new BitSet(graph_points.length);
+   BitSet blks = new BitSet();
+   int [] stk = new int[graph_points.length];
+   int sp = 0;
+   seen.set(pvt);
+   stk[sp++] = pvt;
+   while (sp > 0) {
+      int pt = stk[--sp];
+      if (point_block[pt] >= 0) blks.set(point_block[pt]);
+      for (int i = conn_start[pt]; i < conn_start[pt+1]; ++i) {
+         int npt = conn_points[i];
+         if (npt < 0 || seen.get(npt) || point_kind[npt] == KIND_GAP) continue;
+         seen.set(npt);
+         stk[sp++] = npt;
+       }
+    }
+   
+   return blks.stream().toArray();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+int getPointCount()                             { return graph_points.length; }
+
+
+private int getIndex(IfacePoint pt)
+{
+   if (!(pt instanceof ModelPoint)) return -1;
+   ModelPoint mp = (ModelPoint) pt;
+   int idx = mp.getGraphIndex();
+   if (idx < 0 || idx >= graph_points.length || graph_points[idx] != mp) return -1;
+   return idx;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Reachability                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Check if going from prev to pt can lead to tgt.  Going into a switch
+ *      from its N leg rules out its R leg.
+ **/
+
+boolean goesTo(IfacePoint prev0,IfacePoint pt0,IfacePoint tgt0)
+{
+   int prev = getIndex(prev0);
+   int pt = getIndex(pt0);
+   int tgt = getIndex(tgt0);
+   if (pt0 == tgt0) return true;
+   if (pt < 0) return false;
+   
+   GraphScratch gs = graph_scratch.get();
+   BitSet done = gs.clearSet(0);
+   int [] stkpt = gs.point_stack;
+   int [] stkcur = gs.cursor_stack;
+   int sp = 0;
+   if (prev >= 0) done.set(prev);
+   
+   int from = prev;
+   int at = pt;
+   for ( ; ; ) {
+      // enter point at coming from point from
+      boolean push = true;
+      if (at == tgt) return true;
+      if (at == from) push = false;
+      else if (done.get(at)) push = false;
+      else {
+         done.set(at);
+         if (point_kind[at] == KIND_SWITCH) {
+            int sw = point_switch[at];
+            if (sw >= 0 && switch_n[sw] >= 0 && findSwitchPoint(gs,from,sw) == switch_n[sw]) {
+               if (switch_r[sw] >= 0) done.set(switch_r[sw]);
+             }
+          }
+         else if (point_kind[at] == KIND_GAP) push = false;
+       }
+      if (push) {
+         stkpt[sp] = at;
+         stkcur[sp] = conn_start[at];
+         ++sp;
+       }
+      
+      // find the next unvisited neighbor of the innermost point
+      at = -1;
+      while (sp > 0) {
+         int top = stkpt[sp-1];
+         int cur = stkcur[sp-1];
+         if (cur >= conn_start[top+1]) {
+            --sp;
+            continue;
+          }
+         stkcur[sp-1] = cur + 1;
+         int npt = conn_points[cur];
+         if (npt < 0 || done.get(npt)) continue;
+         from = top;
+         at = npt;
+         break;
+       }
+      if (at < 0) return false;
+    }
+}
+
+
+
+/**
+ *      Follow the track back from pt to see which leg of the switch it is
+ *      on.  Returns -1 if none of the legs are reached.
+ **/
+
+private int findSwitchPoint(GraphScratch gs,int pt,int sw)
+{
+   BitSet done = gs.clearSet(3);
+   int prev = switch_pivot[sw];
+   while (pt >= 0) {
+      if (pt == switch_n[sw] || pt == switch_r[sw] || pt == switch_entry[sw]) return pt;
+      int next = -1;
+      for (int i = conn_start[pt]; i < conn_start[pt+1]; ++i) {
+         int npt = conn_points[i];
+         if (npt < 0 || npt == prev) continue;
+         if (done.get(npt)) continue;
+         done.set(npt);
+         if (point_kind[npt] == KIND_SWITCH) continue;
+         next = npt;
+         break;
+       }
+      prev = pt;
+      pt = next;
+    }
+   
+   return -1;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Prior and successor points                                              */
+/*                                                                              */
+/********************************************************************************/
+
+Set<IfacePoint> findPriorPoints(IfacePoint cur,IfacePoint entry)
+{
+   BitSet rslt = new BitSet(graph_points.length);
+   addPriorPoints(getIndex(cur),getIndex(entry),rslt,graph_scratch.get());
+   return new PointSet(rslt);
+}
+
+
+Set<IfacePoint> findSuccessorPoints(IfacePoint cur,IfacePoint entry,boolean usesw)
+{
+   GraphScratch gs = graph_scratch.get();
+   int idx = getIndex(cur);
+   BitSet prior = gs.clearSet(1);
+   addPriorPoints(idx,getIndex(entry),prior,gs);
+   BitSet rslt = new BitSet(graph_points.length);
+   addNextPoints(idx,rslt,prior,usesw,gs);
+   return new PointSet(rslt);
+}
+
+
+Set<IfacePoint> findSuccessorPoints(IfacePoint cur,Set<IfacePoint> prior0,boolean usesw)
+{
+   GraphScratch gs = graph_scratch.get();
+   BitSet prior = gs.clearSet(1);
+   if (prior0 instanceof PointSet && ((PointSet) prior0).getGraph() == this) {
+      prior.or(((PointSet) prior0).getBits());
+    }
+   else if (prior0 != null) {
+      for (IfacePoint pt : prior0) {
+         int idx = getIndex(pt);
+         if (idx >= 0) prior.set(idx);
+       }
+    }
+   BitSet rslt = new BitSet(graph_points.length);
+   addNextPoints(getIndex(cur),rslt,prior,usesw,gs);
+   return new PointSet(rslt);
+}
+
+
+/**
+ *      Find the block a train at cur, having come from prev, will enter 
+ *      next given the current switch settings.  The answer is kept per
+ *      block of cur and dropped by noteSwitchChanged.
+ **/
+
+ModelBlock findNextBlock(IfacePoint prev,IfacePoint cur)
+{
+   int pidx = getIndex(prev);
+   int cidx = getIndex(cur);
+   if (cidx < 0) return null;
+   int blk = point_block[cidx];
+   if (pidx < 0 || blk < 0) {
+      int xit = computeNextExit(pidx,cidx);
+      return (xit < 0 ? null : exit_blocks[xit]);
+    }
+   
+   Map<Long,Integer> tbl = next_tables.get(blk);
+   Long key = ((long) pidx << 32) | cidx;
+   Integer xit = tbl.get(key);
+   if (xit == null) {
+      int ver = block_version.get(blk);
+      xit = computeNextExit(pidx,cidx);
+      tbl.put(key,xit);
+      // a switch may have changed while we were looking
+      if (block_version.get(blk) != ver) tbl.remove(key,xit);
+    }
+   
+   return (xit < 0 ? null : exit_blocks[xit]);
+}
+
+
+/**
+ *      Note that a switch changed, forgetting the next blocks of any block
+ *      whose walk could reach it.
+ **/
+
+void noteSwitchChanged(ModelSwitch sw)
+{
+   Integer idx = switch_index.get(sw);
+   if (idx == null) return;
+   
+   for (int blk : switch_blocks[idx]) {
+      block_version.incrementAndGet(blk);
+      next_tables.get(blk).clear();
+    }
+}
+
+
+
+/**
+ *      Find the next block by looking for a connection whose exit sensor is 
+ *      among the successor points.  Returns the index of the exit or -1.
+ **/
+
+private int computeNextExit(int prv,int idx)
+{
+   GraphScratch gs = graph_scratch.get();
+   BitSet prior = gs.clearSet(1);
+   addPriorPoints(idx,prv,prior,gs);
+   BitSet next = gs.clearSet(2);
+   addNextPoints(idx,next,prior,true,gs);
+   next.clear(idx);             // ignore how we came in
+   
+   for (int pt = next.nextSetBit(0); pt >= 0; pt = next.nextSetBit(pt+1)) {
+      int blk = point_block[pt];
+      if (blk < 0) continue;
+      for (int i = exit_start[blk]; i < exit_start[blk+1]; ++i) {
+         int xpt = exit_points[i];
+         if (xpt >= 0 && next.get(xpt)) return i;
+       }
+    }
+   
+   return -1;
+}
+
+
+
+/**
+ *      Flood the block of cur from entry, not passing cur.  Entry itself is
+ *      included even if it is in another block (e.g. a gap point).
+ **/
+
+private void addPriorPoints(int cur,int entry,BitSet rslt,GraphScratch gs)
+{
+   if (entry < 0 || entry == cur) return;
+   int blk = (cur < 0 ? -1 : point_block[cur]);
+   int [] stk = gs.point_stack;
+   int sp = 0;
+   rslt.set(entry);
+   stk[sp++] = entry;
+   while (sp > 0) {
+      int pt = stk[--sp];
+      for (int i = conn_start[pt]; i < conn_start[pt+1]; ++i) {
+         int npt = conn_points[i];
+         if (npt < 0 || npt == cur || point_block[npt] != blk) continue;
+         if (rslt.get(npt)) continue;
+         rslt.set(npt);
+         stk[sp++] = npt;
+       }
+    }
+}
+
+
+
+/**
+ *      Depth-first walk from pt not passing prior points or gaps.  At a 
+ *      switch, whichever leg has been seen rules out the other; coming 
+ *      from the entry, the switch setting decides if usesw is set.  The 
+ *      walk order matches the recursive definition since which leg is 
+ *      seen first matters.
+ **/
+
+private void addNextPoints(int pt0,BitSet rslt,BitSet prior,boolean usesw,GraphScratch gs)
+{
+   if (pt0 < 0) return;
+   int [] stkpt = gs.point_stack;
+   int [] stkcur = gs.cursor_stack;
+   int sp = 0;
+   
+   int at = pt0;
+   for ( ; ; ) {
+      if (!prior.get(at) && point_kind[at] != KIND_GAP && !rslt.get(at)) {
+         rslt.set(at);
+         if (point_kind[at] == KIND_SWITCH && point_switch[at] >= 0) {
+            int sw = point_switch[at];
+            int snpt = switch_n[sw];
+            int srpt = switch_r[sw];
+            if (isSeen(snpt,rslt,prior)) {
+               if (srpt >= 0) prior.set(srpt);
+             }
+            else if (isSeen(srpt,rslt,prior)) {
+               if (snpt >= 0) prior.set(snpt);
+             }
+            else if (usesw) {
+               // coming from entry point
+               ShoreSwitchState st = graph_switches[sw].getSwitchState();
+               if (st == ShoreSwitchState.N && srpt >= 0) prior.set(srpt);
+               else if (st == ShoreSwitchState.R && snpt >= 0) prior.set(snpt);
+             }
+          }
+         stkpt[sp] = at;
+         stkcur[sp] = conn_start[at];
+         ++sp;
+       }
+      
+      at = -1;
+      while (sp > 0) {
+         int top = stkpt[sp-1];
+         int cur = stkcur[sp-1];
+         if (cur >= conn_start[top+1]) {
+            --sp;
+            continue;
+          }
+         stkcur[sp-1] = cur + 1;
+         int npt = conn_points[cur];
+         if (npt < 0 || rslt.get(npt) || prior.get(npt)) continue;
+         at = npt;
+         break;
+       }
+      if (at < 0) return;
+    }
+}
+
+
+private static boolean isSeen(int pt,BitSet rslt,BitSet prior)
+{
+   return pt >= 0 && (rslt.get(pt) || prior.get(pt));
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Per-thread work space                                                   */
+/*                                                                              */
+/********************************************************************************/
+
+private static final class GraphScratch {
+
+   private BitSet [] work_sets;
+   private int [] point_stack;
+   private int [] cursor_stack;
+   
+   GraphScratch(int npt) {
+      work_sets = new BitSet[4];
+      for (int i = 0; i < work_sets.length; ++i) {
+         work_sets[i] = new BitSet(npt);
+       }
+      // each point is pushed at most once per walk
+      point_stack = new int[npt+1];
+      cursor_stack = new int[npt+1];
+    }
+   
+   BitSet clearSet(int which) {
+      BitSet bs = work_sets[which];
+      bs.clear();
+      return bs;
+    }
+   
+}       // end of inner class GraphScratch
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Point sets backed by bits                                               */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Set of points returned by path queries.  This is a regular mutable
+ *      set, but membership is a bit test on the point's graph index.
+ **/
+
+private final class PointSet extends AbstractSet<IfacePoint> {
+
+   private BitSet point_bits;
+   
+   PointSet(BitSet bits) {
+      point_bits = bits;
+    }
+   
+   ModelGraph getGraph()                        { return ModelGraph.this; }
+   BitSet getBits()                             { return point_bits; }
+   
+   @Override public int size()                  { return point_bits.cardinality(); }
+   @Override public boolean isEmpty()           { return point_bits.isEmpty(); }
+   
+   @Override public boolean contains(Object o) {
+      if (!(o instanceof IfacePoint)) return false;
+      int idx = getIndex((IfacePoint) o);
+      return idx >= 0 && point_bits.get(idx);
+    }
+   
+   @Override public boolean add(IfacePoint pt) {
+      int idx = getIndex(pt);
+      if (idx < 0) throw new IllegalArgumentException("Point not in model: " + pt);
+      if (point_bits.get(idx)) return false;
+      point_bits.set(idx);
+      return true;
+    }
+   
+   @Override public boolean remove(Object o) {
+      if (!contains(o)) return false;
+      point_bits.clear(getIndex((IfacePoint) o));
+      return true;
+    }
+   
+   @Override public void clear()                { point_bits.clear(); }
+   
+   @Override public Iterator<IfacePoint> iterator() {
+      return new PointIterator();
+    }
+   
+   private final class PointIterator implements Iterator<IfacePoint> {
+      
+      private int next_index;
+      private int last_index;
+      
+      PointIterator() {
+         next_index = point_bits.nextSetBit(0);
+         last_index = -1;
+       }
+      
+      @Override public boolean hasNext()        { return next_index >= 0; }
+      
+      @Override public IfacePoint next() {
+         if (next_index < 0) throw new NoSuchElementException();
+         last_index = next_index;
+         next_index = point_bits.nextSetBit(next_index+1);
+         return graph_points[last_index];
+       }
+      
+      @Override public void remove() {
+         if (last_index < 0) throw new IllegalStateException();
+         point_bits.clear(last_index);
+         last_index = -1;
+       }
+      
+    }   // end of inner class PointIterator
+   
+}       // end of inner class PointSet
+
+
+
+}       // end of class ModelGraph
+
+
+
+
+/* end of ModelGraph.java */
@@ -0,0 +1,429 @@
+/********************************************************************************/
+/*                                                                              */
+/*              ModelGraphBenchmark.java                                        */
+/*                                                                              */
+/*      Compare compiled path queries with the recursive versions               */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2023 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2023, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ *  Permission to use, copy, modify, and distribute this software and its        *
+ *  documentation for any purpose other than its incorporation into a            *
+ *  commercial product is hereby granted without fee, provided that the          *
+ *  above copyright notice appear in all copies and that both that               *
+ *  copyright notice and this permission notice appear in supporting             *
+ *  documentation, and that the name of Brown University not be used in          *
+ *  advertising or publicity pertaining to distribution of the software          *
+ *  without specific, written prior permission.                                  *
+ *                                                                               *
+ *  BROWN UNIVERSITY DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS                *
+ *  SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND            *
+ *  FITNESS FOR ANY PARTICULAR PURPOSE.  IN NO EVENT SHALL BROWN UNIVERSITY      *
+ *  BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY          *
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS,              *
+ *  WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS               *
+ *  ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR PERFORMANCE          *
+ *  OF THIS SOFTWARE.                                                            *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+
+
+package edu.brown.cs.spr.shore.model;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import edu.brown.cs.spr.shore.iface.IfaceBlock;
+import edu.brown.cs.spr.shore.iface.IfaceConnection;
+import edu.brown.cs.spr.shore.iface.IfaceDiagram;
+import edu.brown.cs.spr.shore.iface.IfacePoint;
+import edu.brown.cs.spr.shore.iface.IfaceSensor;
+
+public class ModelGraphBenchmark implements ModelConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Main program                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+public static void main(String [] args)
+{
+   File f = new File("resources/spr_layout.xml");
+   if (args.length > 0) f = new File(args[0]);
+   int rounds = 200;
+   if (args.length > 1) rounds = Integer.parseInt(args[1]);
+   
+   ModelGraphBenchmark gb = new ModelGraphBenchmark(new ModelBase(f),rounds);
+   gb.process();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private ModelBase       for_model;
+private ModelGraph      model_graph;
+private int             num_rounds;
+private List<IfacePoint []> step_cases;
+private List<IfacePoint> target_points;
+private int             error_count;
+
+private static final int        WARMUP_ROUNDS = 20;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+private ModelGraphBenchmark(ModelBase mdl,int rounds)
+{
+   for_model = mdl;
+   model_graph = mdl.getModelGraph();
+   num_rounds = rounds;
+   error_count = 0;
+   
+   // every (prev,cur) step a train can make between adjacent points
+   step_cases = new ArrayList<>();
+   for (IfaceDiagram dgm : mdl.getDiagrams()) {
+      for (ModelPoint pt : ((ModelDiagram) dgm).getModelPoints()) {
+         for (ModelPoint prev : pt.getModelConnectedTo()) {
+            step_cases.add(new IfacePoint [] { prev, pt });
+          }
+       }
+    }
+   target_points = new ArrayList<>();
+   for (IfaceSensor s : mdl.getSensors()) {
+      target_points.add(s.getAtPoint());
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Processing methods                                                      */
+/*                                                                              */
+/********************************************************************************/
+
+private void process()
+{
+   checkResults();
+   
+   System.out.println("Steps:              " + step_cases.size());
+   System.out.println("Targets:            " + target_points.size());
+   System.out.println("Mismatches:         " + error_count);
+   
+   timeQuery("goesTo",false,(p) -> {
+      int ct = 0;
+      for (IfacePoint tgt : target_points) {
+         if (model_graph.goesTo(p[0],p[1],tgt)) ++ct;
+       }
+      return ct;
+    },(p) -> {
+      int ct = 0;
+      for (IfacePoint tgt : target_points) {
+         if (oldGoesTo(p[0],p[1],tgt)) ++ct;
+       }
+      return ct;
+    });
+   timeQuery("findPriorPoints",true,
+         (p) -> model_graph.findPriorPoints(p[1],p[0]).size(),
+         (p) -> oldFindPriorPoints(p[1],p[0]).size());
+   timeQuery("findSuccessorPoints",true,
+         (p) -> model_graph.findSuccessorPoints(p[1],p[0],true).size(),
+         (p) -> oldFindSuccessorPoints(p[1],p[0],true).size());
+   timeQuery("findNextBlock",true,
+         (p) -> (model_graph.findNextBlock(p[0],p[1]) == null ? 0 : 1),
+         (p) -> (oldFindNextBlock(p[0],p[1]) == null ? 0 : 1));
+   
+   if (error_count > 0) System.exit(1);
+}
+
+
+
+private void checkResults()
+{
+   for (IfacePoint [] p : step_cases) {
+      for (IfacePoint tgt : target_points) {
+         if (for_model.goesTo(p[0],p[1],tgt) != oldGoesTo(p[0],p[1],tgt)) {
+            noteMismatch("goesTo",p,tgt);
+          }
+       }
+      if (!for_model.findPriorPoints(p[1],p[0]).equals(oldFindPriorPoints(p[1],p[0]))) {
+         noteMismatch("findPriorPoints",p,null);
+       }
+      for (int i = 0; i < 2; ++i) {
+         boolean usesw = (i == 0);
+         Set<IfacePoint> nset = for_model.findSuccessorPoints(p[1],p[0],usesw);
+         if (!nset.equals(oldFindSuccessorPoints(p[1],p[0],usesw))) {
+            noteMismatch("findSuccessorPoints",p,null);
+          }
+       }
+      // the old code returned whichever match its hash set gave first
+      IfaceBlock nblk = for_model.findNextBlock(p[0],p[1]);
+      Set<IfaceBlock> oblks = oldNextBlocks(p[0],p[1]);
+      if (nblk == null ? !oblks.isEmpty() : !oblks.contains(nblk)) {
+         noteMismatch("findNextBlock",p,null);
+       }
+    }
+}
+
+
+private void noteMismatch(String what,IfacePoint [] p,IfacePoint tgt)
+{
+   ++error_count;
+   System.out.println("MISMATCH " + what + " " + p[0] + " -> " + p[1] +
+         (tgt == null ? "" : " to " + tgt));
+}
+
+
+
+// times the graph directly so the debug logging in ModelBase is not counted
+
+private void timeQuery(String what,boolean loop,Query nq,Query oq)
+{
+   long nt = timeRounds(nq);
+   long ot = timeRounds(oq);
+   
+   long nq1 = (long) num_rounds * step_cases.size();
+   if (!loop) nq1 *= target_points.size();
+   
+   System.out.println(what + ":");
+   System.out.println("   recursive (ns):  " + ot/nq1);
+   System.out.println("   compiled (ns):   " + nt/nq1);
+   if (nt > 0) {
+      System.out.printf("   speedup:         %.1f%n",((double) ot)/nt);
+    }
+}
+
+
+private long timeRounds(Query q)
+{
+   long sum = 0;
+   for (int i = 0; i < WARMUP_ROUNDS; ++i) {
+      for (IfacePoint [] p : step_cases) sum += q.run(p);
+    }
+   long t0 = System.nanoTime();
+   for (int i = 0; i < num_rounds; ++i) {
+      for (IfacePoint [] p : step_cases) sum += q.run(p);
+    }
+   long t1 = System.nanoTime();
+   if (sum == 42) System.out.print("");         // keep the results live
+   
+   return t1-t0;
+}
+
+
+
+@FunctionalInterface
+private interface Query {
+   int run(IfacePoint [] p);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Recursive versions of the path methods for comparison                   */
+/*                                                                              */
+/********************************************************************************/
+
+private boolean oldGoesTo(IfacePoint prev,IfacePoint pt,IfacePoint tgt)
+{
+   Set<IfacePoint> done = new HashSet<>();
+   done.add(prev);
+   return oldGoesTo(prev,pt,tgt,done);
+}
+
+
+private boolean oldGoesTo(IfacePoint prev,IfacePoint pt,IfacePoint tgt,Set<IfacePoint> done)
+{
+   if (pt == tgt) return true;
+   if (pt == prev) return false;
+   if (!done.add(pt)) return false;
+   
+   Collection<IfacePoint> next = pt.getConnectedTo();
+   if (pt.getType() == ShorePointType.SWITCH) {
+      ModelSwitch sw = oldFindSwitchForPoint(pt);
+      IfacePoint xpt = oldFindSwitchPoint(prev,sw);
+      if (xpt == sw.getNPoint()) done.add(sw.getRPoint());
+    }
+   else if (pt.getType() == ShorePointType.GAP) { 
+      return false;
+    }
+   for (IfacePoint npt : next) {
+      if (done.contains(npt)) continue;
+      if (oldGoesTo(pt,npt,tgt,done)) return true;
+    }
+   return false;
+}
+
+
+private Set<IfaceBlock> oldNextBlocks(IfacePoint prev,IfacePoint cur)
+{
+   Set<IfaceBlock> rslt = new HashSet<>();
+   if (prev == null || cur == null || prev == cur) return rslt;
+   
+   Set<IfacePoint> next = oldFindSuccessorPoints(cur,prev,true);
+   next.remove(cur);
+   for (IfacePoint pt : next) {
+      IfaceBlock curblk = pt.getBlock();
+      for (IfaceConnection c : curblk.getConnections()) {
+         IfaceSensor xsen = c.getExitSensor(curblk);
+         if (xsen == null) continue;
+         if (next.contains(xsen.getAtPoint())) {
+            rslt.add(c.getOtherBlock(curblk));
+            break;
+          }
+       }
+    }
+   
+   return rslt;
+}
+
+
+private IfaceBlock oldFindNextBlock(IfacePoint prev,IfacePoint cur)
+{
+   if (prev == null || cur == null || prev == cur) return null;
+   
+   Set<IfacePoint> next = oldFindSuccessorPoints(cur,prev,true);
+   next.remove(cur);
+   for (IfacePoint pt : next) {
+      IfaceBlock curblk = pt.getBlock();
+      for (IfaceConnection c : curblk.getConnections()) {
+         IfaceSensor xsen = c.getExitSensor(curblk);
+         if (xsen == null) continue;
+         if (next.contains(xsen.getAtPoint())) {
+            return c.getOtherBlock(curblk);
+          }
+       }
+    }
+   
+   return null;
+}
+
+
+private IfacePoint oldFindSwitchPoint(IfacePoint pt,ModelSwitch sw)
+{
+   Set<IfacePoint> done = new HashSet<>();
+   IfacePoint prev = sw.getPivotPoint();
+   while (pt != null) {
+      if (sw.getNPoint() == pt) return pt;
+      if (sw.getRPoint() == pt) return pt;
+      if (sw.getEntryPoint() == pt) return pt;
+      IfacePoint next = null;
+      for (IfacePoint npt : pt.getConnectedTo()) {
+         if (npt == prev) continue;
+         if (!done.add(npt)) continue;
+         if (npt.getType() == ShorePointType.SWITCH) continue;
+         next = npt;
+         break;
+       }
+      // the original kept looping here when no point was left
+      prev = pt;
+      pt = next;
+    }
+   
+   return null;
+}
+
+
+private ModelSwitch oldFindSwitchForPoint(IfacePoint pt)
+{
+   for (ModelSwitch ms : for_model.getModelSwitches()) { 
+      if (ms.getPivotPoint() == pt) return ms;
+    }
+   return null;
+}
+
+
+private Set<IfacePoint> oldFindPriorPoints(IfacePoint cur,IfacePoint entry)
+{
+   Set<IfacePoint> rslt = new HashSet<>();
+   rslt.add(cur);
+   oldAddPriorPoints(entry,rslt,cur.getBlock());
+   rslt.remove(cur);
+   return rslt;
+}
+
+
+private void oldAddPriorPoints(IfacePoint pt,Set<IfacePoint> rslt,IfaceBlock blk)
+{
+   if (!rslt.add(pt)) return;
+   for (IfacePoint npt : pt.getConnectedTo()) {
+      if (npt.getBlock() != blk) continue;
+      if (!rslt.contains(npt)) {
+         oldAddPriorPoints(npt,rslt,blk);
+       }
+    }
+}
+
+
+private Set<IfacePoint> oldFindSuccessorPoints(IfacePoint current,IfacePoint prior,boolean usesw)
+{
+   Set<IfacePoint> priors = oldFindPriorPoints(current,prior);
+   Set<IfacePoint> rslt = new HashSet<>();
+   oldAddNextPoints(current,rslt,priors,usesw);
+   return rslt;
+}
+
+
+private void oldAddNextPoints(IfacePoint pt,Set<IfacePoint> rslt,Set<IfacePoint> prior,boolean usesw)
+{
+   if (prior.contains(pt)) return;
+   if (pt.getType() == ShorePointType.GAP) return;
+   if (!rslt.add(pt)) return;
+   if (pt.getType() == ShorePointType.SWITCH) {
+      ModelSwitch sw = oldFindSwitchForPoint(pt);
+      IfacePoint snpt = sw.getNPoint();
+      IfacePoint srpt = sw.getRPoint();
+      if (rslt.contains(snpt) || prior.contains(snpt)) {
+         prior.add(srpt);
+       }
+      else if (rslt.contains(srpt) || prior.contains(srpt)) {
+         prior.add(snpt);
+       }
+      else if (usesw) {
+         if (sw.getSwitchState() == ShoreSwitchState.N) {
+            prior.add(srpt);
+          }
+         else if (sw.getSwitchState() == ShoreSwitchState.R) {
+            prior.add(snpt);
+          }
+       }
+    }
+   for (IfacePoint npt : pt.getConnectedTo()) {
+      if (rslt.contains(npt) || prior.contains(npt)) continue;
+      oldAddNextPoints(npt,rslt,prior,usesw);
+    }
+}
+
+
+
+}       // end of class ModelGraphBenchmark
+
+
+
+
+/* end of ModelGraphBenchmark.java */
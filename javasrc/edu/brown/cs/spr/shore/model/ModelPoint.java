@@ -65,6 +65,7 @@ private List<ModelPoint> conn_points;
 private String ref_id;
 private ModelBlock in_block;
 private ModelLabel point_label;
+private int     graph_index;
 
 
 
@@ -95,6 +96,7 @@ ModelPoint(ModelDiagram dgm,Element xml)
     }
    
    conn_points = new ArrayList<>();
+   graph_index = -1;
 }
 
 
@@ -159,6 +161,9 @@ List<ModelPoint> getModelConnectedTo()
 @Override public ModelBlock getBlock()          { return in_block; }
 void setBlock(ModelBlock blk)                   { in_block = blk; }
 
+int getGraphIndex()                             { return graph_index; }
+void setGraphIndex(int idx)                     { graph_index = idx; }
+
 
 void setSignal(ModelSignal sig)
 {
@@ -51,6 +51,7 @@ import edu.brown.cs.spr.shore.iface.IfacePoint;
 import edu.brown.cs.spr.shore.iface.IfaceSensor;
 import edu.brown.cs.spr.shore.iface.IfaceSignal;
 import edu.brown.cs.spr.shore.iface.IfaceSwitch;
+import edu.brown.cs.spr.shore.shore.ShoreControlLoop;
 import edu.brown.cs.spr.shore.shore.ShoreLog;
 
 class ModelSensor implements IfaceSensor, ModelConstants 
@@ -188,6 +189,12 @@ void assignSwitch(ModelSwitch sw,ShoreSwitchState state)
 @Override public ShoreSensorState getSensorState()   { return sensor_state; }
 
 @Override public void setSensorState(ShoreSensorState st)
+{
+   ShoreControlLoop.getLoop().run(() -> actualSetSensorState(st));
+}
+
+
+void actualSetSensorState(ShoreSensorState st)
 {
    if (force_state != null) st = force_state;
    
@@ -50,8 +50,8 @@ import edu.brown.cs.spr.shore.iface.IfaceConnection;
 import edu.brown.cs.spr.shore.iface.IfacePoint;
 import edu.brown.cs.spr.shore.iface.IfaceSensor;
 import edu.brown.cs.spr.shore.iface.IfaceSignal;
+import edu.brown.cs.spr.shore.shore.ShoreControlLoop;
 import edu.brown.cs.spr.shore.shore.ShoreLog;
-import javafx.application.Platform;
 
 class ModelSignal implements IfaceSignal, ModelConstants
 {
@@ -201,18 +201,7 @@ List<ModelSensor> getModelStopSensors()
 
 @Override public void setSignalState(ShoreSignalState state)
 {
-   if (Platform.isFxApplicationThread()) {
-      actualSetSignal(state);
-    }
-   else {
-      SetSignal ss = new SetSignal(state);
-      try {
-         Platform.runLater(ss);
-       }
-      catch (IllegalStateException e) {
-         ss.run();
-       }
-    }
+   ShoreControlLoop.getLoop().run(new SetSignal(state));
 }
 
 
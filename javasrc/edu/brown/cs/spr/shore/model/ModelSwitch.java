@@ -42,8 +42,8 @@ import org.w3c.dom.Element;
 import edu.brown.cs.ivy.xml.IvyXml;
 import edu.brown.cs.spr.shore.iface.IfaceSensor;
 import edu.brown.cs.spr.shore.iface.IfaceSwitch;
+import edu.brown.cs.spr.shore.shore.ShoreControlLoop;
 import edu.brown.cs.spr.shore.shore.ShoreLog;
-import javafx.application.Platform;
 
 class ModelSwitch implements IfaceSwitch, ModelConstants
 {
@@ -142,7 +142,7 @@ ModelSwitch getAssociatedSwitch()
 
 @Override public void setSwitch(ShoreSwitchState st)
 {
-   Platform.runLater(() -> actualSetSwitch(st));
+   ShoreControlLoop.getLoop().execute(() -> actualSetSwitch(st));
 }
 
 
@@ -0,0 +1,209 @@
+/********************************************************************************/
+/*                                                                              */
+/*              NetworkCapture.java                                             */
+/*                                                                              */
+/*      Memory-mapped ring of raw tower and LocoFi datagrams                    */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2023 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2023, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ *  Permission to use, copy, modify, and distribute this software and its        *
+ *  documentation for any purpose other than its incorporation into a            *
+ *  commercial product is hereby granted without fee, provided that the          *
+ *  above copyright notice appear in all copies and that both that               *
+ *  copyright notice and this permission notice appear in supporting             *
+ *  documentation, and that the name of Brown University not be used in          *
+ *  advertising or publicity pertaining to distribution of the software          *
+ *  without specific, written prior permission.                                  *
+ *                                                                               *
+ *  BROWN UNIVERSITY DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS                *
+ *  SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND            *
+ *  FITNESS FOR ANY PARTICULAR PURPOSE.  IN NO EVENT SHALL BROWN UNIVERSITY      *
+ *  BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY          *
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS,              *
+ *  WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS               *
+ *  ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR PERFORMANCE          *
+ *  OF THIS SOFTWARE.                                                            *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+
+package edu.brown.cs.spr.shore.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.brown.cs.spr.shore.shore.ShoreLog;
+
+class NetworkCapture implements NetworkConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private MappedByteBuffer capture_buffer;
+private AtomicLong      next_sequence;
+private int             num_slots;
+
+static final int        CAPTURE_MAGIC = 0x53484350;     // SHCP
+static final int        CAPTURE_VERSION = 1;
+
+// file header
+static final int        HEADER_SIZE = 64;
+static final int        HDR_MAGIC = 0;
+static final int        HDR_VERSION = 4;
+static final int        HDR_SLOT_SIZE = 8;
+static final int        HDR_SLOT_COUNT = 12;
+static final int        HDR_BASE_MILLIS = 16;
+static final int        HDR_BASE_NANOS = 24;
+static final int        HDR_NEXT = 32;
+
+// slot layout
+static final int        SLOT_SEQUENCE = 0;              // sequence+1, 0 if empty
+static final int        SLOT_NANOS = 8;
+static final int        SLOT_DIRECTION = 16;
+static final int        SLOT_KIND = 17;
+static final int        SLOT_LENGTH = 18;               // original length
+static final int        SLOT_PORT = 20;
+static final int        SLOT_ADDR_LENGTH = 24;
+static final int        SLOT_ADDR = 25;                 // up to 16 bytes
+static final int        SLOT_DATA = 48;
+static final int        SLOT_DATA_SIZE = CAPTURE_SLOT_SIZE - SLOT_DATA;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Create a capture ring backed by the given file.  The file is 
+ *      truncated and mapped; returns null if the file can't be mapped,
+ *      in which case capture is simply not done.
+ **/
+
+static NetworkCapture create(File f)
+{
+   try {
+      return new NetworkCapture(f,CAPTURE_SLOTS);
+    }
+   catch (IOException e) {
+      ShoreLog.logE("NETWORK","Can't create packet capture file " + f,e);
+    }
+   return null;
+}
+
+
+private NetworkCapture(File f,int slots) throws IOException
+{
+   num_slots = slots;
+   next_sequence = new AtomicLong(0);
+   
+   long size = HEADER_SIZE + ((long) slots) * CAPTURE_SLOT_SIZE;
+   try (RandomAccessFile raf = new RandomAccessFile(f,"rw")) {
+      raf.setLength(0);
+      raf.setLength(size);
+      capture_buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,0,size);
+    }
+   capture_buffer.order(ByteOrder.BIG_ENDIAN);
+   
+   capture_buffer.putInt(HDR_MAGIC,CAPTURE_MAGIC);
+   capture_buffer.putInt(HDR_VERSION,CAPTURE_VERSION);
+   capture_buffer.putInt(HDR_SLOT_SIZE,CAPTURE_SLOT_SIZE);
+   capture_buffer.putInt(HDR_SLOT_COUNT,slots);
+   capture_buffer.putLong(HDR_BASE_MILLIS,System.currentTimeMillis());
+   capture_buffer.putLong(HDR_BASE_NANOS,System.nanoTime());
+   capture_buffer.putLong(HDR_NEXT,0);
+   
+   ShoreLog.logD("NETWORK","Capturing packets to " + f);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Capture methods                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+void captureReceive(byte kind,DatagramPacket msg)
+{
+   capture(CAPTURE_RECEIVE,kind,msg.getAddress(),msg.getPort(),
+         msg.getData(),msg.getOffset(),msg.getLength());
+}
+
+
+void captureSend(byte kind,SocketAddress who,byte [] msg,int off,int len)
+{
+   InetAddress addr = null;
+   int port = 0;
+   if (who instanceof InetSocketAddress) {
+      InetSocketAddress isa = (InetSocketAddress) who;
+      addr = isa.getAddress();
+      port = isa.getPort();
+    }
+   capture(CAPTURE_SEND,kind,addr,port,msg,off,len);
+}
+
+
+/**
+ *      Record a packet.  Each writer claims its own slot so that the 
+ *      selector and the sending threads never contend; the sequence 
+ *      number is stored last so that a reader can tell complete slots.
+ **/
+
+private void capture(byte dir,byte kind,InetAddress addr,int port,
+      byte [] msg,int off,int len)
+{
+   long now = System.nanoTime();
+   long seq = next_sequence.getAndIncrement();
+   int base = HEADER_SIZE + ((int) (seq % num_slots)) * CAPTURE_SLOT_SIZE;
+   
+   capture_buffer.putLong(base + SLOT_SEQUENCE,0);
+   capture_buffer.putLong(base + SLOT_NANOS,now);
+   capture_buffer.put(base + SLOT_DIRECTION,dir);
+   capture_buffer.put(base + SLOT_KIND,kind);
+   capture_buffer.putShort(base + SLOT_LENGTH,(short) len);
+   capture_buffer.putInt(base + SLOT_PORT,port);
+   if (addr == null) {
+      capture_buffer.put(base + SLOT_ADDR_LENGTH,(byte) 0);
+    }
+   else {
+      byte [] ab = addr.getAddress();
+      capture_buffer.put(base + SLOT_ADDR_LENGTH,(byte) ab.length);
+      capture_buffer.put(base + SLOT_ADDR,ab,0,ab.length);
+    }
+   capture_buffer.put(base + SLOT_DATA,msg,off,Math.min(len,SLOT_DATA_SIZE));
+   capture_buffer.putLong(base + SLOT_SEQUENCE,seq+1);
+   capture_buffer.putLong(HDR_NEXT,next_sequence.get());
+}
+
+
+
+}       // end of class NetworkCapture
+
+
+
+
+/* end of NetworkCapture.java */
@@ -0,0 +1,259 @@
+/********************************************************************************/
+/*                                                                              */
+/*              NetworkCaptureDecoder.java                                      */
+/*                                                                              */
+/*      Offline decoder for packet capture files                                */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2023 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2023, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ *  Permission to use, copy, modify, and distribute this software and its        *
+ *  documentation for any purpose other than its incorporation into a            *
+ *  commercial product is hereby granted without fee, provided that the          *
+ *  above copyright notice appear in all copies and that both that               *
+ *  copyright notice and this permission notice appear in supporting             *
+ *  documentation, and that the name of Brown University not be used in          *
+ *  advertising or publicity pertaining to distribution of the software          *
+ *  without specific, written prior permission.                                  *
+ *                                                                               *
+ *  BROWN UNIVERSITY DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS                *
+ *  SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND            *
+ *  FITNESS FOR ANY PARTICULAR PURPOSE.  IN NO EVENT SHALL BROWN UNIVERSITY      *
+ *  BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY          *
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS,              *
+ *  WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS               *
+ *  ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR PERFORMANCE          *
+ *  OF THIS SOFTWARE.                                                            *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+
+package edu.brown.cs.spr.shore.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.InetAddress;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+public class NetworkCaptureDecoder implements NetworkConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Main program                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+public static void main(String [] args)
+{
+   File f = null;
+   if (args.length > 0) f = new File(args[0]);
+   else {
+      File f1 = new File(System.getProperty("user.home"));
+      f = new File(f1,CAPTURE_FILE);
+    }
+   
+   NetworkCaptureDecoder ncd = new NetworkCaptureDecoder(f);
+   try {
+      ncd.process(System.out);
+    }
+   catch (IOException e) {
+      System.err.println("DECODER: Problem reading " + f + ": " + e);
+      System.exit(1);
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private File            capture_file;
+private Map<Byte,String> control_names;
+private Map<String,byte []> locofi_commands;
+
+private static final String [] KIND_NAMES = { "TOWER", "LOCOFI", "SPEED", "RPM" };
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+private NetworkCaptureDecoder(File f)
+{
+   capture_file = f;
+   control_names = new HashMap<>();
+   locofi_commands = new HashMap<>();
+   
+   for (Field fld : NetworkControlMessages.class.getFields()) {
+      if (!fld.getName().startsWith("CONTROL_")) continue;
+      if (!Modifier.isStatic(fld.getModifiers())) continue;
+      try {
+         control_names.put(fld.getByte(null),fld.getName());
+       }
+      catch (IllegalAccessException e) { }
+    }
+   
+   for (Field fld : NetworkLocoFiMessages.class.getFields()) {
+      if (fld.getType() != byte [].class) continue;
+      try {
+         locofi_commands.put(fld.getName(),(byte []) fld.get(null));
+       }
+      catch (IllegalAccessException e) { }
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Processing methods                                                      */
+/*                                                                              */
+/********************************************************************************/
+
+private void process(PrintStream out) throws IOException
+{
+   MappedByteBuffer buf = null;
+   try (RandomAccessFile raf = new RandomAccessFile(capture_file,"r")) {
+      buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,0,raf.length());
+    }
+   buf.order(ByteOrder.BIG_ENDIAN);
+   
+   if (buf.getInt(NetworkCapture.HDR_MAGIC) != NetworkCapture.CAPTURE_MAGIC) {
+      throw new IOException("Not a capture file");
+    }
+   int slotsize = buf.getInt(NetworkCapture.HDR_SLOT_SIZE);
+   int nslot = buf.getInt(NetworkCapture.HDR_SLOT_COUNT);
+   long basems = buf.getLong(NetworkCapture.HDR_BASE_MILLIS);
+   long basens = buf.getLong(NetworkCapture.HDR_BASE_NANOS);
+   long next = buf.getLong(NetworkCapture.HDR_NEXT);
+   
+   // the ring holds the last nslot packets; walk them oldest first
+   long first = Math.max(0,next - nslot);
+   SimpleDateFormat fmt = new SimpleDateFormat("HH:mm:ss.SSS");
+   int ct = 0;
+   for (long seq = first; seq < next; ++seq) {
+      int base = NetworkCapture.HEADER_SIZE + ((int) (seq % nslot)) * slotsize;
+      if (buf.getLong(base + NetworkCapture.SLOT_SEQUENCE) != seq+1) continue;
+      out.println(decodeSlot(buf,base,slotsize,basems,basens,fmt));
+      ++ct;
+    }
+   
+   out.println("# " + ct + " packets of " + next + " captured");
+}
+
+
+private String decodeSlot(MappedByteBuffer buf,int base,int slotsize,
+      long basems,long basens,SimpleDateFormat fmt)
+{
+   long ns = buf.getLong(base + NetworkCapture.SLOT_NANOS) - basens;
+   int dir = buf.get(base + NetworkCapture.SLOT_DIRECTION);
+   int kind = buf.get(base + NetworkCapture.SLOT_KIND);
+   int len = buf.getShort(base + NetworkCapture.SLOT_LENGTH) & 0xffff;
+   int port = buf.getInt(base + NetworkCapture.SLOT_PORT);
+   int alen = buf.get(base + NetworkCapture.SLOT_ADDR_LENGTH);
+   
+   String addr = "?";
+   if (alen > 0) {
+      byte [] ab = new byte[alen];
+      buf.get(base + NetworkCapture.SLOT_ADDR,ab);
+      try {
+         addr = InetAddress.getByAddress(ab).getHostAddress();
+       }
+      catch (IOException e) { }
+    }
+   
+   int dlen = Math.min(len,slotsize - NetworkCapture.SLOT_DATA);
+   byte [] data = new byte[dlen];
+   buf.get(base + NetworkCapture.SLOT_DATA,data);
+   
+   StringBuffer sb = new StringBuffer();
+   long ms = basems + ns / 1000000;
+   sb.append(fmt.format(new Date(ms)));
+   sb.append(String.format("%03d",(ns / 1000) % 1000));
+   sb.append(dir == CAPTURE_SEND ? " >> " : " << ");
+   String knm = (kind >= 0 && kind < KIND_NAMES.length) ? KIND_NAMES[kind] : "KIND" + kind;
+   sb.append(String.format("%-6s ",knm));
+   sb.append(addr);
+   sb.append(":");
+   sb.append(port);
+   sb.append(" ");
+   sb.append(getOpcodeName(kind,data));
+   sb.append(" [");
+   sb.append(len);
+   sb.append("]");
+   for (int i = 0; i < dlen; ++i) {
+      sb.append(String.format(" %02x",data[i] & 0xff));
+    }
+   if (dlen < len) sb.append(" ...");
+   
+   return sb.toString();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Opcode names                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+private String getOpcodeName(int kind,byte [] data)
+{
+   if (data.length == 0) return "EMPTY";
+   
+   if (kind == CAPTURE_TOWER) {
+      String nm = control_names.get(data[0]);
+      if (nm != null) return nm;
+    }
+   else {
+      // LocoFi commands share a leading byte; pick the longest matching prefix
+      String best = null;
+      int bestlen = 0;
+      for (Map.Entry<String,byte []> ent : locofi_commands.entrySet()) {
+         byte [] cmd = ent.getValue();
+         int i = 0;
+         while (i < cmd.length && i < data.length && cmd[i] == data[i]) ++i;
+         if (i == 0) continue;
+         if (i > bestlen || (i == bestlen && ent.getKey().compareTo(best) < 0)) {
+            best = ent.getKey();
+            bestlen = i;
+          }
+       }
+      if (best != null) return best;
+    }
+   
+   return String.format("OP_%02x",data[0] & 0xff);
+}
+
+
+
+}       // end of class NetworkCaptureDecoder
+
+
+
+
+/* end of NetworkCaptureDecoder.java */
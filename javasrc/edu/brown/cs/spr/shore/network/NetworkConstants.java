@@ -59,13 +59,69 @@ long    STATUS_DELAY = 500;            // delay between status messages
 int     FINAL_DELAY = 10;               // Multiplier for final delay (of STATUS_DELAY)
 long    HEARTBEAT_TIME = 70000;         // heartbeat check (should be 30000 after updates)
 long    SHORT_DELAY = 10;               // delay for sending a cluster of messages
+long    BATCH_DELAY = 2;                // time to collect commands for a batch
+long    RETRANSMIT_DELAY = 100;         // resend sequenced batches unacked this long
+int     MAX_RETRANSMIT = 5;             // then give up and resync the controller
+int     MAX_UNACKED = 64;               // sequenced batches outstanding per controller
+long    TOWER_SEND_RATE = 100;          // datagrams per second a tower can absorb
+int     TOWER_SEND_BURST = 8;           // datagrams a tower can take back to back
+long    SENSOR_DUPLICATE_WINDOW = 500;  // repeats of a sensor report this soon are dropped
+long    SENSOR_STALE_WINDOW = 10;       // reverts this soon wait for a newer report
 
 long    REPLY_DELAY = 4000;
-long    LOCOFI_STATUS_DELAY = 100;
-int     LOCOFI_FINAL_DELAY = 1;
+long    LOCOFI_TELEMETRY_TIMEOUT = 1000; // telemetry older than this is stale
+
+long    LOCOFI_POLL_FAST = 100;         // state poll for moving or changing engines
+long    LOCOFI_POLL_NORMAL = 500;       // state poll for stopped, running engines
+long    LOCOFI_POLL_SLOW = 2000;        // state poll for shut down engines
+long    LOCOFI_POLL_MAX = 4000;         // upper bound including failure backoff
+long    LOCOFI_CHANGE_WINDOW = 2000;    // engine counts as changing for this long
+long    LOCOFI_HEARTBEAT_INTERVAL = 1000;
+long    LOCOFI_STOP_RETRY = 50;         // resend an unconfirmed all-stop this often
+long    LOCOFI_STOP_TIMEOUT = 1000;     // give up confirming an all-stop after this
 
 int     MAX_NO_STATE_REPLY = 4;
 
+long    REGISTRY_SAVE_DELAY = 5000;     // wait for related changes before saving
+long    REGISTRY_REFRESH = 3600000;     // resave an unchanged device after this long
+long    REGISTRY_EXPIRE = 7L * 24 * 3600000;     // forget devices not seen for a week
+
+String  REGISTRY_FILE = "shore.registry";               // in the user's home
+String  CAPTURE_FILE = "shore.capture";                 // in the user's home
+String  EMULATOR_REGISTRY_FILE = "shore.emulator.registry";   // loopback devices
+
+
+/********************************************************************************/
+/*										*/
+/*	Outbound message priorities						*/
+/*										*/
+/********************************************************************************/
+
+enum NetworkPriority {
+   EMERGENCY,                   // a controller is blocked on it: skips the rate limit
+   SAFETY,                      // protect a train: signals to red, switches
+   PLAN,                        // other operator and plan requests
+   HOUSEKEEPING,                // definitions, resends, sensor setup, sync
+}
+
+
+/********************************************************************************/
+/*										*/
+/*	Packet capture								*/
+/*										*/
+/********************************************************************************/
+
+int	CAPTURE_SLOTS = 8192;		// number of packets kept in the capture ring
+int	CAPTURE_SLOT_SIZE = 128;	// bytes per captured packet (header + data)
+
+byte	CAPTURE_RECEIVE = 0;
+byte	CAPTURE_SEND = 1;
+
+byte	CAPTURE_TOWER = 0;
+byte	CAPTURE_LOCOFI = 1;
+byte	CAPTURE_SPEED = 2;
+byte	CAPTURE_RPM = 3;
+
 
 /********************************************************************************/
 /*										*/
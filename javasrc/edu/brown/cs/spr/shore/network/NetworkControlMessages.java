@@ -35,6 +35,7 @@ byte CONTROL_SETSENSOR  = (byte) 0x46;          // note sensor state
 byte CONTROL_DEFSIGNAL  = (byte) 0x47;          // set type of signal
 byte CONTROL_DEFSWITCH  = (byte) 0x48;          // assoc r-index with switch
 byte CONTROL_REPLY      = (byte) 0x49;          // reply to indicate message received
+byte CONTROL_BATCH      = (byte) 0x4a;          // several commands in one message
 
 
 
@@ -49,6 +50,7 @@ byte CONTROL_SENSOR     = (byte) 0x51;          // sensor set to value
 byte CONTROL_SWITCH     = (byte) 0x52;          // switch set to value
 byte CONTROL_SIGNAL     = (byte) 0x53;          // signal set to value
 byte CONTROL_SENSOR_SYNC = (byte) 0x54;         // sensor set w/ sync request
+byte CONTROL_ACK        = (byte) 0x55;          // sequenced batch received
 
 
 
@@ -74,6 +76,9 @@ byte MESSAGE_SIG_RGY    = 0x1;
 byte MESSAGE_SIG_RG_ANODE = 0x2;
 byte MESSAGE_SIG_RGY_ANODE = 0x3;
 
+byte MESSAGE_CAP_BATCH  = 0x1;                  // capability: accepts CONTROL_BATCH
+byte MESSAGE_CAP_RELIABLE = 0x2;                // capability: acks sequenced batches
+
 byte MESSAGE_SENSOR     = 0x1;
 byte MESSAGE_SWITCH     = 0x2;
 byte MESSAGE_SIGNAL     = 0x3;
@@ -93,6 +98,27 @@ byte MESSAGE_SIGNAL     = 0x3;
 
 //
 //      Heartbeat messages are simple CONTROL_ID with controller id and nothing more
+//      The third byte is 1 on the first message after a restart.  The fourth
+//      byte holds capability flags (MESSAGE_CAP_xxx); older controllers send 0.
+//
+
+
+//
+//      Batch messages (CONTROL_BATCH) are only sent to controllers that report
+//      MESSAGE_CAP_BATCH.  The first 4 bytes are CONTROL_BATCH, the controller
+//      id, the number of commands, and a sequence number (0 if unsequenced).  
+//      These are followed by that many standard 4-byte messages, up to 
+//      BUFFER_SIZE in total.
+//
+
+
+//
+//      Sequenced batches are only sent to controllers that report both
+//      MESSAGE_CAP_BATCH and MESSAGE_CAP_RELIABLE.  Sequence numbers run
+//      1-255 and wrap.  The controller answers each one with CONTROL_ACK,
+//      the controller id, and the sequence number, and acks but does not 
+//      apply a sequence number it has seen recently (a retransmission whose
+//      ack was lost).  Unacked batches are resent individually.
 //
 
 
@@ -0,0 +1,323 @@
+/********************************************************************************/
+/*                                                                              */
+/*              NetworkEmulator.java                                            */
+/*                                                                              */
+/*      Run simulated towers and engines on loopback for testing                */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2023 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2023, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ *  Permission to use, copy, modify, and distribute this software and its        *
+ *  documentation for any purpose other than its incorporation into a            *
+ *  commercial product is hereby granted without fee, provided that the          *
+ *  above copyright notice appear in all copies and that both that               *
+ *  copyright notice and this permission notice appear in supporting             *
+ *  documentation, and that the name of Brown University not be used in          *
+ *  advertising or publicity pertaining to distribution of the software          *
+ *  without specific, written prior permission.                                  *
+ *                                                                               *
+ *  BROWN UNIVERSITY DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS                *
+ *  SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND            *
+ *  FITNESS FOR ANY PARTICULAR PURPOSE.  IN NO EVENT SHALL BROWN UNIVERSITY      *
+ *  BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY          *
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS,              *
+ *  WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS               *
+ *  ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR PERFORMANCE          *
+ *  OF THIS SOFTWARE.                                                            *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+
+
+package edu.brown.cs.spr.shore.network;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import edu.brown.cs.spr.shore.shore.ShoreTimer;
+
+/**
+ *      Starts a set of simulated tower controllers and LocoFi engines so
+ *      that the controller can be exercised, and loaded, without hardware.
+ *      Towers announce themselves to the master; engines are written to the
+ *      emulator's device registry, so the master (run with -a 127.0.0.1,
+ *      which reads that registry) should be started after the emulator.
+ *      Each engine uses its own loopback address (127.1.x.y), which Linux
+ *      provides by default.
+ **/
+
+public class NetworkEmulator implements NetworkConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Main program                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+public static void main(String [] args)
+{
+   NetworkEmulator ne = new NetworkEmulator();
+   ne.scanArgs(args);
+   try {
+      ne.process();
+    }
+   catch (Exception e) {
+      System.err.println("EMULATOR: Problem running emulator: " + e);
+      System.exit(1);
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private String          master_host;
+private int             master_port;
+private int             num_towers;
+private int             num_locos;
+private int             num_sensors;
+private double          sensor_rate;
+private double          packet_loss;
+private long            reply_delay;
+private boolean         use_batch;
+private boolean         use_reliable;
+private File            registry_file;
+private long            run_time;
+
+private List<NetworkTowerSimulator> tower_sims;
+private List<NetworkLocoSimulator> loco_sims;
+private Random          random_gen;
+
+private static final long REPORT_INTERVAL = 10000;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+private NetworkEmulator()
+{
+   master_host = "127.0.0.1";
+   master_port = UDP_PORT;
+   num_towers = 1;
+   num_locos = 0;
+   num_sensors = 16;
+   sensor_rate = 1;
+   packet_loss = 0;
+   reply_delay = 0;
+   use_batch = true;
+   use_reliable = false;
+   registry_file = new File(System.getProperty("user.home"),EMULATOR_REGISTRY_FILE);
+   run_time = 0;
+   tower_sims = new ArrayList<>();
+   loco_sims = new ArrayList<>();
+   random_gen = new Random();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Argument scanning                                                       */
+/*                                                                              */
+/********************************************************************************/
+
+private void scanArgs(String [] args)
+{
+   try {
+      for (int i = 0; i < args.length; ++i) {
+         String arg = args[i];
+         boolean more = i+1 < args.length;
+         if (arg.startsWith("-m") && more) {                    // -master <host>
+            master_host = args[++i];
+          }
+         else if (arg.startsWith("-p") && more) {               // -port <port>
+            master_port = Integer.parseInt(args[++i]);
+          }
+         else if (arg.startsWith("-t") && more) {               // -towers <n>
+            num_towers = Integer.parseInt(args[++i]);
+          }
+         else if (arg.startsWith("-l") && more) {               // -locos <n>
+            num_locos = Integer.parseInt(args[++i]);
+          }
+         else if (arg.startsWith("-s") && more) {               // -sensors <n per tower>
+            num_sensors = Integer.parseInt(args[++i]);
+          }
+         else if (arg.startsWith("-r") && more) {               // -rate <events/sec/tower>
+            sensor_rate = Double.parseDouble(args[++i]);
+          }
+         else if (arg.startsWith("-x") && more) {               // -xloss <fraction>
+            packet_loss = Double.parseDouble(args[++i]);
+          }
+         else if (arg.startsWith("-d") && more) {               // -delay <ms>
+            reply_delay = Long.parseLong(args[++i]);
+          }
+         else if (arg.startsWith("-f") && more) {               // -file <registry>
+            registry_file = new File(args[++i]);
+          }
+         else if (arg.startsWith("-e") && more) {               // -end <seconds>
+            run_time = Long.parseLong(args[++i]) * 1000;
+          }
+         else if (arg.startsWith("-n")) {                       // -nobatch
+            use_batch = false;
+          }
+         else if (arg.startsWith("-q")) {                       // -sequenced
+            use_reliable = true;
+          }
+         else badArgs();
+       }
+    }
+   catch (NumberFormatException e) {
+      badArgs();
+    }
+   
+   if (num_towers < 0 || num_towers > 255 || num_locos < 0 || 
+         num_sensors < 1 || num_sensors > 256) {
+      badArgs();
+    }
+}
+
+
+private void badArgs()
+{
+   System.err.println("EMULATOR -master <host> -port <port> -towers <n> -locos <n> " +
+         "-sensors <n> -rate <events/s> -xloss <fraction> -delay <ms> " + 
+         "-file <registry> -end <seconds> [-nobatch] [-sequenced]");
+   System.exit(1);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Processing methods                                                      */
+/*                                                                              */
+/********************************************************************************/
+
+private void process() throws Exception
+{
+   SocketAddress master = new InetSocketAddress(InetAddress.getByName(master_host),
+         master_port);
+   
+   NetworkRegistry reg = new NetworkRegistry(registry_file);
+   for (int i = 0; i < num_locos; ++i) {
+      byte [] ab = { 127, 1, (byte) (i / 250), (byte) (i % 250 + 1) };
+      String id = "SIM" + i;
+      NetworkLocoSimulator loco = new NetworkLocoSimulator(InetAddress.getByAddress(ab),id);
+      loco.setPacketLoss(packet_loss);
+      loco.setReplyDelay(reply_delay);
+      loco.start();
+      loco_sims.add(loco);
+      reg.noteEngine(loco.getSocketAddress(),id);
+    }
+   reg.saveRegistry();
+   
+   for (int i = 0; i < num_towers; ++i) {
+      NetworkTowerSimulator tower = new NetworkTowerSimulator(master,i+1,use_batch);
+      tower.setPacketLoss(packet_loss);
+      tower.setReplyDelay(reply_delay);
+      tower.setReliable(use_reliable);
+      tower.start();
+      tower_sims.add(tower);
+      if (sensor_rate > 0) {
+         long period = Math.max(1,Math.round(1000.0 / sensor_rate));
+         SensorDriver sd = new SensorDriver(tower);
+         ShoreTimer.getTimer().scheduleRepeating(sd,period,period);
+       }
+    }
+   
+   System.err.println("EMULATOR: " + num_towers + " towers, " + num_locos + 
+         " locos talking to " + master);
+   
+   long start = System.currentTimeMillis();
+   for ( ; ; ) {
+      Thread.sleep(REPORT_INTERVAL);
+      report();
+      if (run_time > 0 && System.currentTimeMillis() - start >= run_time) break;
+    }
+   
+   for (NetworkTowerSimulator tower : tower_sims) tower.stop();
+   for (NetworkLocoSimulator loco : loco_sims) loco.stop();
+   System.exit(0);
+}
+
+
+private void report()
+{
+   long pkts = 0;
+   long cmds = 0;
+   long batches = 0;
+   long dups = 0;
+   for (NetworkTowerSimulator tower : tower_sims) {
+      pkts += tower.getPacketCount();
+      cmds += tower.getCommandCount();
+      batches += tower.getBatchCount();
+      dups += tower.getDuplicateCount();
+    }
+   long reqs = 0;
+   long reps = 0;
+   for (NetworkLocoSimulator loco : loco_sims) {
+      reqs += loco.getRequestCount();
+      reps += loco.getReportCount();
+    }
+   System.err.println("EMULATOR: towers " + pkts + " packets, " + cmds + " commands, " +
+         batches + " batches, " + dups + " duplicates; locos " + reqs + " requests, " + reps + " reports");
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Sensor activity                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private final class SensorDriver implements Runnable {
+
+   private NetworkTowerSimulator for_tower;
+   private boolean [] sensor_on;
+   
+   SensorDriver(NetworkTowerSimulator tower) {
+      for_tower = tower;
+      sensor_on = new boolean[num_sensors];
+    }
+   
+   @Override public void run() {
+      int idx;
+      synchronized (random_gen) {
+         idx = random_gen.nextInt(num_sensors);
+       }
+      sensor_on[idx] = !sensor_on[idx];
+      for_tower.reportSensor(idx,sensor_on[idx]);
+    }
+
+}       // end of inner class SensorDriver
+
+
+
+}       // end of class NetworkEmulator
+
+
+
+
+/* end of NetworkEmulator.java */
@@ -0,0 +1,425 @@
+/********************************************************************************/
+/*                                                                              */
+/*              NetworkLocoSimulator.java                                       */
+/*                                                                              */
+/*      Local stand-in for a LocoFi engine decoder                              */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2023 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2023, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ *  Permission to use, copy, modify, and distribute this software and its        *
+ *  documentation for any purpose other than its incorporation into a            *
+ *  commercial product is hereby granted without fee, provided that the          *
+ *  above copyright notice appear in all copies and that both that               *
+ *  copyright notice and this permission notice appear in supporting             *
+ *  documentation, and that the name of Brown University not be used in          *
+ *  advertising or publicity pertaining to distribution of the software          *
+ *  without specific, written prior permission.                                  *
+ *                                                                               *
+ *  BROWN UNIVERSITY DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS                *
+ *  SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND            *
+ *  FITNESS FOR ANY PARTICULAR PURPOSE.  IN NO EVENT SHALL BROWN UNIVERSITY      *
+ *  BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY          *
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS,              *
+ *  WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS               *
+ *  ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR PERFORMANCE          *
+ *  OF THIS SOFTWARE.                                                            *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+
+
+package edu.brown.cs.spr.shore.network;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Random;
+
+import edu.brown.cs.spr.shore.shore.ShoreTimer;
+import edu.brown.cs.spr.shore.shore.ShoreTimer.TimerHandle;
+
+/**
+ *      Simulated LocoFi decoder.  The engine listens on ALT_PORT of the given
+ *      local address (the master only accepts engine traffic from that port,
+ *      so each simulated engine needs its own address, e.g. 127.1.x.y on
+ *      loopback), answers requests the way the decoder does, and streams 
+ *      speed and rpm reports once they have been requested.
+ **/
+
+public class NetworkLocoSimulator implements NetworkConstants, NetworkLocoFiMessages
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private DatagramSocket  loco_socket;
+private String          loco_id;
+private boolean         front_light;
+private boolean         rear_light;
+private boolean         bell_on;
+private boolean         reverse_on;
+private int             engine_status;
+private int             speed_step;
+private boolean         emergency_stop;
+private boolean         mute_on;
+private byte []         loco_settings;
+private SocketAddress   speed_target;
+private SocketAddress   rpm_target;
+private TimerHandle     report_task;
+private double          packet_loss;
+private long            reply_delay;
+private Random          random_gen;
+private long            request_count;
+private long            report_count;
+private volatile boolean is_running;
+
+private static final long REPORT_INTERVAL = 100;
+private static final int SETTINGS_SIZE = 38;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+public NetworkLocoSimulator(InetAddress local,String id) throws SocketException
+{
+   loco_socket = new DatagramSocket(new InetSocketAddress(local,ALT_PORT));
+   loco_id = id;
+   front_light = false;
+   rear_light = false;
+   bell_on = false;
+   reverse_on = false;
+   engine_status = 0;
+   speed_step = 0;
+   emergency_stop = false;
+   mute_on = false;
+   speed_target = null;
+   rpm_target = null;
+   report_task = null;
+   packet_loss = 0;
+   reply_delay = 0;
+   random_gen = new Random();
+   request_count = 0;
+   report_count = 0;
+   is_running = false;
+   
+   // defaults: 32 notches, start step 0, max step 1023, max display 100
+   loco_settings = new byte[SETTINGS_SIZE];
+   loco_settings[3] = 2;
+   putShort(loco_settings,9,1023);
+   putShort(loco_settings,15,100);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+public SocketAddress getSocketAddress()         { return loco_socket.getLocalSocketAddress(); }
+public String getLocoId()                       { return loco_id; }
+
+public synchronized long getRequestCount()      { return request_count; }
+public synchronized long getReportCount()       { return report_count; }
+public synchronized int getSpeedStep()          { return speed_step; }
+
+/**
+ *      Fraction of packets, in either direction, that are silently dropped.
+ **/
+
+public void setPacketLoss(double p)             { packet_loss = p; }
+
+/**
+ *      Time in ms before each reply is sent.
+ **/
+
+public void setReplyDelay(long ms)              { reply_delay = ms; }
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Start and stop                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+public void start()
+{
+   is_running = true;
+   new ReaderThread().start();
+}
+
+
+public void stop()
+{
+   is_running = false;
+   synchronized (this) {
+      if (report_task != null) report_task.cancel();
+      report_task = null;
+    }
+   loco_socket.close();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Request handling                                                        */
+/*                                                                              */
+/********************************************************************************/
+
+private void handlePacket(byte [] data,int len,SocketAddress from)
+{
+   if (len < 1 || isLost()) return;
+   
+   byte [] reply = null;
+   synchronized (this) {
+      ++request_count;
+      int arg = (len > 1 ? data[1] : 0);
+      switch (data[0]) {
+         case 0x00 :                                    // start/stop engine
+            engine_status = (arg != 0 ? 2 : 0);
+            if (engine_status == 0) speed_step = 0;
+            break;
+         case 0x01 :                                    // direction
+            reverse_on = arg != 0;
+            break;
+         case 0x02 :                                    // throttle
+            speed_step = (len > 2 ? getShort(data,1) : arg & 0xff);
+            break;
+         case 0x03 :
+            front_light = arg != 0;
+            break;
+         case 0x04 :
+            rear_light = arg != 0;
+            break;
+         case 0x05 :                                    // horn/bell
+            if (arg == LOCOFI_BELL_ON_CMD[1] && len > 2) bell_on = data[2] != 0;
+            break;
+         case 0x06 :                                    // rpm report request
+            rpm_target = from;
+            startReports();
+            return;
+         case 0x07 :                                    // speed report request
+            speed_target = from;
+            startReports();
+            return;
+         case 0x08 :                                    // query state
+            reply = getStateReply();
+            break;
+         case 0x0B :                                    // version
+            reply = "1.0.0".getBytes();
+            break;
+         case 0x0D :                                    // settings
+            if (arg == 0) reply = loco_settings.clone();
+            else if (len > 2) {
+               int n = Math.min(len-2,loco_settings.length);
+               System.arraycopy(data,2,loco_settings,0,n);
+             }
+            break;
+         case 0x11 :                                    // about
+            reply = Arrays.copyOf(loco_id.getBytes(),16);
+            break;
+         case 0x12 :                                    // emergency stop
+            emergency_stop = arg == 0;
+            if (emergency_stop) speed_step = 0;
+            break;
+         case 0x17 :
+            mute_on = arg == 0;
+            break;
+         default :
+            break;
+       }
+    }
+   
+   // everything else is acknowledged by echoing the request
+   if (reply == null) reply = Arrays.copyOf(data,len);
+   send(loco_socket,from,reply);
+}
+
+
+private byte [] getStateReply()
+{
+   byte [] rslt = new byte[13];
+   rslt[0] = (byte) (front_light ? 1 : 0);
+   rslt[1] = (byte) (rear_light ? 1 : 0);
+   rslt[2] = (byte) (bell_on ? 1 : 0);
+   rslt[3] = (byte) (reverse_on ? 1 : 0);
+   rslt[4] = (byte) engine_status;
+   putShort(rslt,5,speed_step);
+   putShort(rslt,7,getRpmStep());
+   putShort(rslt,9,getSpeed());
+   rslt[11] = (byte) (emergency_stop ? 1 : 0);
+   rslt[12] = (byte) (mute_on ? 0 : 1);
+   return rslt;
+}
+
+
+private int getRpmStep()
+{
+   if (engine_status == 0) return 0;
+   return speed_step;
+}
+
+
+private int getSpeed()
+{
+   if (emergency_stop || engine_status != 2) return 0;
+   int max = getShort(loco_settings,9);
+   int disp = getShort(loco_settings,15);
+   if (max <= 0) return 0;
+   return speed_step * disp / max;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Telemetry reports                                                       */
+/*                                                                              */
+/********************************************************************************/
+
+private void startReports()
+{
+   if (report_task != null) return;
+   report_task = ShoreTimer.getTimer().scheduleRepeating(this::sendReports,
+         REPORT_INTERVAL,REPORT_INTERVAL);
+}
+
+
+private void sendReports()
+{
+   byte [] spd = null;
+   byte [] rpm = null;
+   SocketAddress st;
+   SocketAddress rt;
+   synchronized (this) {
+      if (engine_status != 2) return;
+      st = speed_target;
+      rt = rpm_target;
+      if (st != null) {
+         spd = new byte[4];
+         putShort(spd,0,speed_step);
+         putShort(spd,2,getSpeed());
+       }
+      if (rt != null) {
+         rpm = new byte[2];
+         putShort(rpm,0,getRpmStep());
+       }
+      ++report_count;
+    }
+   if (spd != null) send(loco_socket,st,spd);
+   if (rpm != null) send(loco_socket,rt,rpm);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Sending methods                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private void send(DatagramSocket sock,SocketAddress to,byte [] msg)
+{
+   if (isLost()) return;
+   if (reply_delay > 0) {
+      ShoreTimer.getTimer().schedule(() -> sendNow(sock,to,msg),reply_delay);
+    }
+   else sendNow(sock,to,msg);
+}
+
+
+private void sendNow(DatagramSocket sock,SocketAddress to,byte [] msg)
+{
+   try {
+      sock.send(new DatagramPacket(msg,msg.length,to));
+    }
+   catch (IOException e) {
+      if (is_running) System.err.println("LOCOSIM: Problem sending: " + e);
+    }
+}
+
+
+private boolean isLost()
+{
+   if (packet_loss <= 0) return false;
+   synchronized (random_gen) {
+      return random_gen.nextDouble() < packet_loss;
+    }
+}
+
+
+private static int getShort(byte [] data,int offset)
+{
+   return (data[offset] & 0xff) + ((data[offset+1] & 0xff) << 8);
+}
+
+
+private static void putShort(byte [] data,int offset,int v)
+{
+   data[offset] = (byte) (v & 0xff);
+   data[offset+1] = (byte) ((v >> 8) & 0xff);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Reader thread                                                           */
+/*                                                                              */
+/********************************************************************************/
+
+private final class ReaderThread extends Thread {
+
+   ReaderThread() {
+      super("LocoSimReader_" + loco_id);
+      setDaemon(true);
+    }
+   
+   @Override public void run() {
+      byte [] buf = new byte[BUFFER_SIZE];
+      DatagramPacket pkt = new DatagramPacket(buf,buf.length);
+      while (is_running) {
+         try {
+            pkt.setLength(buf.length);
+            loco_socket.receive(pkt);
+            handlePacket(buf,pkt.getLength(),pkt.getSocketAddress());
+          }
+         catch (IOException e) {
+            if (is_running) System.err.println("LOCOSIM: Problem reading: " + e);
+          }
+       }
+    }
+
+}       // end of inner class ReaderThread
+
+
+
+}       // end of class NetworkLocoSimulator
+
+
+
+
+/* end of NetworkLocoSimulator.java */
@@ -35,13 +35,17 @@
 
 package edu.brown.cs.spr.shore.network;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.DatagramSocket;
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
 import java.util.Enumeration;
+import java.util.concurrent.CompletableFuture;
 
 import javax.jmdns.JmmDNS;
 import javax.jmdns.ServiceEvent;
@@ -69,11 +73,14 @@ public class NetworkMonitor implements NetworkConstants, NetworkControlMessages,
 /*										*/
 /********************************************************************************/
 
-private DatagramSocket  our_socket;
-private DatagramSocket  alt_socket;
-private DatagramSocket  speed_socket;
-private DatagramSocket  rpm_socket;
+private DatagramChannel our_socket;
+private DatagramChannel alt_socket;
+private DatagramChannel speed_socket;
+private DatagramChannel rpm_socket;
 
+private NetworkCapture network_capture;
+private NetworkRegistry device_registry;
+private NetworkSelector network_selector;
 private NetworkProcessorTower tower_processor;
 private NetworkProcessorLocoFi locofi_processor;
 
@@ -89,6 +96,31 @@ private static boolean dummy_loco = false;
 /********************************************************************************/
 
 public NetworkMonitor(IfaceModel model,IfaceTrains trains)
+{
+   this(model,trains,null);
+}
+
+
+/**
+ *      Create a monitor bound to the given local address rather than the
+ *      wifi interface (e.g. loopback when running against the emulator).
+ *      Loopback devices are kept in the emulator's registry so they never
+ *      end up in the one used with the real layout.
+ **/
+
+public NetworkMonitor(IfaceModel model,IfaceTrains trains,InetAddress local)
+{
+   this(model,trains,local,getDefaultRegistry(local),getDefaultCapture());
+}
+
+
+/**
+ *      Create a monitor using the given device registry and packet capture
+ *      files; null runs without a registry or without capture.
+ **/
+
+public NetworkMonitor(IfaceModel model,IfaceTrains trains,InetAddress local,
+      File registry,File capture)
 {
    if (our_socket != null) {
       try {
@@ -104,33 +136,17 @@ public NetworkMonitor(IfaceModel model,IfaceTrains trains)
       catch (Throwable e) { }
     }
    alt_socket = null;
-   InetAddress useaddr = getWifiInterface();
+   InetAddress useaddr = (local != null ? local : getWifiInterface());
    
    try {
-      our_socket = new DatagramSocket(UDP_PORT,useaddr);
-      our_socket.setReceiveBufferSize(BUFFER_SIZE);
-      our_socket.setReuseAddress(true);
-      our_socket.setSendBufferSize(BUFFER_SIZE);
-      our_socket.setSoTimeout(0);
-      
-//    alt_socket = new DatagramSocket(ALT_PORT,useaddr);
-      alt_socket = new DatagramSocket(0,useaddr);
-      alt_socket.setReceiveBufferSize(BUFFER_SIZE);
-      alt_socket.setReuseAddress(true);
-      alt_socket.setSendBufferSize(BUFFER_SIZE);
-      alt_socket.setSoTimeout(0);
-      
-      speed_socket = new DatagramSocket(0,useaddr);
-      speed_socket.setReceiveBufferSize(BUFFER_SIZE);
-      speed_socket.setReuseAddress(true);
-      speed_socket.setSendBufferSize(BUFFER_SIZE);
-      speed_socket.setSoTimeout(0);
-      
-      rpm_socket = new DatagramSocket(0,useaddr);
-      rpm_socket.setReceiveBufferSize(BUFFER_SIZE);
-      rpm_socket.setReuseAddress(true);
-      rpm_socket.setSendBufferSize(BUFFER_SIZE);
-      rpm_socket.setSoTimeout(0);
+      if (capture != null) network_capture = NetworkCapture.create(capture);
+      if (registry != null) device_registry = new NetworkRegistry(registry);
+      network_selector = new NetworkSelector(network_capture);
+      our_socket = createChannel(useaddr,UDP_PORT);
+//    alt_socket = createChannel(useaddr,ALT_PORT);
+      alt_socket = createChannel(useaddr,0);
+      speed_socket = createChannel(useaddr,0);
+      rpm_socket = createChannel(useaddr,0);
     }
    catch (IOException e) {
       ShoreLog.logE("NETWORK","Can't create Datagram Socket",e);
@@ -139,12 +155,14 @@ public NetworkMonitor(IfaceModel model,IfaceTrains trains)
     }
    
    ShoreLog.logD("NETWORK","Listening for datagrams on " + useaddr + " " +
-         our_socket.getLocalPort() + " " + alt_socket.getLocalPort() + " " +
-         speed_socket.getLocalPort());
+         our_socket.socket().getLocalPort() + " " + alt_socket.socket().getLocalPort() + " " +
+         speed_socket.socket().getLocalPort());
    
-   tower_processor = new NetworkProcessorTower(our_socket,model);
-   locofi_processor = new NetworkProcessorLocoFi(alt_socket,speed_socket,
-         rpm_socket,trains); 
+   tower_processor = new NetworkProcessorTower(network_selector,our_socket,model);
+   locofi_processor = new NetworkProcessorLocoFi(network_selector,alt_socket,
+         speed_socket,rpm_socket,trains); 
+   tower_processor.setRegistry(device_registry);
+   locofi_processor.setRegistry(device_registry);
    
    try {
       JmmDNS jmm = JmmDNS.Factory.getInstance(); 
@@ -178,7 +196,40 @@ public NetworkMonitor(IfaceModel model,IfaceTrains trains)
       ShoreLog.logE("NETWORK","Problem registering service",e);
     }
    
-   ShoreLog.logD("NETWORK","Monitor setup  " + our_socket.getLocalAddress());
+   ShoreLog.logD("NETWORK","Monitor setup  " + our_socket.socket().getLocalAddress());
+}
+
+
+private DatagramChannel createChannel(InetAddress addr,int port) throws IOException
+{
+   DatagramChannel ch = DatagramChannel.open();
+   ch.setOption(StandardSocketOptions.SO_REUSEADDR,true);
+   ch.setOption(StandardSocketOptions.SO_RCVBUF,BUFFER_SIZE);
+   ch.setOption(StandardSocketOptions.SO_SNDBUF,BUFFER_SIZE);
+   ch.bind(new InetSocketAddress(addr,port));
+   
+   return ch;
+}
+
+
+/**
+ *      Registry used when none is given: loopback devices are kept in the
+ *      emulator's registry so they never end up in the real one.
+ **/
+
+public static File getDefaultRegistry(InetAddress local)
+{
+   File f1 = new File(System.getProperty("user.home"));
+   if (local != null && local.isLoopbackAddress()) {
+      return new File(f1,EMULATOR_REGISTRY_FILE);
+    }
+   return new File(f1,REGISTRY_FILE);
+}
+
+
+public static File getDefaultCapture()
+{
+   return new File(System.getProperty("user.home"),CAPTURE_FILE);
 }
 
 
@@ -260,8 +311,9 @@ public void start()
 {
    tower_processor.start();
    locofi_processor.start();
+   network_selector.start();
    
-   ShoreLog.logD("NETWORK","MONITOR STARTED");   
+   ShoreLog.logD("NETWORK","MONITOR STARTED " + Thread.activeCount() + " threads");   
 }
 
 
@@ -320,6 +372,12 @@ public void sendEmergencyStop(IfaceEngine tr,boolean stop)
 }
 
 
+@Override public CompletableFuture<StopReport> stopAllEngines()
+{
+   return locofi_processor.stopAllEngines();
+}
+
+
 @Override public void sendLight(IfaceEngine eng,boolean front,boolean on)  
 {
    locofi_processor.sendLight(eng,front,on);
@@ -0,0 +1,190 @@
+/********************************************************************************/
+/*                                                                              */
+/*              NetworkPacketBenchmark.java                                     */
+/*                                                                              */
+/*      Measure allocation per received packet in the selector loop             */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2023 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2023, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ *  Permission to use, copy, modify, and distribute this software and its        *
+ *  documentation for any purpose other than its incorporation into a            *
+ *  commercial product is hereby granted without fee, provided that the          *
+ *  above copyright notice appear in all copies and that both that               *
+ *  copyright notice and this permission notice appear in supporting             *
+ *  documentation, and that the name of Brown University not be used in          *
+ *  advertising or publicity pertaining to distribution of the software          *
+ *  without specific, written prior permission.                                  *
+ *                                                                               *
+ *  BROWN UNIVERSITY DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS                *
+ *  SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND            *
+ *  FITNESS FOR ANY PARTICULAR PURPOSE.  IN NO EVENT SHALL BROWN UNIVERSITY      *
+ *  BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY          *
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS,              *
+ *  WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS               *
+ *  ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR PERFORMANCE          *
+ *  OF THIS SOFTWARE.                                                            *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+
+package edu.brown.cs.spr.shore.network;
+
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class NetworkPacketBenchmark implements NetworkConstants, NetworkControlMessages
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Main program                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+public static void main(String [] args)
+{
+   int count = 200000;
+   if (args.length > 0) count = Integer.parseInt(args[0]);
+   
+   NetworkPacketBenchmark nb = new NetworkPacketBenchmark(count);
+   try {
+      nb.process();
+    }
+   catch (Exception e) {
+      System.err.println("BENCHMARK: Problem running: " + e);
+      System.exit(1);
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private int             packet_count;
+private AtomicLong      received_count;
+
+private static final int        WARMUP_COUNT = 20000;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+private NetworkPacketBenchmark(int ct)
+{
+   packet_count = ct;
+   received_count = new AtomicLong(0);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Processing methods                                                      */
+/*                                                                              */
+/********************************************************************************/
+
+private void process() throws Exception
+{
+   com.sun.management.ThreadMXBean mx = 
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+   mx.setThreadAllocatedMemoryEnabled(true);
+   
+   InetAddress lcl = InetAddress.getLoopbackAddress();
+   DatagramChannel rcv = DatagramChannel.open();
+   rcv.bind(new InetSocketAddress(lcl,0));
+   DatagramChannel snd = DatagramChannel.open();
+   snd.bind(new InetSocketAddress(lcl,0));
+   InetSocketAddress dest = (InetSocketAddress) rcv.getLocalAddress();
+   
+   NetworkSelector sel = new NetworkSelector(null);
+   sel.addChannel(rcv,null,new CountHandler());
+   sel.start();
+   
+   // tower-sized messages, same shape as a sensor report
+   ByteBuffer msg = ByteBuffer.wrap(new byte [] { CONTROL_SENSOR, 1, 2, 1 });
+   
+   sendPackets(snd,dest,msg,WARMUP_COUNT);
+   
+   long a0 = mx.getThreadAllocatedBytes(sel.getId());
+   long r0 = received_count.get();
+   long t0 = System.nanoTime();
+   sendPackets(snd,dest,msg,packet_count);
+   long t1 = System.nanoTime();
+   long a1 = mx.getThreadAllocatedBytes(sel.getId());
+   long r1 = received_count.get();
+   
+   long nrcv = r1 - r0;
+   System.out.println("Packets sent:       " + packet_count);
+   System.out.println("Packets received:   " + nrcv);
+   System.out.println("Time (ms):          " + (t1-t0)/1000000);
+   if (nrcv > 0) {
+      System.out.println("Bytes per packet:   " + (a1-a0)/nrcv);
+    }
+   
+   snd.close();
+   rcv.close();
+}
+
+
+private void sendPackets(DatagramChannel snd,InetSocketAddress dest,ByteBuffer msg,int ct)
+      throws Exception
+{
+   long start = received_count.get();
+   for (int i = 0; i < ct; ++i) {
+      msg.rewind();
+      snd.send(msg,dest);
+      // keep the receive buffer from overflowing
+      while (i - (received_count.get() - start) > 64) Thread.yield();
+    }
+   
+   long end = System.currentTimeMillis() + 1000;
+   while (received_count.get() - start < ct && System.currentTimeMillis() < end) {
+      Thread.sleep(1);
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Handler that only counts                                                */
+/*                                                                              */
+/********************************************************************************/
+
+private final class CountHandler implements MessageHandler {
+
+   @Override public void handleMessage(DatagramPacket msg) {
+      received_count.incrementAndGet();
+    }
+
+}       // end of inner class CountHandler
+
+
+
+}       // end of class NetworkPacketBenchmark
+
+
+
+
+/* end of NetworkPacketBenchmark.java */
@@ -0,0 +1,158 @@
+/********************************************************************************/
+/*                                                                              */
+/*              NetworkPacketPool.java                                          */
+/*                                                                              */
+/*      Recycled receive buffers for the network selector                       */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2023 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2023, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ *  Permission to use, copy, modify, and distribute this software and its        *
+ *  documentation for any purpose other than its incorporation into a            *
+ *  commercial product is hereby granted without fee, provided that the          *
+ *  above copyright notice appear in all copies and that both that               *
+ *  copyright notice and this permission notice appear in supporting             *
+ *  documentation, and that the name of Brown University not be used in          *
+ *  advertising or publicity pertaining to distribution of the software          *
+ *  without specific, written prior permission.                                  *
+ *                                                                               *
+ *  BROWN UNIVERSITY DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS                *
+ *  SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND            *
+ *  FITNESS FOR ANY PARTICULAR PURPOSE.  IN NO EVENT SHALL BROWN UNIVERSITY      *
+ *  BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY          *
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS,              *
+ *  WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS               *
+ *  ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR PERFORMANCE          *
+ *  OF THIS SOFTWARE.                                                            *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+
+
+package edu.brown.cs.spr.shore.network;
+
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+class NetworkPacketPool implements NetworkConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private Deque<PooledPacket> free_packets;
+private int             num_created;
+
+private static final int        INITIAL_POOL_SIZE = 4;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Create a pool of receive buffers.  The pool is not synchronized; it
+ *      is owned by the selector thread which both acquires and releases.
+ **/
+
+NetworkPacketPool()
+{
+   free_packets = new ArrayDeque<>();
+   num_created = 0;
+   for (int i = 0; i < INITIAL_POOL_SIZE; ++i) {
+      free_packets.push(new PooledPacket());
+      ++num_created;
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Pool methods                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+PooledPacket acquire()
+{
+   PooledPacket pp = free_packets.poll();
+   if (pp == null) {
+      pp = new PooledPacket();
+      ++num_created;
+    }
+   pp.reset();
+   return pp;
+}
+
+
+void release(PooledPacket pp)
+{
+   if (pp != null) free_packets.push(pp);
+}
+
+
+int getCreatedCount()                           { return num_created; }
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Reusable packet                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+static final class PooledPacket {
+   
+   private byte [] packet_data;
+   private ByteBuffer packet_buffer;
+   private DatagramPacket datagram_packet;
+   
+   PooledPacket() {
+      packet_data = new byte[BUFFER_SIZE];
+      packet_buffer = ByteBuffer.wrap(packet_data);
+      datagram_packet = new DatagramPacket(packet_data,packet_data.length);
+    }
+   
+   ByteBuffer getBuffer()                       { return packet_buffer; }
+   
+   void reset() {
+      packet_buffer.clear();
+    }
+   
+   /**
+    *    Set up the datagram packet after a receive into the buffer.  The
+    *    packet is only valid until the buffer is released.
+    **/
+   
+   DatagramPacket setupPacket(SocketAddress from) {
+      datagram_packet.setData(packet_data,0,packet_buffer.position());
+      datagram_packet.setSocketAddress(from);
+      return datagram_packet;
+    }
+   
+}       // end of inner class PooledPacket
+
+
+
+}       // end of class NetworkPacketPool
+
+
+
+
+/* end of NetworkPacketPool.java */
@@ -35,17 +35,14 @@
 
 package edu.brown.cs.spr.shore.network;
 
-import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import javax.jmdns.ServiceInfo;
 
@@ -61,7 +58,13 @@ abstract class NetworkProcessor implements NetworkConstants, NetworkConstants.Me
 /*                                                                              */
 /********************************************************************************/
 
-protected DatagramSocket        our_socket;
+protected DatagramChannel       our_channel;
+private NetworkSelector         network_selector;
+private NetworkCapture          network_capture;
+private NetworkRegistry         device_registry;
+private NetworkStats            network_stats;
+
+private static final int        SEND_RETRIES = 100;
 
 
 /********************************************************************************/
@@ -70,12 +73,36 @@ protected DatagramSocket        our_socket;
 /*                                                                              */
 /********************************************************************************/
 
-protected NetworkProcessor(DatagramSocket sock)
+protected NetworkProcessor(NetworkSelector sel,DatagramChannel ch)
 {
-   our_socket = sock;
+   network_selector = sel;
+   network_capture = sel.getCapture();
+   our_channel = ch;
+   device_registry = null;
+   network_stats = new NetworkStats(this);
 }
 
 
+/**
+ *      Set the registry of known devices.  Known devices are probed when
+ *      the processor starts and the registry is updated as devices identify
+ *      themselves.
+ **/
+
+void setRegistry(NetworkRegistry reg)                   { device_registry = reg; }
+
+protected NetworkRegistry getRegistry()                 { return device_registry; }
+
+NetworkStats getStats()                                 { return network_stats; }
+
+
+/**
+ *      Add processor-specific counters to those reported through JMX.
+ **/
+
+protected void addCounters(Map<String,Long> cnts)       { }
+
+
 /********************************************************************************/
 /*                                                                              */
 /*      Start methods                                                           */
@@ -84,8 +111,8 @@ protected NetworkProcessor(DatagramSocket sock)
 
 void start()
 {
-   ReaderThread rt = new ReaderThread(our_socket,this);
-   rt.start();
+   network_selector.addChannel(our_channel,this,this);
+   network_stats.register(getClass().getSimpleName().replace("NetworkProcessor",""));
    Thread upd = getStatusUpdater();
    if (upd != null) upd.start();
 }
@@ -94,6 +121,7 @@ void start()
 @Override public abstract void handleMessage(DatagramPacket msg);
 protected abstract Thread getStatusUpdater();
 protected abstract void handleServiceResolved(ServiceInfo si);
+protected abstract byte getCaptureKind(DatagramChannel ch);
 
 
 /********************************************************************************/
@@ -102,27 +130,34 @@ protected abstract void handleServiceResolved(ServiceInfo si);
 /*                                                                              */
 /********************************************************************************/
 
-protected synchronized void sendMessage(SocketAddress who,byte [] msg,int off,int len)
+protected void sendMessage(SocketAddress who,byte [] msg,int off,int len)
 {
-   sendMessage(our_socket,who,msg,off,len);
+   sendMessage(our_channel,who,msg,off,len);
 }
 
 
 
-protected synchronized void sendMessage(DatagramSocket sock,
+protected void sendMessage(DatagramChannel ch,
       SocketAddress who,byte [] msg,int off,int len)
 {
-   if (sock == null) return;
+   if (ch == null || who == null) return;
    
-   String msgtxt = decodeMessage(msg,off,len);
-   ShoreLog.logD("NETWORK","Send " + msgtxt + " >> " + who);
+   if (network_capture != null) {
+      network_capture.captureSend(getCaptureKind(ch),who,msg,off,len);
+    }
+   if (len > 0) network_stats.noteSend(msg[off],len);
    
-   DatagramPacket packet = new DatagramPacket(msg,off,len,who);
+   // channels are non-blocking for the selector; retry if the send buffer is full
+   ByteBuffer buf = ByteBuffer.wrap(msg,off,len);
    try {
-      sock.send(packet);
+      for (int i = 0; i < SEND_RETRIES; ++i) {
+         if (ch.send(buf,who) > 0) return;
+         Thread.yield();
+       }
+      ShoreLog.logE("NETWORK","Send buffer full, packet dropped " + who);
     }
    catch (Throwable e) {
-      ShoreLog.logE("Problem sending packet " + who + " " + sock,e);
+      ShoreLog.logE("Problem sending packet " + who + " " + ch,e);
     }
 }
 
@@ -131,6 +166,14 @@ protected synchronized void sendMessage(DatagramSocket sock,
 protected void checkSync(DatagramPacket packet)                 { }
 
 
+void captureReceive(DatagramChannel ch,DatagramPacket packet)
+{
+   if (network_capture != null) {
+      network_capture.captureReceive(getCaptureKind(ch),packet);
+    }
+}
+
+
 @SuppressWarnings("unchecked")
 protected <T extends Enum<T>> T getState(int v,T dflt)
 {
@@ -145,21 +188,6 @@ protected <T extends Enum<T>> T getState(int v,T dflt)
 }
 
 
-protected static String decodeMessage(byte [] msg,int off,int len)
-{
-   StringBuffer buf = new StringBuffer();
-   for (int i = 0; i <len; ++i) {
-      int v = msg[off+i] & 0xff;
-      String vs = Integer.toHexString(v);
-      if (vs.length() == 1) vs = "0" + vs;
-      buf.append(vs);
-      buf.append(" ");
-    }
-   return buf.toString();
-}
-
-
-
 protected SocketAddress getServiceSocket(ServiceInfo si,Map<?,?> known)
 {
    InetAddress [] possibles = si.getInet4Addresses();
@@ -193,107 +221,13 @@ protected SocketAddress getServiceSocket(ServiceInfo si,Map<?,?> known)
 }
 
 
-protected void startReader(DatagramSocket ds,MessageHandler hdlr)
+protected void startReader(DatagramChannel ch,MessageHandler hdlr)
 {
-   ReaderThread rt = new ReaderThread(ds,hdlr);
-   rt.start();
+   network_selector.addChannel(ch,this,hdlr);
 }
 
 
 
-/********************************************************************************/
-/*                                                                              */
-/*      Processing thread                                                       */
-/*                                                                              */
-/********************************************************************************/
-
-private final class MessageThread extends Thread {
-
-   private MessageHandler message_handler;
-   private BlockingQueue<DatagramPacket> message_queue;
-   
-   MessageThread(MessageHandler handler) {
-      super("UDP_MESSAGE_PROCESSOR");
-      message_handler = handler;
-      message_queue = new LinkedBlockingQueue<DatagramPacket>();
-    }
-   
-   void processMessage(DatagramPacket packet) {
-      String msgtxt = decodeMessage(packet.getData(),packet.getOffset(),packet.getLength());
-      ShoreLog.logD("NETWORK","Queue message from " + packet.getAddress() + " " +
-            packet.getPort() + " " + message_queue.size() + ": " + msgtxt);
-      message_queue.offer(packet);
-    }
-   
-   @Override public void run() {
-      for ( ; ; ) {
-         try {
-            DatagramPacket packet = message_queue.take();
-            message_handler.handleMessage(packet);
-          }
-         catch (InterruptedException e) {
-            ShoreLog.logE("NETWORK","Message processing interrupted",e);
-          }
-         catch (Throwable t) {
-            ShoreLog.logE("NETWORK","Problem processing message",t);
-          }
-       }
-    }
-   
-}       // end of inner class MessageThread
-
-
-/********************************************************************************/
-/*                                                                              */
-/*      Reader Thread                                                           */
-/*                                                                              */
-/********************************************************************************/
-
-private class ReaderThread extends Thread {
-
-   private DatagramSocket reader_socket;
-   private MessageHandler message_handler;
-   private MessageThread message_thread;
-   
-   ReaderThread(DatagramSocket s,MessageHandler hdlr) {
-      super("UDP_READER_" + s.getLocalPort());
-      reader_socket = s;
-      if (hdlr == null) hdlr = NetworkProcessor.this;
-      message_handler = hdlr;
-      message_thread = new MessageThread(message_handler);
-      message_thread.start();
-    }
-   
-   @Override public void run() {
-      while (reader_socket != null) {
-         byte [] buf = new byte[BUFFER_SIZE];
-         DatagramPacket packet = new DatagramPacket(buf,buf.length);
-         try {
-            reader_socket.receive(packet);
-            checkSync(packet);
-            if (message_thread != null) {
-               message_thread.processMessage(packet);
-             }
-            else {
-               message_handler.handleMessage(packet);
-             }
-          }
-         catch (SocketTimeoutException e) { }
-         catch (IOException e) {
-            ShoreLog.logE("Problem reading UDP",e);
-            // possibly recreate our_socket or set to null
-          }
-         catch (Throwable t) {
-            ShoreLog.logE("Problem processing message",t);
-          }
-         //    ShoreLog.logD("NETWORK","FINISH PACKET");
-       }
-    }
-
-}	// end of inner class ReaderThread
-
-
-
 
 
 }       // end of class NetworkProcessor
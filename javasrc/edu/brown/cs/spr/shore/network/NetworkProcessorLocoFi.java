@@ -36,21 +36,30 @@
 package edu.brown.cs.spr.shore.network;
 
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jmdns.ServiceInfo;
 
 import edu.brown.cs.spr.shore.iface.IfaceEngine;
+import edu.brown.cs.spr.shore.iface.IfaceNetwork;
 import edu.brown.cs.spr.shore.iface.IfaceTrains;
 import edu.brown.cs.spr.shore.shore.ShoreLog;
+import edu.brown.cs.spr.shore.shore.ShoreTimer;
+import edu.brown.cs.spr.shore.shore.ShoreTimer.TimerHandle;
 
 class NetworkProcessorLocoFi extends NetworkProcessor implements NetworkLocoFiMessages
 {
@@ -64,9 +73,13 @@ class NetworkProcessorLocoFi extends NetworkProcessor implements NetworkLocoFiMe
 
 private IfaceTrains     engine_model;
 private Map<SocketAddress,EngineInfo> engine_map;
-private Map<SocketAddress,ReplyHandler> reply_map;
-private DatagramSocket speed_socket;
-private DatagramSocket rpm_socket;
+private Map<IfaceEngine,EngineInfo> engine_index;
+private Map<String,EngineInfo> engine_ids;
+private DatagramChannel speed_socket;
+private DatagramChannel rpm_socket;
+private AtomicLong      throttle_count;
+private AtomicLong      throttle_coalesced;
+private LocoFiStatusUpdater status_updater;
 
 
 /********************************************************************************/
@@ -75,15 +88,19 @@ private DatagramSocket rpm_socket;
 /*                                                                              */
 /********************************************************************************/
 
-NetworkProcessorLocoFi(DatagramSocket sock,DatagramSocket speed,
-      DatagramSocket rpm,IfaceTrains trains)
+NetworkProcessorLocoFi(NetworkSelector sel,DatagramChannel sock,DatagramChannel speed,
+      DatagramChannel rpm,IfaceTrains trains)
 {
-   super(sock);
+   super(sel,sock);
    engine_model = trains;
    engine_map = new ConcurrentHashMap<>();
-   reply_map = new ConcurrentHashMap<>();
+   engine_index = new ConcurrentHashMap<>();
+   engine_ids = new ConcurrentHashMap<>();
    speed_socket = speed;
    rpm_socket = rpm;
+   throttle_count = new AtomicLong(0);
+   throttle_coalesced = new AtomicLong(0);
+   status_updater = new LocoFiStatusUpdater();
    startReader(speed,new SpeedHandler());
    startReader(rpm,new RpmHandler());
 }
@@ -159,6 +176,11 @@ void sendStartStopEngine(IfaceEngine eng,boolean start)
 }
 
 
+/**
+ *      Emergency stop does not wait for a reply and so never sits behind 
+ *      other requests to the engine.
+ **/
+
 void sendEmergencyStop(IfaceEngine eng,boolean stop)
 {
    EngineInfo ei = findEngineInfo(eng);
@@ -168,6 +190,34 @@ void sendEmergencyStop(IfaceEngine eng,boolean stop)
 }
 
 
+/**
+ *      Stop every engine we talk to.  The stops go out back to back without
+ *      waiting on any engine's request queue.  Each engine then gets the stop
+ *      resent every LOCOFI_STOP_RETRY until it echoes it or reports itself
+ *      stopped, for up to LOCOFI_STOP_TIMEOUT.  Engines that haven't been 
+ *      identified are stopped but are only counted in the report.
+ **/
+
+CompletableFuture<IfaceNetwork.StopReport> stopAllEngines()
+{
+   List<EngineInfo> eis = new ArrayList<>(engine_map.values());
+   List<CompletableFuture<Long>> waits = new ArrayList<>();
+   for (EngineInfo ei : eis) {
+      waits.add(ei.startAllStop());
+    }
+   
+   CompletableFuture<?> all = CompletableFuture.allOf(waits.toArray(new CompletableFuture<?>[0]));
+   return all.thenApply((v) -> {
+      AllStopReport rpt = new AllStopReport();
+      for (int i = 0; i < eis.size(); ++i) {
+         rpt.addEngine(eis.get(i).getEngine(),waits.get(i).join());
+       }
+      ShoreLog.logI("NETWORK","All stop " + rpt);
+      return rpt;
+    });
+}
+
+
 void sendReboot(IfaceEngine eng)
 {
    EngineInfo ei = findEngineInfo(eng);
@@ -185,6 +235,23 @@ void sendCarCount(IfaceEngine eng,int ct)
 }
 
 
+/**
+ *      Return the number of throttle requests made and the number that 
+ *      were replaced by a newer setting before being sent.
+ **/
+
+long getThrottleCount()                         { return throttle_count.get(); }
+long getThrottleCoalesced()                     { return throttle_coalesced.get(); }
+
+
+@Override protected void addCounters(Map<String,Long> cnts)
+{
+   cnts.put("throttleRequests",getThrottleCount());
+   cnts.put("throttleCoalesced",getThrottleCoalesced());
+   cnts.put("engines",(long) engine_map.size());
+}
+
+
 /********************************************************************************/
 /*                                                                              */
 /*      Engines query methods                                                   */
@@ -195,12 +262,7 @@ private IfaceEngine findEngine(String nameid)
 {
    if (nameid == null) return null;
    
-   for (IfaceEngine eng : engine_model.getAllEngines()) {
-      if (nameid.equals(eng.getEngineId())) return eng;
-      if (nameid.equals(eng.getEngineName())) return eng;  
-    }
-   
-   return null;
+   return engine_model.findTrain(nameid);
 }
 
 
@@ -213,17 +275,43 @@ private IfaceEngine findEngine(String nameid)
 
 private EngineInfo findEngineInfo(IfaceEngine eng)
 {
-   for (EngineInfo ei : engine_map.values()) {
-      if (eng.getEngineId() != null && eng.getEngineId().equals(ei.getEngineId())) {
-         return ei;
-       }
-      if (eng.getEngineAddress() != null && 
-            eng.getEngineAddress().equals(ei.getSocketAddress())) {
-         return ei;
-       }
-    }
+   if (eng == null) return null;
    
-   return null;
+   EngineInfo ei = engine_index.get(eng);
+   if (ei != null) return ei;
+   
+   SocketAddress sa = eng.getEngineAddress();
+   if (sa != null) ei = engine_map.get(sa);
+   if (ei == null && eng.getEngineId() != null) ei = engine_ids.get(eng.getEngineId());
+   
+   return ei;
+}
+
+
+/**
+ *      Record the engine id and model engine of a controller once its about
+ *      reply has arrived so that commands and replies can find each other
+ *      without scanning.
+ **/
+
+private void indexEngine(EngineInfo ei)
+{
+   String id = ei.getEngineId();
+   if (id == null) return;
+   engine_ids.put(id,ei);
+   
+   IfaceEngine eng = findEngine(id);
+   ei.setEngine(eng);
+   if (eng != null) engine_index.put(eng,ei);
+}
+
+
+private void unindexEngine(EngineInfo ei)
+{
+   String id = ei.getEngineId();
+   if (id != null) engine_ids.remove(id,ei);
+   IfaceEngine eng = ei.getEngine();
+   if (eng != null) engine_index.remove(eng,ei);
 }
 
 
@@ -250,19 +338,26 @@ private EngineInfo setupEngine(SocketAddress sa)
       EngineInfo nei = engine_map.putIfAbsent(sa,ei);
       if (nei != null) ei = nei;
       else {
+         // requests to an engine are answered in order, so later replies
+         // will see the engine id set by the query about reply
+         EngineInfo fei = ei;
          ei.sendClearConsist();
-         ei.sendQueryAboutMessage();
-         ShoreLog.logD("NETWORK","New engine " + sa + " " + ei.getEngineId());
-         IfaceEngine eng = findEngine(ei.getEngineId());
-         engine_model.setEngineSocket(eng,sa);
+         ei.sendQueryAboutMessage().thenAccept((ok) -> {
+            ShoreLog.logD("NETWORK","New engine " + sa + " " + fei.getEngineId());
+            NetworkRegistry reg = getRegistry();
+            if (ok && reg != null) reg.noteEngine(sa,fei.getEngineId());
+            engine_model.setEngineSocket(fei.getEngine(),sa);
+          });
          ei.sendQuerySettingsMessage();
          ei.sendQueryVersionMessage();
          ei.sendQueryStateMessage();
          ei.sendSpeedReportMessage();
          ei.sendRpmReportMessage();
          ei.sendCarCount(0);
-         ei.sendHeartbeatMessage(true);
-         ei.noteSetup();
+         ei.sendHeartbeatMessage(true).thenAccept((ok) -> {
+            fei.noteSetup();
+            status_updater.schedulePoll(fei,0);
+          });
        }
     }
    
@@ -277,45 +372,24 @@ private EngineInfo setupEngine(SocketAddress sa)
 /*                                                                              */
 /********************************************************************************/
 
-private synchronized byte [] sendReplyMessage(SocketAddress who,byte[] msg,int off,int len)
-{
-   ReplyHandler rh = new ReplyHandler();
-   reply_map.put(who,rh);
-   sendMessage(who,msg,off,len);
-   
-   byte[] reply = rh.getReply();
-   if (reply == null) {
-      ShoreLog.logI("NETWORK","No reply received from " + who + " " + msg[0]);
-    }
-   return reply;
-}
-
-
-
 @Override public void handleMessage(DatagramPacket msg)
 {
-   String msgtxt = decodeMessage(msg.getData(),msg.getOffset(),msg.getLength());
-   ShoreLog.logD("NETWORK","Received loco from " + msg.getAddress() + " " +
-         msg.getPort() + " " + msg.getLength() + " " + msg.getOffset() + ": " +
-         msgtxt);
-   
    if (msg.getPort() != ALT_PORT) {
       return;
     }
    
    SocketAddress sa = msg.getSocketAddress();
-   ReplyHandler rh = reply_map.remove(sa);
-   if (rh != null) {
-      byte [] rslt = new byte[msg.getLength()];
-      System.arraycopy(msg.getData(),msg.getOffset(),rslt,
-            0,msg.getLength());
-      if (!rh.handleReply(rslt)) {
-         ShoreLog.logE("NETWORK","Late message from engine");
-       }
+   EngineInfo ei = engine_map.get(sa);
+   if (ei == null) {
+      ShoreLog.logI("NETWORK","Message from unknown engine " + sa);
+      return;
     }
-   else {
-      ShoreLog.logI("NETWORK","Unsolicited message from engine");
-      // if we get here, we should spawn a thread to handle the request
+   
+   byte [] rslt = new byte[msg.getLength()];
+   System.arraycopy(msg.getData(),msg.getOffset(),rslt,
+         0,msg.getLength());
+   if (!ei.handleReply(rslt)) {
+      ShoreLog.logI("NETWORK","Unsolicited or late message from engine " + sa);
     }
 }
 
@@ -328,148 +402,278 @@ private synchronized byte [] sendReplyMessage(SocketAddress who,byte[] msg,int o
 
 @Override protected Thread getStatusUpdater()
 {
-   return new LocoFiStatusUpdater();
+   // polling is driven by the shared timer rather than a dedicated thread
+   return null;
+}
+
+
+@Override void start()
+{
+   super.start();
+   // contact engines from previous runs without waiting for mDNS
+   NetworkRegistry reg = getRegistry();
+   if (reg != null) {
+      for (SocketAddress sa : reg.getEngines()) {
+         setupEngine(sa);
+       }
+    }
+   status_updater.start();
+}
+
+
+@Override protected byte getCaptureKind(DatagramChannel ch)
+{
+   if (ch == speed_socket) return CAPTURE_SPEED;
+   else if (ch == rpm_socket) return CAPTURE_RPM;
+   return CAPTURE_LOCOFI;
 }
 
 
-private final class LocoFiStatusUpdater extends Thread {
+/**
+ *      Polls each engine on its own schedule.  The interval depends on what
+ *      the engine is doing: moving or recently changed engines are polled
+ *      quickly, stopped ones at a moderate rate, and shut down ones (or ones
+ *      streaming telemetry) slowly.  The interval never drops below a small
+ *      multiple of the engine's observed reply latency, and backs off while
+ *      an engine fails to answer.
+ **/
 
-   private Map<EngineInfo,Integer> bad_count;
+private final class LocoFiStatusUpdater {
    
-   LocoFiStatusUpdater() {
-      super("ShoreLocoFiStatusUpdater");
-      setDaemon(true);
-      bad_count = new HashMap<>();
+   void start() {
+      for (EngineInfo ei : engine_map.values()) {
+         if (ei.isSetup()) schedulePoll(ei,0);
+       }
     }
    
-   @Override public void run() {
-      for ( ; ; ) {
-         List<EngineInfo> todel = null;
-         for (EngineInfo ei : engine_map.values()) {
-            if (!ei.isSetup()) continue;
-            ei.sendHeartbeatMessage(true);
-            if (ei.sendQueryStateMessage()) {
-               bad_count.remove(ei);
-               delay();
-             }
-            else {
-               // check if engine is dead
-               Integer iv = bad_count.get(ei);
-               if (iv == null) iv = 0;
-               bad_count.put(ei,iv+1);
-               if (iv > MAX_NO_STATE_REPLY) { 
-                  ShoreLog.logE("NETWORK","Engine " + ei.getEngineId() +
-                        " " + ei.getSocketAddress() + " timed out");
-                  IfaceEngine eng = findEngine(ei.getEngineId());
-                  if (eng !=  null) {
-                     engine_model.setEngineSocket(eng,null);
-                   }
-                  if (todel == null) todel = new ArrayList<>();
-                  todel.add(ei);
-                }
-             }
+   void schedulePoll(EngineInfo ei,long delay) {
+      ei.setPollTask(ShoreTimer.getTimer().schedule(() -> pollEngine(ei),delay));
+    }
+   
+   private void pollEngine(EngineInfo ei) {
+      if (engine_map.get(ei.getSocketAddress()) != ei) return;
+      
+      long now = System.currentTimeMillis();
+      if (now - ei.getLastHeartbeat() >= LOCOFI_HEARTBEAT_INTERVAL) {
+         ei.noteHeartbeat(now);
+         ei.sendHeartbeatMessage(true);
+       }
+      
+      ei.sendQueryStateMessage().exceptionally((t) -> false).thenAccept((ok) -> {
+         long latency = System.currentTimeMillis() - now;
+         if (ok) {
+            ei.notePollReply(latency);
+            schedulePoll(ei,computeInterval(ei));
           }
-         if (todel != null) {
-            for (EngineInfo ei : todel) {
-               ShoreLog.logD("NETWORK","Engine " + ei.getEngineId() + " not responsive");
-               engine_map.remove(ei.getSocketAddress());
-               IfaceEngine eng = findEngine(ei.getEngineId());
-               if (eng != null) {
-                  engine_model.setEngineSocket(eng,null);
-                  eng.setNotPresent();
-                } 
-             }
+         else if (ei.notePollFailure() > MAX_NO_STATE_REPLY) {
+            removeEngine(ei);
           }
-         finalDelay();
-       }
+         else {
+            long delay = computeInterval(ei) << Math.min(ei.getPollFailures(),4);
+            schedulePoll(ei,Math.min(delay,LOCOFI_POLL_MAX));
+          }
+       });
     }
    
-   private void delay() {
-//    checkHeartbeat();
-      try {
-         Thread.sleep(LOCOFI_STATUS_DELAY);  
+   private long computeInterval(EngineInfo ei) {
+      long delay = LOCOFI_POLL_SLOW;
+      IfaceEngine eng = ei.getEngine();
+      if (eng != null) {
+         switch (eng.getEngineState()) {
+            case RUNNING :
+            case READY :
+               if (eng.getSpeed() > 0 || eng.getThrottle() > eng.getStartSpeed()) {
+                  delay = LOCOFI_POLL_FAST;
+                }
+               else delay = LOCOFI_POLL_NORMAL;
+               break;
+            case STARTUP :
+            case SHUTDOWN :
+               delay = LOCOFI_POLL_NORMAL;
+               break;
+            default :
+               break;
+          }
+       }
+      long now = System.currentTimeMillis();
+      if (now - ei.getLastChange() < LOCOFI_CHANGE_WINDOW) {
+         delay = LOCOFI_POLL_FAST;
        }
-      catch (InterruptedException e) { }
+      // speed and rpm arrive by push; state only covers lights, bell, etc.
+      if (ei.hasTelemetry()) delay = Math.max(delay,LOCOFI_POLL_SLOW);
+      delay = Math.max(delay,2 * ei.getPollLatency());
+      return Math.min(delay,LOCOFI_POLL_MAX);
     }
    
-   private void finalDelay() {
-      for (int i = 0; i < LOCOFI_FINAL_DELAY; ++i) {
-         delay();
-       }
+   private void removeEngine(EngineInfo ei) {
+      ShoreLog.logE("NETWORK","Engine " + ei.getEngineId() +
+            " " + ei.getSocketAddress() + " timed out");
+      ShoreLog.logD("NETWORK","Engine " + ei.getEngineId() + " not responsive " +
+            ei.getThrottleSent() + " throttle sent " + 
+            ei.getThrottleReplaced() + " coalesced");
+      engine_map.remove(ei.getSocketAddress(),ei);
+      unindexEngine(ei);
+      ei.cancelRequests();
+      IfaceEngine eng = ei.getEngine();
+      if (eng != null) {
+         engine_model.setEngineSocket(eng,null);
+         eng.setNotPresent();
+       } 
     }
-}
+   
+}       // end of inner class LocoFiStatusUpdater
 
 
 /********************************************************************************/
 /*                                                                              */
-/*      General reply handler                                                   */
+/*      All-stop results                                                        */
 /*                                                                              */
 /********************************************************************************/
 
-private final class ReplyHandler {
+private static final class AllStopReport implements IfaceNetwork.StopReport {
 
-   private byte [] reply_data;
-   private boolean is_done;
+   private Map<IfaceEngine,Long> stop_times;
+   private int unknown_unconfirmed;
+   private long unknown_worst;
    
-   ReplyHandler() {
-      reply_data = null;
-      is_done = false;
+   AllStopReport() {
+      stop_times = new LinkedHashMap<>();
+      unknown_unconfirmed = 0;
+      unknown_worst = 0;
     }
    
-   synchronized boolean handleReply(byte [] data) {
-      if (is_done) return false;
-      reply_data = data;
-      is_done = true;
-      notifyAll();
-      return true;
+   void addEngine(IfaceEngine eng,long time) {
+      if (eng != null) stop_times.put(eng,time);
+      else if (time < 0) ++unknown_unconfirmed;
+      else unknown_worst = Math.max(unknown_worst,time);
     }
    
-   byte [] getReply() {
-      // only wait for reply data time
-      if (reply_data == null) {
-         synchronized (this) {
-            try {
-               wait(REPLY_DELAY);
-             }
-            catch (InterruptedException e) { }
-            is_done = true;
-          }
+   @Override public Collection<IfaceEngine> getStoppedEngines() {
+      List<IfaceEngine> rslt = new ArrayList<>();
+      for (Map.Entry<IfaceEngine,Long> ent : stop_times.entrySet()) {
+         if (ent.getValue() >= 0) rslt.add(ent.getKey());
        }
-      return reply_data;
+      return rslt;
     }
+   
+   @Override public Collection<IfaceEngine> getUnconfirmedEngines() {
+      List<IfaceEngine> rslt = new ArrayList<>();
+      for (Map.Entry<IfaceEngine,Long> ent : stop_times.entrySet()) {
+         if (ent.getValue() < 0) rslt.add(ent.getKey());
+       }
+      return rslt;
+    }
+   
+   @Override public long getStopTime(IfaceEngine eng) {
+      Long t = stop_times.get(eng);
+      return (t == null ? -1 : t);
+    }
+   
+   @Override public long getWorstStopTime() {
+      long max = unknown_worst;
+      for (long t : stop_times.values()) max = Math.max(max,t);
+      return max;
+    }
+   
+   @Override public boolean isComplete() {
+      return unknown_unconfirmed == 0 && !stop_times.containsValue(-1L);
+    }
+   
+   @Override public String toString() {
+      StringBuffer buf = new StringBuffer();
+      for (Map.Entry<IfaceEngine,Long> ent : stop_times.entrySet()) {
+         if (buf.length() > 0) buf.append(", ");
+         buf.append(ent.getKey().getEngineName());
+         buf.append("=");
+         if (ent.getValue() < 0) buf.append("unconfirmed");
+         else buf.append(ent.getValue() + "ms");
+       }
+      if (unknown_unconfirmed > 0) {
+         if (buf.length() > 0) buf.append(", ");
+         buf.append(unknown_unconfirmed + " unidentified unconfirmed");
+       }
+      return "[" + buf + "] worst " + getWorstStopTime() + "ms";
+    }
+   
+}       // end of inner class AllStopReport
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Outstanding request                                                     */
+/*                                                                              */
+/********************************************************************************/
+
+private static final class PendingRequest {
+
+   private volatile byte [] request_data;
+   private CompletableFuture<byte []> reply_future;
+   private volatile long start_time;
+   private volatile boolean is_dropped;
+   
+   PendingRequest(byte [] msg) {
+      request_data = msg;
+      reply_future = new CompletableFuture<>();
+      start_time = 0;
+      is_dropped = false;
+    }
+   
+   boolean isDropped()                                  { return is_dropped; }
+   void noteDropped()                                   { is_dropped = true; }
+   
+   long getStartTime()                                  { return start_time; }
+   void noteStarted()                                   { start_time = System.currentTimeMillis(); }
+   
+   byte [] getRequest()                                 { return request_data; }
+   void setRequest(byte [] msg)                         { request_data = msg; }
+   CompletableFuture<byte []> getFuture()               { return reply_future; }
+
+}       // end of inner class PendingRequest
 
-}
 
 
+/**
+ *      Speed reports carry the current speed step and the measured speed,
+ *      each as a little-endian short.
+ **/
 
 private final class SpeedHandler implements MessageHandler {
 
    @Override public void handleMessage(DatagramPacket msg) {
-      String msgtxt = decodeMessage(msg.getData(),msg.getOffset(),msg.getLength());
-      ShoreLog.logD("NETWORK","Received SPEED from " + msg.getAddress() + " " +
-            msg.getPort() + " " + msg.getLength() + " " + msg.getOffset() + ": " +
-            msgtxt);
-      
-      if (msg.getPort() != ALT_PORT) {
+      if (msg.getPort() != ALT_PORT || msg.getLength() < 4) {
+         return;
+       }
+      EngineInfo ei = engine_map.get(msg.getSocketAddress());
+      if (ei == null) return;
+      byte [] data = msg.getData();
+      if (msg.getLength() > 4) {
+         // state replies to the queries made while stopping
+         ei.handleStopState(Arrays.copyOfRange(data,msg.getOffset(),
+               msg.getOffset() + msg.getLength()));
          return;
        }
+      int off = msg.getOffset();
+      ei.handleTelemetry(getShort(data,off),-1,getShort(data,off+2));
     }
    
 }       // end of inner class SpeedHandler
 
 
 
+/**
+ *      Rpm reports carry the current rpm step as a little-endian short.
+ **/
+
 private final class RpmHandler implements MessageHandler {
    
    @Override public void handleMessage(DatagramPacket msg) {
-      String msgtxt = decodeMessage(msg.getData(),msg.getOffset(),msg.getLength());
-      ShoreLog.logD("NETWORK","Received FROM from " + msg.getAddress() + " " +
-            msg.getPort() + " " + msg.getLength() + " " + msg.getOffset() + ": " +
-            msgtxt);
-      
-      if (msg.getPort() != ALT_PORT) {
+      if (msg.getPort() != ALT_PORT || msg.getLength() < 2) {
          return;
        }
+      EngineInfo ei = engine_map.get(msg.getSocketAddress());
+      if (ei == null) return;
+      ei.handleTelemetry(-1,getShort(msg.getData(),msg.getOffset()),-1);
     }
    
 }       // end of inner class RpmHandler
@@ -486,31 +690,247 @@ private class EngineInfo {
    
    private SocketAddress net_address;
    private String engine_id;
+   private volatile IfaceEngine for_engine;
+   private CompletableFuture<Long> stop_future;
+   private volatile long stop_start;
+   private volatile long estop_sent;
    private int engine_status;
-   private boolean is_setup;
+   private volatile boolean is_setup;
+   private PendingRequest active_request;
+   private Deque<PendingRequest> waiting_requests;
+   private PendingRequest waiting_throttle;
+   private int throttle_sent;
+   private int throttle_replaced;
+   private volatile long last_telemetry;
+   private TimerHandle poll_task;
+   private int poll_failures;
+   private long poll_latency;
+   private long last_heartbeat;
+   private volatile long last_change;
+   private byte [] last_state;
+   private NetworkStats.DeviceStats device_stats;
    
    EngineInfo(SocketAddress net) {
       net_address = net;
+      // keyed by address, which is known from the start and never changes
+      device_stats = getStats().getDevice(net.toString());
       engine_id = null;
+      for_engine = null;
+      stop_future = null;
+      stop_start = 0;
+      estop_sent = 0;
       engine_status = -1;
       is_setup = false;
+      active_request = null;
+      waiting_requests = new ArrayDeque<>();
+      waiting_throttle = null;
+      throttle_sent = 0;
+      throttle_replaced = 0;
+      last_telemetry = 0;
+      poll_task = null;
+      poll_failures = 0;
+      poll_latency = 0;
+      last_heartbeat = 0;
+      last_change = 0;
+      last_state = null;
     }
    
    String getEngineId()                                 { return engine_id; }
+   IfaceEngine getEngine()                              { return for_engine; }
+   void setEngine(IfaceEngine eng)                      { for_engine = eng; }
    
    SocketAddress getSocketAddress()                     { return net_address; }
    
    boolean isSetup()                                    { return is_setup; }
    void noteSetup()                                     { is_setup = true; }
    
-   boolean sendQueryStateMessage() {
-      byte [] msg = LOCOFI_QUERY_LOCO_STATE_CMD;
-      byte [] data = sendReplyMessage(net_address,msg,0,msg.length);
+   synchronized void setPollTask(TimerHandle th) {
+      if (poll_task != null) poll_task.cancel();
+      poll_task = th;
+    }
+   
+   synchronized int getPollFailures()                   { return poll_failures; }
+   synchronized int notePollFailure()                   { return ++poll_failures; }
+   synchronized long getPollLatency()                   { return poll_latency; }
+   synchronized void notePollReply(long latency) {
+      poll_failures = 0;
+      // smooth the latency so a single slow reply doesn't stall polling
+      poll_latency = (poll_latency * 3 + latency) / 4;
+    }
+   
+   synchronized long getLastHeartbeat()                 { return last_heartbeat; }
+   synchronized void noteHeartbeat(long when)           { last_heartbeat = when; }
+   long getLastChange()                                 { return last_change; }
+   
+   /**
+    *    Send a message that expects a reply.  Replies from the LocoFi carry 
+    *    no request id, so only one request per engine is outstanding at a
+    *    time; others wait their turn.  The future completes with the reply,
+    *    or with null if there is no reply within REPLY_DELAY.
+    **/
+   
+   CompletableFuture<byte []> sendRequest(byte [] msg) {
+      PendingRequest pr = new PendingRequest(msg);
+      pr.getFuture().whenComplete((r,t) -> requestDone(pr));
+      boolean send = false;
+      synchronized (this) {
+         if (active_request == null) {
+            active_request = pr;
+            send = true;
+          }
+         else waiting_requests.add(pr);
+       }
+      if (send) startRequest(pr);
+      return pr.getFuture();
+    }
+   
+   /**
+    *    Throttle settings are latest-value-wins: if a throttle request is 
+    *    still waiting to be sent, it is updated in place rather than 
+    *    queueing another one.
+    **/
+   
+   CompletableFuture<byte []> sendThrottleRequest(byte [] msg) {
+      throttle_count.incrementAndGet();
+      PendingRequest pr = null;
+      boolean send = false;
+      synchronized (this) {
+         if (waiting_throttle != null) {
+            waiting_throttle.setRequest(msg);
+            ++throttle_replaced;
+            throttle_coalesced.incrementAndGet();
+            return waiting_throttle.getFuture();
+          }
+         pr = new PendingRequest(msg);
+         PendingRequest fpr = pr;
+         pr.getFuture().whenComplete((r,t) -> requestDone(fpr));
+         ++throttle_sent;
+         if (active_request == null) {
+            active_request = pr;
+            send = true;
+          }
+         else {
+            waiting_requests.add(pr);
+            waiting_throttle = pr;
+          }
+       }
+      if (send) startRequest(pr);
+      return pr.getFuture();
+    }
+   
+   /**
+    *    Drop any throttle setting that hasn't gone out yet, e.g. because 
+    *    it was requested before an emergency stop.
+    **/
+   
+   void dropThrottleRequest() {
+      PendingRequest pr = null;
+      synchronized (this) {
+         pr = waiting_throttle;
+         waiting_throttle = null;
+       }
+      if (pr != null) {
+         pr.noteDropped();
+         pr.getFuture().complete(null);
+       }
+    }
+   
+   synchronized int getThrottleSent()                   { return throttle_sent; }
+   synchronized int getThrottleReplaced()               { return throttle_replaced; }
+   
+   boolean handleReply(byte [] data) {
+      PendingRequest pr = null;
+      synchronized (this) {
+         pr = active_request;
+       }
+      // emergency stops are sent without a request, so an echo answers nothing
+      if (isStopEcho(data,pr)) {
+         if (data[1] == LOCOFI_EMERGENCY_STOP_CMD[1]) noteStopped();
+         return true;
+       }
+      if (pr == null) return false;
+      return pr.getFuture().complete(data);
+    }
+   
+   /**
+    *    Replies are raw payloads, so a reply can look like a stop echo.  Only
+    *    take it as one if nothing is waiting for a reply or if it is exactly
+    *    a stop or resume we sent recently.
+    **/
+   
+   private boolean isStopEcho(byte [] data,PendingRequest pr) {
+      if (data.length != LOCOFI_EMERGENCY_STOP_CMD.length) return false;
+      if (data[0] != LOCOFI_EMERGENCY_STOP_CMD[0]) return false;
+      if (pr == null) return true;
+      if (System.currentTimeMillis() - estop_sent > REPLY_DELAY) return false;
+      return Arrays.equals(data,LOCOFI_EMERGENCY_STOP_CMD) || 
+         Arrays.equals(data,LOCOFI_EMERGENCY_START_CMD);
+    }
+   
+   void cancelRequests() {
+      List<PendingRequest> todo = new ArrayList<>();
+      synchronized (this) {
+         if (active_request != null) todo.add(active_request);
+         todo.addAll(waiting_requests);
+         waiting_requests.clear();
+         waiting_throttle = null;
+       }
+      setPollTask(null);
+      for (PendingRequest pr : todo) {
+         pr.getFuture().complete(null);
+       }
+    }
+   
+   private void startRequest(PendingRequest pr) {
+      pr.noteStarted();
+      TimerHandle th = ShoreTimer.getTimer().schedule(
+            () -> pr.getFuture().complete(null),REPLY_DELAY);
+      pr.getFuture().whenComplete((r,t) -> th.cancel());
+      byte [] msg = pr.getRequest();
+      sendMessage(net_address,msg,0,msg.length);
+    }
+   
+   private void requestDone(PendingRequest pr) {
+      long start = pr.getStartTime();
+      if (pr.isDropped()) {
+         // superseded by a stop, not lost
+       }
+      else if (pr.getFuture().getNow(null) == null) {
+         ShoreLog.logI("NETWORK","No reply received from " + net_address + " " + 
+               pr.getRequest()[0]);
+         if (start != 0) device_stats.noteTimeout();
+       }
+      else if (start != 0) {
+         device_stats.noteReply(System.currentTimeMillis() - start);
+       }
+      PendingRequest next = null;
+      synchronized (this) {
+         if (waiting_throttle == pr) waiting_throttle = null;
+         if (active_request != pr) {
+            waiting_requests.remove(pr);
+            return;
+          }
+         next = waiting_requests.poll();
+         if (next == waiting_throttle) waiting_throttle = null;
+         active_request = next;
+       }
+      if (next != null) startRequest(next);
+    }
+   
+   private CompletableFuture<Boolean> sendAck(byte [] msg) {
+      return sendRequest(msg).thenApply((data) -> data != null);
+    }
+   
+   CompletableFuture<Boolean> sendQueryStateMessage() {
+      return sendRequest(LOCOFI_QUERY_LOCO_STATE_CMD).thenApply(this::handleState);
+    }
+   
+   private boolean handleState(byte [] data) {
       if (data == null) {
          // engine is dead?
          return false;
        }
-      IfaceEngine eng = findEngine(engine_id);
+      IfaceEngine eng = for_engine;
       if (eng == null) {
          return false;
        }
@@ -518,6 +938,10 @@ private class EngineInfo {
          ShoreLog.logD("NETWORK","BAD STATUS MESSAGE");
          return true;
        }
+      if (last_state != null && !Arrays.equals(last_state,data)) {
+         last_change = System.currentTimeMillis();
+       }
+      last_state = data;
       
       boolean front = data[0] != 0;
       boolean back = data[1] != 0;
@@ -529,6 +953,7 @@ private class EngineInfo {
       int rpmstep = getShort(data,7);
       int speed = getShort(data,9);
       boolean estop = data[11] != 0;
+      if (estop) noteStopped();
       boolean mute = data[12] == 0;
       ShoreLog.logD("NETWORK","Engine speed " + speedstep + " " + rpmstep + " " + speed);
       eng.setupEngine(front,back,bell,rev,sts,
@@ -545,32 +970,38 @@ private class EngineInfo {
     }
    
    
-   boolean sendQueryAboutMessage() {
-      byte [] msg = LOCOFI_QUERY_ABOUT_LOCO_CMD;
-      byte [] data = sendReplyMessage(net_address,msg,0,msg.length);
+   CompletableFuture<Boolean> sendQueryAboutMessage() {
+      return sendRequest(LOCOFI_QUERY_ABOUT_LOCO_CMD).thenApply(this::handleAbout);
+    }
+   
+   private boolean handleAbout(byte [] data) {
       if (data == null) {
          return false;
        }
       String id = new String(data,0,7);
       id = id.replace("\0","");
       id = id.toUpperCase();
-      engine_id = id;
+      if (!id.equals(engine_id)) {
+         unindexEngine(this);
+         engine_id = id;
+         indexEngine(this);
+       }
       return true;
     }
    
-   boolean sendQueryVersionMessage() {
-      byte [] msg = LOCOFI_VERSION_CMD;
-      byte [] data = sendReplyMessage(net_address,msg,0,msg.length);
-      return data != null;
+   CompletableFuture<Boolean> sendQueryVersionMessage() {
+      return sendAck(LOCOFI_VERSION_CMD);
+    }
+   
+   CompletableFuture<Boolean> sendQuerySettingsMessage() {
+      return sendRequest(LOCOFI_SETTINGS_READ_CMD).thenApply(this::handleSettings);
     }
    
-   boolean sendQuerySettingsMessage() {
-      byte [] msg = LOCOFI_SETTINGS_READ_CMD;
-      byte [] data = sendReplyMessage(net_address,msg,0,msg.length);
+   private boolean handleSettings(byte [] data) {
       if (data == null) {
          return false;
        }
-      IfaceEngine eng = findEngine(engine_id);
+      IfaceEngine eng = for_engine;
       if (eng == null) {
          return false;
        }
@@ -616,71 +1047,144 @@ private class EngineInfo {
     }
    
    
-   boolean sendCarCount(int car) {
-      IfaceEngine eng = findEngine(engine_id);
-      if (eng == null) {
-         return false;
-       }
-      
-      byte [] msg = LOCOFI_SETTINGS_READ_CMD;
-      byte [] data = sendReplyMessage(net_address,msg,0,msg.length);
-      if (data == null) {
-         return false;
-       }
-      
-      int hdrlen = LOCOFI_SETTINGS_WRITE_CMD.length;
-      byte [] nmsg = new byte[data.length+hdrlen];
-      System.arraycopy(LOCOFI_SETTINGS_WRITE_CMD,0,
-            nmsg,0,hdrlen);
-      System.arraycopy(data,0,nmsg,hdrlen,data.length);
-      
-      int v = car/2;
-      if (v >= 5) v = 5;
-      data[18] = (byte) v;
-      ShoreLog.logD("Setting momemntum to " + v + " " + (1 << v) * 50);
-      
-      byte [] ndata = sendReplyMessage(net_address,nmsg,0,nmsg.length);
-      if (ndata == null) {
-         return false;
-       }
-      
-      return true;
+   CompletableFuture<Boolean> sendCarCount(int car) {
+      // during setup this is queued behind the query about request, so the
+      // engine is only known once the settings reply comes back
+      return sendRequest(LOCOFI_SETTINGS_READ_CMD).thenCompose((data) -> {
+         if (data == null || data.length <= 18 || for_engine == null) {
+            return CompletableFuture.completedFuture(false);
+          }
+         
+         int v = car/2;
+         if (v >= 5) v = 5;
+         data[18] = (byte) v;
+         ShoreLog.logD("NETWORK","Setting momemntum to " + v + " " + (1 << v) * 50);
+         
+         int hdrlen = LOCOFI_SETTINGS_WRITE_CMD.length;
+         byte [] nmsg = new byte[data.length+hdrlen];
+         System.arraycopy(LOCOFI_SETTINGS_WRITE_CMD,0,
+               nmsg,0,hdrlen);
+         System.arraycopy(data,0,nmsg,hdrlen,data.length);
+         
+         return sendAck(nmsg);
+       });
    }
    
-   boolean sendClearConsist() {
-      byte [] msg = LOCOFI_CLEAR_CONSIST_CMD;
-      byte [] ack = sendReplyMessage(net_address,msg,0,msg.length);
-      return ack != null;
+   CompletableFuture<Boolean> sendClearConsist() {
+      return sendAck(LOCOFI_CLEAR_CONSIST_CMD);
     }
    
+   /**
+    *    Ask the engine to push speed (or rpm) reports.  The request is sent
+    *    from the report socket so the engine streams back to it; reports
+    *    are not acknowledged on the command socket.
+    **/
+   
    boolean sendSpeedReportMessage() {
       if (speed_socket != null) {
-//       byte [] msg = LOCOFI_SPEED_REPORT_CMD;
-//       byte [] ack = sendReplyMessage(net_address,msg,0,msg.length);
-//       return ack != null;
-//       sendMessage(speed_socket,net_address,msg,0,msg.length); 
+         byte [] msg = LOCOFI_SPEED_REPORT_CMD;
+         sendMessage(speed_socket,net_address,msg,0,msg.length); 
        }
       return true;
     }
    
    boolean sendRpmReportMessage() {
       if (rpm_socket != null) {
-//       byte [] msg = LOCOFI_RPM_REPORT_CMD;
-//       byte [] ack = sendReplyMessage(net_address,msg,0,msg.length);
-//       return ack != null;
-//       sendMessage(rpm_socket,net_address,msg,0,msg.length);
+         byte [] msg = LOCOFI_RPM_REPORT_CMD;
+         sendMessage(rpm_socket,net_address,msg,0,msg.length);
        }
       return true;
     }
    
-   boolean sendHeartbeatMessage(boolean on) {
+   void handleTelemetry(int speedstep,int rpmstep,int speed) {
+      last_telemetry = System.currentTimeMillis();
+      device_stats.noteHeard();
+      if (engine_id == null) return;
+      IfaceEngine eng = for_engine;
+      if (eng != null) eng.noteTelemetry(speedstep,rpmstep,speed);
+    }
+   
+   boolean hasTelemetry() {
+      long now = System.currentTimeMillis();
+      return now - last_telemetry < LOCOFI_TELEMETRY_TIMEOUT;
+    }
+   
+   CompletableFuture<Boolean> sendHeartbeatMessage(boolean on) {
       byte [] msg = (on ? LOCOFI_HEARTBEAT_ON_CMD : LOCOFI_HEARTBEAT_OFF_CMD);
-      byte [] ack = sendReplyMessage(net_address,msg,0,msg.length);
-      return ack != null;
+      return sendAck(msg);
+    }
+   
+   /**
+    *    Start an all-stop for this engine, or join one in progress.  The
+    *    result is the time to confirmation in ms, or -1 on timeout.
+    **/
+   
+   CompletableFuture<Long> startAllStop() {
+      CompletableFuture<Long> fut = null;
+      boolean start = false;
+      synchronized (this) {
+         if (stop_future == null) {
+            stop_future = new CompletableFuture<>();
+            stop_start = System.currentTimeMillis();
+            start = true;
+          }
+         fut = stop_future;
+       }
+      if (start) {
+         CompletableFuture<Long> sfut = fut;
+         TimerHandle th = ShoreTimer.getTimer().scheduleRepeating(() -> {
+            if (System.currentTimeMillis() - stop_start >= LOCOFI_STOP_TIMEOUT) {
+               sfut.complete(-1L);
+             }
+            else {
+               sendEmergencyStop(true);
+               sendStopQuery();
+             }
+          },LOCOFI_STOP_RETRY,LOCOFI_STOP_RETRY);
+         fut.whenComplete((r,t) -> {
+            th.cancel();
+            synchronized (this) {
+               if (stop_future == sfut) stop_future = null;
+             }
+          });
+         sendEmergencyStop(true);
+         sendStopQuery();
+       }
+      return fut;
+    }
+   
+   /**
+    *    Engines that don't echo the stop confirm it in their state.  A query
+    *    in the request queue could wait longer than LOCOFI_STOP_TIMEOUT, so
+    *    it is sent from the speed socket instead; the reply comes back there 
+    *    and can't be taken for the answer to some other request.
+    **/
+   
+   private void sendStopQuery() {
+      if (speed_socket == null) {
+         sendQueryStateMessage();
+         return;
+       }
+      byte [] msg = LOCOFI_QUERY_LOCO_STATE_CMD;
+      sendMessage(speed_socket,net_address,msg,0,msg.length);
+    }
+   
+   void handleStopState(byte [] data) {
+      if (data.length >= 13 && data[11] != 0) noteStopped();
+    }
+   
+   private void noteStopped() {
+      CompletableFuture<Long> fut = null;
+      synchronized (this) {
+         fut = stop_future;
+       }
+      if (fut != null) fut.complete(System.currentTimeMillis() - stop_start);
     }
    
    boolean sendEmergencyStop(boolean stop) {
       byte [] msg = (stop ? LOCOFI_EMERGENCY_STOP_CMD : LOCOFI_EMERGENCY_START_CMD);
+      if (stop) dropThrottleRequest();
+      estop_sent = System.currentTimeMillis();
       sendMessage(net_address,msg,0,msg.length);
       return true;
    // byte [] ack = sendReplyMessage(net_address,msg,0,msg.length);
@@ -688,22 +1192,19 @@ private class EngineInfo {
     }
    
    
-   boolean sendReboot()
+   CompletableFuture<Boolean> sendReboot()
    {
-      byte [] msg = LOCOFI_REBOOT_CMD;
-      byte [] ack = sendReplyMessage(net_address,msg,0,msg.length);
-      return ack != null;
+      return sendAck(LOCOFI_REBOOT_CMD);
    }
    
-   boolean sendLight(boolean front,boolean on) {
+   CompletableFuture<Boolean> sendLight(boolean front,boolean on) {
       byte [] msg;
       if (front && !on) msg = LOCOFI_FWD_LIGHT_OFF_CMD;
       else if (front && on) msg = LOCOFI_FWD_LIGHT_ON_CMD;
       else if (!front && !on) msg = LOCOFI_REV_LIGHT_OFF_CMD;
       else if (!front && on) msg = LOCOFI_REV_LIGHT_ON_CMD;
-      else return false;
-      byte [] ack = sendReplyMessage(net_address,msg,0,msg.length);
-      return ack != null;
+      else return CompletableFuture.completedFuture(false);
+      return sendAck(msg);
     }
    
    boolean sendBell(boolean on) {
@@ -722,37 +1223,27 @@ private class EngineInfo {
       return true;
    }
    
-   boolean sendThrottle(int v) {
+   CompletableFuture<Boolean> sendThrottle(int v) {
       byte [] msg = new byte[3];
       msg[0] = LOCOFI_SET_THROTTLE_CMD[0];  
       msg[1] = (byte) (v & 0xff);
       msg[2] = (byte) ((v & 0xff00) >> 8);
-      byte [] ack = sendReplyMessage(net_address,msg,0,msg.length);
-      return ack != null;
+      return sendThrottleRequest(msg).thenApply((data) -> data != null);
     }
    
-   boolean sendReverse(boolean rev) {
+   CompletableFuture<Boolean> sendReverse(boolean rev) {
       byte [] msg = (rev ? LOCOFI_REV_DIR_CMD : LOCOFI_FWD_DIR_CMD);
-      byte [] ack = sendReplyMessage(net_address,msg,0,msg.length);
-      return ack != null;
+      return sendAck(msg);
     }
    
-   boolean sendStartEngine(boolean start) {
+   CompletableFuture<Boolean> sendStartEngine(boolean start) {
       byte [] msg = (start ? LOCOFI_START_ENGINE_CMD : LOCOFI_STOP_ENGINE_CMD);
-      byte [] ack = sendReplyMessage(net_address,msg,0,msg.length);
-      return ack != null;
+      return sendAck(msg);
     }
    
-   boolean setMute(boolean on) {
+   CompletableFuture<Boolean> setMute(boolean on) {
       byte [] msg = (on ? LOCOFI_MUTE_VOLUME_CMD : LOCOFI_UNMUTE_VOLUME_CMD);
-      byte [] ack = sendReplyMessage(net_address,msg,0,msg.length);
-      return ack != null;
-    }
-   
-   private int getShort(byte [] data,int offset) {
-      int d1 = data[offset] & 0xff;
-      int d2 = (data[offset+1] & 0xff) << 8;
-      return d1+d2;
+      return sendAck(msg);
     }
    
    private double getFloat(byte [] data,int offset) {
@@ -766,6 +1257,21 @@ private class EngineInfo {
 
 
 
+/********************************************************************************/
+/*                                                                              */
+/*      Helper methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+private static int getShort(byte [] data,int offset) 
+{
+   int d1 = data[offset] & 0xff;
+   int d2 = (data[offset+1] & 0xff) << 8;
+   return d1+d2;
+}
+
+
+
 
 }       // end of class NetworkProcessorLocoFi
 
@@ -36,10 +36,21 @@
 package edu.brown.cs.spr.shore.network;
 
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 
 import javax.jmdns.ServiceInfo;
 
@@ -48,6 +59,8 @@ import edu.brown.cs.spr.shore.iface.IfaceSensor;
 import edu.brown.cs.spr.shore.iface.IfaceSignal;
 import edu.brown.cs.spr.shore.iface.IfaceSwitch;
 import edu.brown.cs.spr.shore.shore.ShoreLog;
+import edu.brown.cs.spr.shore.shore.ShoreTimer;
+import edu.brown.cs.spr.shore.shore.ShoreTimer.TimerHandle;
 
 class NetworkProcessorTower extends NetworkProcessor implements NetworkControlMessages
 {
@@ -62,8 +75,15 @@ class NetworkProcessorTower extends NetworkProcessor implements NetworkControlMe
 private IfaceModel layout_model;
 private Map<SocketAddress,ControllerInfo>  controller_map;
 private Map<Integer,ControllerInfo>        id_map;
-private ShoreSensorSetup        sensor_setup;
-private boolean                 clear_switches;
+private AddressTable<IfaceSensor> sensor_table;
+private AddressTable<IfaceSwitch> switch_table;
+private AddressTable<IfaceSignal> signal_table;
+private Map<Integer,List<IfaceSensor>> tower_sensors;
+private Map<Integer,List<IfaceSwitch>> tower_switches;
+private Map<Integer,List<IfaceSignal>> tower_signals;
+private AtomicLong      retransmit_count;
+private AtomicLong      superseded_count;
+private SensorIngress   sensor_ingress;
 
 
 /********************************************************************************/
@@ -72,14 +92,37 @@ private boolean                 clear_switches;
 /*                                                                              */
 /********************************************************************************/
 
-NetworkProcessorTower(DatagramSocket sock,IfaceModel model)
+NetworkProcessorTower(NetworkSelector sel,DatagramChannel ch,IfaceModel model)
 {
-   super(sock);
+   super(sel,ch);
    layout_model = model;
    controller_map = new ConcurrentHashMap<>();
    id_map = new ConcurrentHashMap<>();
-   sensor_setup = null;
-   clear_switches = false;
+   retransmit_count = new AtomicLong(0);
+   superseded_count = new AtomicLong(0);
+   sensor_ingress = new SensorIngress();
+   setupAddressTables();
+}
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+long getRetransmitCount()                       { return retransmit_count.get(); }
+
+
+@Override protected void addCounters(Map<String,Long> cnts)
+{
+   cnts.put("retransmits",getRetransmitCount());
+   cnts.put("controllers",(long) id_map.size());
+   cnts.put("superseded",superseded_count.get());
+   long queued = 0;
+   for (ControllerInfo ci : controller_map.values()) queued += ci.getQueueSize();
+   cnts.put("queued",queued);
+   sensor_ingress.addCounters(cnts);
 }
 
 /********************************************************************************/
@@ -96,10 +139,10 @@ void setSwitch(IfaceSwitch sw,ShoreSwitchState set)
    if (ci == null) return;
    sw.setSwitch(set);
    if (set == ShoreSwitchState.R && sw.getTowerRSwitch() >= 0) {
-      ci.sendSwitchMessage(sw.getTowerRSwitch(),ShoreSwitchState.N);
+      ci.sendSwitchMessage(sw.getTowerRSwitch(),ShoreSwitchState.N,NetworkPriority.SAFETY);
     }
    else {
-      ci.sendSwitchMessage(sw.getTowerSwitch(),set);
+      ci.sendSwitchMessage(sw.getTowerSwitch(),set,NetworkPriority.SAFETY);
     }
    sw.setSwitch(set);
 }
@@ -116,15 +159,34 @@ private boolean sendSwitchStatus(IfaceSwitch sw,ShoreSwitchState set)
       set = sw.getSwitchState();
     }
    if (set == ShoreSwitchState.R && sw.getTowerRSwitch() >= 0) {
-      ci.sendSwitchMessage(sw.getTowerRSwitch(),ShoreSwitchState.N);
+      ci.sendSwitchMessage(sw.getTowerRSwitch(),ShoreSwitchState.N,
+            NetworkPriority.HOUSEKEEPING);
     }
    else {
-      ci.sendSwitchMessage(sw.getTowerSwitch(),set);
+      ci.sendSwitchMessage(sw.getTowerSwitch(),set,NetworkPriority.HOUSEKEEPING);
     }
    return true;
 }
 
 
+/**
+ *      Check if the controller has reported the switch in its current
+ *      state.  Unknown states are never sent, so they count as confirmed.
+ **/
+
+private boolean isSwitchConfirmed(IfaceSwitch sw)
+{
+   ControllerInfo ci = id_map.get((int) sw.getTowerId());
+   if (ci == null) return true;
+   ShoreSwitchState set = sw.getSwitchState();
+   if (set == ShoreSwitchState.UNKNOWN) return true;
+   if (set == ShoreSwitchState.R && sw.getTowerRSwitch() >= 0) {
+      return ci.isSwitchReported(sw.getTowerRSwitch(),ShoreSwitchState.N);
+    }
+   return ci.isSwitchReported(sw.getTowerSwitch(),set);
+}
+
+
 void setSignal(IfaceSignal sig,ShoreSignalState set) 
 {
    if (sig == null) return;
@@ -134,13 +196,24 @@ void setSignal(IfaceSignal sig,ShoreSignalState set)
    int id = sig.getTowerId();
    ControllerInfo ci = id_map.get(id);
    if (ci != null) {
-      ci.sendSignalMessage(sig.getTowerSignal(),set);
+      // stopping a train outranks other signal changes
+      NetworkPriority p = NetworkPriority.PLAN;
+      if (set == ShoreSignalState.RED) p = NetworkPriority.SAFETY;
+      ci.sendSignalMessage(sig.getTowerSignal(),set,p);
     }
    
    sig.setSignalState(set);
 }
 
 
+private boolean isSignalConfirmed(IfaceSignal sig)
+{
+   ControllerInfo ci = id_map.get((int) sig.getTowerId());
+   if (ci == null) return true;
+   return ci.isSignalReported(sig.getTowerSignal(),sig.getSignalState());
+}
+
+
 private boolean sendSignalStatus(IfaceSignal sig) 
 {
    if (sig == null) return false;
@@ -149,13 +222,19 @@ private boolean sendSignalStatus(IfaceSignal sig)
    ControllerInfo ci = id_map.get(id);
    if (ci == null) return false;
    ShoreSignalState set = sig.getSignalState();
-   ci.sendSignalMessage(sig.getTowerSignal(),set);
+   ci.sendSignalMessage(sig.getTowerSignal(),set,NetworkPriority.HOUSEKEEPING);
    return true;
 }
 
 
 
 void setSensor(IfaceSensor sen,ShoreSensorState set)  
+{
+   setSensor(sen,set,NetworkPriority.PLAN);
+}
+
+
+private void setSensor(IfaceSensor sen,ShoreSensorState set,NetworkPriority p)
 {
    if (sen == null) return;
    
@@ -163,7 +242,9 @@ void setSensor(IfaceSensor sen,ShoreSensorState set)
    ControllerInfo ci = id_map.get(id);
    if (ci == null) return;
    sen.setSensorState(set);
-   ci.sendSensorMessage(sen.getTowerSensor(),set);
+   // the next report from the tower should apply even if it repeats the last
+   sensor_ingress.forget(id,sen.getTowerSensor());
+   ci.sendSensorMessage(sen.getTowerSensor(),set,p);
 }
 
 
@@ -224,23 +305,24 @@ private boolean sendDefSignal(IfaceSignal sig)
 }
 
 
-private void broadcastInfo()
-{
-   for (ControllerInfo ci : controller_map.values()) {
-      ci.sendSyncMessage();
-    }
-}
-
+/**
+ *      Sensor setup and switch clearing are done by each controller's 
+ *      pipeline, so the towers are handled in parallel.
+ **/
 
 void setupSensors(ShoreSensorSetup state)
 {
-   sensor_setup = state;
+   for (ControllerInfo ci : controller_map.values()) {
+      ci.getPipeline().requestSensorSetup(state);
+    }
 }
 
 
 void clearSwitchStates()
 {
-   clear_switches = true;
+   for (ControllerInfo ci : controller_map.values()) {
+      ci.getPipeline().requestClearSwitches();
+    }
 }
 
 
@@ -252,30 +334,82 @@ void clearSwitchStates()
 
 private IfaceSensor findSensor(int tower,int id)
 {
-   for (IfaceSensor ms : layout_model.getSensors()) {
-      if (ms.getTowerId() == tower && ms.getTowerSensor() == id) return ms;
-    }
-   return null;
+   return sensor_table.find(tower,id);
 }
 
 
 private IfaceSwitch findSwitch(int tower,int id)
 {
-   for (IfaceSwitch ms : layout_model.getSwitches()) {
-      if (ms.getTowerId() == tower && ms.getTowerSwitch() == id) return ms;
-      else if (ms.getTowerId() == tower && ms.getTowerRSwitch() == id) return ms;
-    }
-   return null;
+   return switch_table.find(tower,id);
 }
 
 
 
 private IfaceSignal findSignal(int tower,int id)
 {
+   return signal_table.find(tower,id);
+}
+
+
+/**
+ *      Identify what a command sets (command and index), ignoring the value.
+ *      Setting a switch's R alias sets the switch, so both use the switch's
+ *      index and a newer command to either supersedes an older one.
+ **/
+
+private int getCommandKey(int tower,byte cmd,byte sid)
+{
+   int idx = sid & 0xff;
+   if (cmd == CONTROL_SETSWTICH) {
+      IfaceSwitch sw = switch_table.find(tower,idx);
+      if (sw != null) idx = sw.getTowerSwitch() & 0xff;
+    }
+   return ((cmd & 0xff) << 8) | idx;
+}
+
+
+/**
+ *      Build the tower address tables from the layout.  The model is fully 
+ *      loaded before the network starts and tower assignments don't change,
+ *      so this only needs to be done once.
+ **/
+
+private void setupAddressTables()
+{
+   sensor_table = new AddressTable<>();
+   switch_table = new AddressTable<>();
+   signal_table = new AddressTable<>();
+   tower_sensors = new HashMap<>();
+   tower_switches = new HashMap<>();
+   tower_signals = new HashMap<>();
+   if (layout_model == null) return;
+   
+   for (IfaceSensor ms : layout_model.getSensors()) {
+      sensor_table.add(ms.getTowerId(),ms.getTowerSensor(),ms);
+      tower_sensors.computeIfAbsent((int) ms.getTowerId(),(k) -> new ArrayList<>()).add(ms);
+    }
+   for (IfaceSwitch ms : layout_model.getSwitches()) {
+      switch_table.add(ms.getTowerId(),ms.getTowerSwitch(),ms);
+      tower_switches.computeIfAbsent((int) ms.getTowerId(),(k) -> new ArrayList<>()).add(ms);
+    }
+   // the R index is an alias for the switch, but a real switch index wins
+   for (IfaceSwitch ms : layout_model.getSwitches()) {
+      if (ms.getTowerRSwitch() < 0) continue;
+      if (switch_table.find(ms.getTowerId(),ms.getTowerRSwitch()) != null) continue;
+      switch_table.add(ms.getTowerId(),ms.getTowerRSwitch(),ms);
+    }
    for (IfaceSignal ms : layout_model.getSignals()) {
-      if (ms.getTowerId() == tower && ms.getTowerSignal() == id) return ms;
+      signal_table.add(ms.getTowerId(),ms.getTowerSignal(),ms);
+      tower_signals.computeIfAbsent((int) ms.getTowerId(),(k) -> new ArrayList<>()).add(ms);
     }
-   return null;
+}
+
+
+private <T> List<T> getTowerItems(Map<Integer,List<T>> map,int tower)
+{
+   List<T> rslt = map.get(tower);
+   if (rslt == null) return Collections.emptyList();
+   return rslt;
 }
 
 
@@ -299,6 +433,7 @@ private ControllerInfo findController(SocketAddress sa)
          ci.sendSyncMessage();
          ci.sendQueryMessage();
          ci.sendHeartbeatMessage(true);
+         ci.getPipeline().wake();
        }
     }
    
@@ -327,11 +462,6 @@ private ControllerInfo findController(SocketAddress sa)
 
 @Override public void handleMessage(DatagramPacket msg)
 {
-   String msgtxt = decodeMessage(msg.getData(),msg.getOffset(),msg.getLength());
-   ShoreLog.logD("NETWORK","Received tower from " + msg.getAddress() + " " +
-         msg.getPort() + " " + msg.getLength() + " " + msg.getOffset() + ": " +
-         msgtxt);
-   
    byte [] data = msg.getData();
    int id = data[1];                         // controller id
    int which = data[2];                      // switch, signal, sensor id
@@ -352,23 +482,20 @@ private ControllerInfo findController(SocketAddress sa)
             ci1 + " " + sa);
     }
    
+   if (ci != null) ci.getDeviceStats().noteHeard();
+   
    switch (data[0]) {
       case CONTROL_ID :
-         ci.noteConnection(id,which);
+         ci.noteConnection(id,which,value);
          break;
       case CONTROL_SENSOR_SYNC : 
       case CONTROL_SENSOR :
-         if (layout_model != null) {
-            IfaceSensor s = findSensor(id,which);
-            if (s == null) {
-               ShoreLog.logD("NETWORK","Sensor not found " + id + " " + which);
-               break;
-             }
-            ShoreSensorState sst = getState(value,ShoreSensorState.UNKNOWN); 
-            s.setSensorState(sst);
+         if (layout_model != null && sensor_ingress.accept(id,which,value)) {
+            applySensorReport(id,which,value);
           }
          break;
       case CONTROL_SWITCH :
+         if (ci != null) ci.noteSwitchReport(which,value);
          if (layout_model != null) {
             IfaceSwitch s = findSwitch(id,which);
             if (s == null) break;
@@ -380,7 +507,11 @@ private ControllerInfo findController(SocketAddress sa)
              }
           }
          break;
+      case CONTROL_ACK :
+         if (ci != null) ci.noteAck(which);
+         break;
       case CONTROL_SIGNAL :
+         if (ci != null) ci.noteSignalReport(which,value);
          if (layout_model != null) {
             IfaceSignal s = findSignal(id,which);
             if (s == null) break;
@@ -395,6 +526,19 @@ private ControllerInfo findController(SocketAddress sa)
 
 
 
+private void applySensorReport(int id,int which,int value)
+{
+   IfaceSensor s = findSensor(id,which);
+   if (s == null) {
+      ShoreLog.logD("NETWORK","Sensor not found " + id + " " + which);
+      return;
+    }
+   ShoreSensorState sst = getState(value,ShoreSensorState.UNKNOWN); 
+   s.setSensorState(sst);
+}
+
+
+
 private boolean needsSync(byte cmd)
 {
    switch (cmd) {
@@ -423,113 +567,373 @@ private boolean needsSync(byte cmd)
 
 @Override protected Thread getStatusUpdater() 
 {
-   return new TowerStatusUpdater();
+   // each controller has its own pipeline on the shared timer
+   return null;
+}
+
+
+@Override void start()
+{
+   super.start();
+   // contact towers from previous runs without waiting for mDNS
+   NetworkRegistry reg = getRegistry();
+   if (reg != null) {
+      for (SocketAddress sa : reg.getTowers()) {
+         findController(sa);
+       }
+    }
+   ShoreTimer.getTimer().scheduleRepeating(this::checkHeartbeats,
+         STATUS_DELAY,STATUS_DELAY);
+}
+
+
+@Override protected byte getCaptureKind(DatagramChannel ch)
+{
+   return CAPTURE_TOWER;
+}
+
+
+private void checkHeartbeats()
+{
+   long now = System.currentTimeMillis();
+   for (ControllerInfo ci : controller_map.values()) {
+      ci.checkHeartbeat(now);
+    }
 }
 
 
-private final class TowerStatusUpdater extends Thread {
+private boolean setupSensor(IfaceSensor sen,ShoreSensorSetup ss)
+{
+   ShoreSensorState state = sen.getSensorState();
+   switch (ss) {
+      case ADJUST_OFF :
+         if (state == ShoreSensorState.ON) {
+            return false;
+          }
+         break;
+      case SET_OFF :
+         state = ShoreSensorState.OFF;
+         break;
+      case ADJUST_ALL :
+         break;
+    }
+   if (sen.getSensorRange() == ShoreSensorRange.HIGH) return false;
+   setSensor(sen,state,NetworkPriority.HOUSEKEEPING);
+   return true;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Sensor report filtering                                                 */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Filter for sensor reports before they reach the model.  Controllers 
+ *      repeat reports (e.g. resending a sync report whose reply was lost), 
+ *      so a report of the value last accepted within SENSOR_DUPLICATE_WINDOW
+ *      is dropped.  Reports carry no sequence number, so a report that
+ *      reverts the last change within SENSOR_STALE_WINDOW may be an old one
+ *      arriving late; it is held for the window and dropped if a newer 
+ *      report arrives, otherwise applied.  State is kept in flat arrays 
+ *      indexed by tower and sensor index.
+ **/
+
+private final class SensorIngress {
+   
+   private byte [] last_value;
+   private byte [] prior_value;
+   private long [] last_time;
+   private byte [] held_value;
+   private long [] held_time;
+   private long report_count;
+   private long duplicate_count;
+   private long stale_count;
+   private long held_count;
    
-   TowerStatusUpdater() {
-      super("ShoreTowerStatusUpdater");
-      setDaemon(true);
+   private static final byte NO_VALUE = -1;
+   
+   SensorIngress() {
+      last_value = new byte[0];
+      prior_value = new byte[0];
+      last_time = new long[0];
+      held_value = new byte[0];
+      held_time = new long[0];
+      report_count = 0;
+      duplicate_count = 0;
+      stale_count = 0;
+      held_count = 0;
     }
    
-    @Override public void run() {
-      for ( ; ; ) {
-         try {
-            broadcastInfo();
-            if (sensor_setup != null) {
-               ShoreSensorSetup ss = sensor_setup;
-               sensor_setup = null;
-               for (IfaceSensor sen : layout_model.getSensors()) {
-                  ShoreSensorState state = sen.getSensorState();
-                  switch (ss) {
-                     case ADJUST_OFF :
-                        if (state == ShoreSensorState.ON) {
-                           continue;
-                         }
-                        break;
-                     case SET_OFF :
-                        state = ShoreSensorState.OFF;
-                        break;
-                     case ADJUST_ALL :
-                        break;
-                   }
-                  if (sen.getSensorRange() == ShoreSensorRange.HIGH) continue;
-                  setSensor(sen,state);
-                  shortDelay();
-                }
+   /**
+    *    Return true if the report should be passed on to the model now.
+    **/
+   
+   synchronized boolean accept(int tower,int which,int value) {
+      int idx = getIndex(tower,which);
+      long now = System.currentTimeMillis();
+      byte v = (byte) value;
+      ++report_count;
+      
+      if (held_value[idx] != NO_VALUE) {
+         // a newer report replaces the held one
+         if (held_value[idx] != v) ++stale_count;
+         held_value[idx] = NO_VALUE;
+       }
+      
+      if (v == last_value[idx] && now - last_time[idx] < SENSOR_DUPLICATE_WINDOW) {
+         ++duplicate_count;
+         return false;
+       }
+      if (v == prior_value[idx] && v != last_value[idx] && 
+            now - last_time[idx] < SENSOR_STALE_WINDOW) {
+         ++held_count;
+         held_value[idx] = v;
+         held_time[idx] = now;
+         ShoreTimer.getTimer().schedule(() -> releaseHeld(tower,which,now),
+               SENSOR_STALE_WINDOW);
+         return false;
+       }
+      
+      noteAccepted(idx,v,now);
+      return true;
+    }
+   
+   synchronized void forget(int tower,int which) {
+      int idx = getIndex(tower,which);
+      last_value[idx] = NO_VALUE;
+      prior_value[idx] = NO_VALUE;
+      held_value[idx] = NO_VALUE;
+    }
+   
+   synchronized void forgetTower(int tower) {
+      int base = (tower & 0xff) << 8;
+      if (base >= last_value.length) return;
+      Arrays.fill(last_value,base,base+256,NO_VALUE);
+      Arrays.fill(prior_value,base,base+256,NO_VALUE);
+      Arrays.fill(held_value,base,base+256,NO_VALUE);
+    }
+   
+   synchronized void addCounters(Map<String,Long> cnts) {
+      cnts.put("sensorReports",report_count);
+      cnts.put("sensorDuplicates",duplicate_count);
+      cnts.put("sensorStale",stale_count);
+      cnts.put("sensorHeld",held_count);
+    }
+   
+   private void releaseHeld(int tower,int which,long when) {
+      byte v;
+      synchronized (this) {
+         int idx = getIndex(tower,which);
+         v = held_value[idx];
+         if (v == NO_VALUE || held_time[idx] != when) return;
+         held_value[idx] = NO_VALUE;
+         noteAccepted(idx,v,when);
+       }
+      applySensorReport(tower,which,v);
+    }
+   
+   private void noteAccepted(int idx,byte v,long now) {
+      if (v != last_value[idx]) prior_value[idx] = last_value[idx];
+      last_value[idx] = v;
+      last_time[idx] = now;
+    }
+   
+   private int getIndex(int tower,int which) {
+      int idx = ((tower & 0xff) << 8) | (which & 0xff);
+      if (idx >= last_value.length) {
+         int sz = ((tower & 0xff) + 1) << 8;
+         int osz = last_value.length;
+         last_value = Arrays.copyOf(last_value,sz);
+         prior_value = Arrays.copyOf(prior_value,sz);
+         held_value = Arrays.copyOf(held_value,sz);
+         last_time = Arrays.copyOf(last_time,sz);
+         held_time = Arrays.copyOf(held_time,sz);
+         Arrays.fill(last_value,osz,sz,NO_VALUE);
+         Arrays.fill(prior_value,osz,sz,NO_VALUE);
+         Arrays.fill(held_value,osz,sz,NO_VALUE);
+       }
+      return idx;
+    }
+   
+}       // end of inner class SensorIngress
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Status pipeline for a single controller                                 */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Each controller gets its own sequence of status messages, run one 
+ *      step at a time on the shared timer.  A slow or missing 
+ *      tower therefore only delays its own updates.  A pass starts with a
+ *      sync request, then does any pending sensor setup, switch clearing 
+ *      and definitions, then resends unconfirmed settings, and ends with
+ *      a sync and the pass delay.
+ **/
+
+private final class TowerPipeline implements Runnable {
+   
+   private ControllerInfo for_controller;
+   private Deque<PipelineStep> pending_steps;
+   private ShoreSensorSetup sensor_setup;
+   private boolean clear_switches;
+   private boolean defs_pending;
+   private TimerHandle next_run;
+   
+   TowerPipeline(ControllerInfo ci) {
+      for_controller = ci;
+      pending_steps = new ArrayDeque<>();
+      sensor_setup = null;
+      clear_switches = false;
+      defs_pending = false;
+      next_run = null;
+    }
+   
+   synchronized void requestSensorSetup(ShoreSensorSetup ss) {
+      sensor_setup = ss;
+      restartPass();
+    }
+   
+   synchronized void requestClearSwitches() {
+      clear_switches = true;
+      restartPass();
+    }
+   
+   /**
+    *    Start a new pass now if the pipeline is waiting between passes.
+    **/
+   
+   synchronized void wake() {
+      if (pending_steps.isEmpty()) schedule(0);
+    }
+   
+   private void restartPass() {
+      // the old code abandoned the sweep for setup requests; do the same
+      if (defs_pending) for_controller.noteNeedsDefinitions();
+      defs_pending = false;
+      pending_steps.clear();
+      schedule(0);
+    }
+   
+   private synchronized void schedule(long delay) {
+      if (next_run != null) next_run.cancel();
+      next_run = ShoreTimer.getTimer().schedule(this,delay);
+    }
+   
+   @Override public void run() {
+      PipelineStep step = null;
+      synchronized (this) {
+         next_run = null;
+         if (pending_steps.isEmpty()) planPass();
+         step = pending_steps.poll();
+       }
+      if (step == null) return;
+      
+      long delay = 0;
+      try {
+         if (step.perform()) delay = step.getDelay();
+       }
+      catch (Throwable t) {
+         ShoreLog.logE("NETWORK","Problem doing status updates",t);
+         delay = STATUS_DELAY;
+       }
+      // controllers that take batches don't need messages spaced out
+      if (for_controller.supportsBatch() && !step.isPassEnd()) delay = 0;
+      
+      synchronized (this) {
+         if (next_run == null) schedule(delay);
+       }
+    }
+   
+   private void planPass() {
+      ControllerInfo ci = for_controller;
+      add(() -> { ci.sendSyncMessage(); return false; },0);
+      
+      int tid = ci.getId();
+      if (tid >= 0) {
+         if (sensor_setup != null) {
+            ShoreSensorSetup ss = sensor_setup;
+            sensor_setup = null;
+            for (IfaceSensor sen : getTowerItems(tower_sensors,tid)) {
+               add(() -> setupSensor(sen,ss),SHORT_DELAY);
              }
-            if (clear_switches) {
-               clear_switches = false;
-               for (IfaceSwitch sw : layout_model.getSwitches()) {
-                  sendSwitchStatus(sw,ShoreSwitchState.UNKNOWN);
-                  shortDelay();
-                  sendSwitchStatus(sw,sw.getSwitchState());
-                  delay();
-                }
+          }
+         if (clear_switches) {
+            clear_switches = false;
+            for (IfaceSwitch sw : getTowerItems(tower_switches,tid)) {
+               add(() -> sendSwitchStatus(sw,ShoreSwitchState.UNKNOWN),SHORT_DELAY);
+               add(() -> sendSwitchStatus(sw,sw.getSwitchState()),STATUS_DELAY);
              }
-            for (IfaceSensor sen : layout_model.getSensors()) {
-               if (sensor_setup != null || clear_switches) continue;
-               if (sendDefSensor(sen)) delay();
+          }
+         if (ci.checkNeedsDefinitions()) {
+            defs_pending = true;
+            for (IfaceSensor sen : getTowerItems(tower_sensors,tid)) {
+               add(() -> sendDefSensor(sen),STATUS_DELAY);
              }
-            for (IfaceSignal sig : layout_model.getSignals()) {
-               if (sensor_setup != null || clear_switches) continue;
-               if (sendDefSignal(sig)) {
-                  delay();
-                  sendSignalStatus(sig);
-                  delay();
-                }
+            for (IfaceSignal sig : getTowerItems(tower_signals,tid)) {
+               add(() -> sendDefSignal(sig),STATUS_DELAY);
+               add(() -> sendSignalStatus(sig),STATUS_DELAY);
              }
-            for (IfaceSwitch sw : layout_model.getSwitches()) {
-               if (sensor_setup != null || clear_switches) continue;
-               if (sendDefSwitch(sw)) {
-                  delay();
-                }
-               if (sendSwitchStatus(sw,sw.getSwitchState())) {
-                  delay();
-                }
+            for (IfaceSwitch sw : getTowerItems(tower_switches,tid)) {
+               add(() -> sendDefSwitch(sw),STATUS_DELAY);
+               add(() -> sendSwitchStatus(sw,sw.getSwitchState()),STATUS_DELAY);
              }
+            add(() -> { noteDefinitionsDone(); return false; },0);
           }
-         catch (Throwable t) {
-            ShoreLog.logE("NETWORK","Problem doing status updates",t);
+         // sequenced controllers ack what they get; losses are resent
+         // individually, so there is nothing to recheck here
+         if (!ci.supportsReliable()) {
+            for (IfaceSignal sig : getTowerItems(tower_signals,tid)) {
+               add(() -> !isSignalConfirmed(sig) && sendSignalStatus(sig),STATUS_DELAY);
+             }
+            for (IfaceSwitch sw : getTowerItems(tower_switches,tid)) {
+               add(() -> !isSwitchConfirmed(sw) && sendSwitchStatus(sw,sw.getSwitchState()),
+                     STATUS_DELAY);
+             }
           }
-         broadcastInfo();
-         finalDelay();
-       }
-    }
-   
-   private void checkHeartbeat() {
-      long now = System.currentTimeMillis();
-      for (ControllerInfo ci : controller_map.values()) {
-         ci.checkHeartbeat(now);
        }
+      
+      PipelineStep end = new PipelineStep(() -> { ci.sendSyncMessage(); return true; },
+            FINAL_DELAY * STATUS_DELAY,true);
+      pending_steps.add(end);
     }
    
-   private void delay() {
-      checkHeartbeat();
-      try {
-         Thread.sleep(STATUS_DELAY); 
-       }
-      catch (InterruptedException e) { }
+   private synchronized void noteDefinitionsDone() {
+      defs_pending = false;
     }
    
-   private void shortDelay() {
-      checkHeartbeat();
-      try {
-         Thread.sleep(SHORT_DELAY);  
-       }
-      catch (InterruptedException e) { }
+   private void add(BooleanSupplier action,long delay) {
+      pending_steps.add(new PipelineStep(action,delay,false));
     }
    
+}       // end of inner class TowerPipeline
+
+
+
+private static final class PipelineStep {
+
+   private BooleanSupplier step_action;
+   private long step_delay;
+   private boolean pass_end;
    
-   private void finalDelay() {
-      for (int i = 0; i < FINAL_DELAY; ++i) {
-         delay();
-       }
+   PipelineStep(BooleanSupplier action,long delay,boolean end) {
+      step_action = action;
+      step_delay = delay;
+      pass_end = end;
     }
    
-}       // end of innter class TowerStatusUpdater
+   // returns true if a message was sent and the delay applies
+   boolean perform()                            { return step_action.getAsBoolean(); }
+   long getDelay()                              { return step_delay; }
+   boolean isPassEnd()                          { return pass_end; }
+
+}       // end of inner class PipelineStep
 
 
 
@@ -541,17 +945,49 @@ private final class TowerStatusUpdater extends Thread {
 
 private class ControllerInfo {
    
-   private byte controller_id;
+   private volatile byte controller_id;
    private SocketAddress net_address;
+   private NetworkStats.DeviceStats device_stats;
    private long last_heartbeat;
+   private AtomicBoolean needs_definitions;
+   private TowerPipeline status_pipeline;
+   private byte [] switch_reported;
+   private byte [] signal_reported;
+   private volatile boolean supports_batch;
+   private volatile boolean supports_reliable;
+   private OutboundQueue outbound_queue;
+   private ReliableSender reliable_sender;
    
    ControllerInfo(SocketAddress net) {
       net_address = net;
+      // looked up once; every packet heard from the controller updates it
+      device_stats = getStats().getDevice(net.toString());
       controller_id = -1;
       last_heartbeat = 0;
+      needs_definitions = new AtomicBoolean(false);
+      status_pipeline = new TowerPipeline(this);
+      switch_reported = new byte[256];
+      signal_reported = new byte[256];
+      clearReported();
+      supports_batch = false;
+      supports_reliable = false;
+      outbound_queue = new OutboundQueue(this);
+      reliable_sender = new ReliableSender(this);
     }
    
-   synchronized void noteConnection(int id,int first) {
+   synchronized void noteConnection(int id,int first,int caps) {
+      boolean batch = (caps & MESSAGE_CAP_BATCH) != 0;
+      if (batch != supports_batch) {
+         ShoreLog.logD("NETWORK","Controller " + id + " batching " + batch);
+         supports_batch = batch;
+       }
+      // sequencing is carried in the batch header
+      boolean rel = batch && (caps & MESSAGE_CAP_RELIABLE) != 0;
+      if (rel != supports_reliable) {
+         ShoreLog.logD("NETWORK","Controller " + id + " sequenced " + rel);
+         supports_reliable = rel;
+         if (!rel) reliable_sender.reset();
+       }
       if (id != controller_id) {
          setId(id);
          id_map.put(id,this);
@@ -567,18 +1003,58 @@ private class ControllerInfo {
        }
       
       last_heartbeat = System.currentTimeMillis();
+      NetworkRegistry reg = getRegistry();
+      if (reg != null) reg.noteTower(net_address,id);
       if (first == 1) {
          ShoreLog.logD("NETWORK","Set up new controller " + id);
+         reliable_sender.reset();
          setToUnknown();
+         clearReported();
+         noteNeedsDefinitions();
          sendSyncMessage();
        }
     }
    
+   TowerPipeline getPipeline()                  { return status_pipeline; }
+   
+   int getId()                                  { return controller_id; }
+   
+   NetworkStats.DeviceStats getDeviceStats()    { return device_stats; }
+   
+   void noteNeedsDefinitions() {
+      needs_definitions.set(true);
+      status_pipeline.wake();
+    }
+   
+   boolean checkNeedsDefinitions() {
+      return needs_definitions.getAndSet(false);
+    }
+   
+   void noteSwitchReport(int idx,int value) {
+      switch_reported[idx & 0xff] = (byte) value;
+    }
+   
+   void noteSignalReport(int idx,int value) {
+      signal_reported[idx & 0xff] = (byte) value;
+    }
+   
+   boolean isSwitchReported(int idx,ShoreSwitchState st) {
+      return switch_reported[idx & 0xff] == st.ordinal();
+    }
+   
+   boolean isSignalReported(int idx,ShoreSignalState st) {
+      return signal_reported[idx & 0xff] == st.ordinal();
+    }
+   
+   private void clearReported() {
+      Arrays.fill(switch_reported,(byte) -1);
+      Arrays.fill(signal_reported,(byte) -1);
+    }
+   
    private void setToUnknown() {
-      for (IfaceSensor sen : layout_model.getSensors()) {
-         if (sen.getTowerId() == controller_id) {
-            sen.setSensorState(ShoreSensorState.UNKNOWN);
-          }
+      sensor_ingress.forgetTower(controller_id);
+      for (IfaceSensor sen : getTowerItems(tower_sensors,controller_id)) {
+         sen.setSensorState(ShoreSensorState.UNKNOWN);
          // possibly reset switches and signals and blocks as well
        }
     }
@@ -590,8 +1066,10 @@ private class ControllerInfo {
       if (now - last_heartbeat > HEARTBEAT_TIME) { 
          int val = (int) controller_id;
          ShoreLog.logD("NETWORK","Controller time out " + this);
+         device_stats.noteTimeout();
          id_map.remove(val);
          setToUnknown();
+         clearReported();
          controller_id = -1;
          
          return false;
@@ -606,53 +1084,83 @@ private class ControllerInfo {
    
    void sendSyncMessage() {
       byte [] msg = { CONTROL_SYNC, MESSAGE_ALL, 0, 0 };
-      sendMessage(net_address,msg,0,4);
+      outbound_queue.addMessage(msg,4,NetworkPriority.HOUSEKEEPING);
     }
    
    void sendQueryMessage() {
       byte [] msg = { CONTROL_QUERY, MESSAGE_ALL, 0, 0 };
-      sendMessage(net_address,msg,0,4);
+      outbound_queue.addMessage(msg,4,NetworkPriority.HOUSEKEEPING);
     }
    
    void sendHeartbeatMessage(boolean on) {
       byte onbyte = (on ? (byte) 1 : 0);
       byte [] msg = { CONTROL_HEARTBEAT, MESSAGE_ALL, onbyte, 0 };
-      sendMessage(net_address,msg,0,4);
+      outbound_queue.addMessage(msg,4,NetworkPriority.HOUSEKEEPING);
     }
    
-   void sendSwitchMessage(byte sid,IfaceSwitch.ShoreSwitchState state) {
-      byte [] msg = { CONTROL_SETSWTICH, controller_id, sid,(byte) state.ordinal()};
-      sendMessage(net_address,msg,0,4);
+   void sendSwitchMessage(byte sid,IfaceSwitch.ShoreSwitchState state,NetworkPriority p) {
+      outbound_queue.addCommand(CONTROL_SETSWTICH,sid,(byte) state.ordinal(),p);
     }
    
-   void sendSignalMessage(byte sid,IfaceSignal.ShoreSignalState state) {
-      byte [] msg = { CONTROL_SETSIGNAL, controller_id, sid,(byte) state.ordinal()};
-      sendMessage(net_address,msg,0,4);
+   void sendSignalMessage(byte sid,IfaceSignal.ShoreSignalState state,NetworkPriority p) {
+      outbound_queue.addCommand(CONTROL_SETSIGNAL,sid,(byte) state.ordinal(),p);
     }
    
-   void sendSensorMessage(byte sid,IfaceSensor.ShoreSensorState state) {
-      byte [] msg = { CONTROL_SETSENSOR, controller_id, sid,(byte) state.ordinal()}; 
-      sendMessage(net_address,msg,0,4);
+   void sendSensorMessage(byte sid,IfaceSensor.ShoreSensorState state,NetworkPriority p) {
+      outbound_queue.addCommand(CONTROL_SETSENSOR,sid,(byte) state.ordinal(),p);
     }
    
    void sendDefSensorMessage(byte sid,int value) {
-      byte [] msg = { CONTROL_DEFSENSOR, controller_id,sid,(byte) value };
-      sendMessage(net_address,msg,0,4);
+      outbound_queue.addCommand(CONTROL_DEFSENSOR,sid,(byte) value,
+            NetworkPriority.HOUSEKEEPING);
     }
    
    void sendDefSignalMessage(byte sid,int value) {
-      byte [] msg = { CONTROL_DEFSIGNAL, controller_id, sid, (byte) value };
-      sendMessage(net_address,msg,0,4);
+      outbound_queue.addCommand(CONTROL_DEFSIGNAL,sid,(byte) value,
+            NetworkPriority.HOUSEKEEPING);
     }
    
    void sendDefSwitchMessage(byte sid,byte rsid) {
-      byte[] msg = { CONTROL_DEFSWITCH, controller_id, sid, rsid };
-      sendMessage(net_address,msg,0,4);
+      outbound_queue.addCommand(CONTROL_DEFSWITCH,sid,rsid,NetworkPriority.HOUSEKEEPING);
+    }
+   
+   boolean supportsBatch()                      { return supports_batch; }
+   boolean supportsReliable()                   { return supports_reliable; }
+   
+   void noteAck(int seq)                        { reliable_sender.noteAck(seq); }
+   
+   int getQueueSize()                           { return outbound_queue.size(); }
+   
+   /**
+    *    Send an assembled batch now, sequencing it if the controller acks.
+    **/
+   
+   void sendBatch(TowerBatch tb,NetworkPriority p) {
+      if (supports_reliable) reliable_sender.send(tb,p);
+      else transmitBatch(tb);
     }
    
+   void transmitBatch(TowerBatch tb) {
+      sendMessage(net_address,tb.getData(),0,tb.getLength());
+    }
+   
+   void retransmitBatch(PendingBatch pb) {
+      outbound_queue.addResend(pb);
+    }
+   
+   void resendBatch(PendingBatch pb) {
+      reliable_sender.resend(pb);
+    }
+   
+   void transmit(byte [] msg,int len) {
+      sendMessage(net_address,msg,0,len);
+    }
+   
+   // confirms a sensor report the controller asked to have acknowledged;
+   // the controller waits for this, so it can't sit behind the rate limit
    void sendReply(int val1,int val2) {
       byte [] msg = { CONTROL_REPLY, controller_id, (byte) val1, (byte) val2 };
-      sendMessage(net_address,msg,0,4);
+      outbound_queue.addMessage(msg,4,NetworkPriority.EMERGENCY);
     }
    
    @Override public String toString() {
@@ -662,6 +1170,524 @@ private class ControllerInfo {
 }       // end of inner class ControllerInfo
 
 
+
+/********************************************************************************/
+/*                                                                              */
+/*      Outbound scheduling                                                     */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Messages waiting to go to one controller, one FIFO per priority.  
+ *      A token bucket (TOWER_SEND_RATE, TOWER_SEND_BURST) keeps us from 
+ *      sending faster than the controller can take datagrams; when tokens 
+ *      are short the highest priority messages go first.  For controllers
+ *      that batch, each datagram carries as many queued commands as fit,
+ *      again highest priority first.  A new command cancels queued commands
+ *      of lower priority that set the same item, since those would 
+ *      otherwise be sent after it and undo it.
+ **/
+
+private final class OutboundQueue implements Runnable {
+   
+   private ControllerInfo for_controller;
+   private List<Deque<OutboundItem>> priority_queues;
+   private int queue_size;
+   private double send_tokens;
+   private long last_refill;
+   private boolean is_draining;
+   private TimerHandle drain_task;
+   
+   OutboundQueue(ControllerInfo ci) {
+      for_controller = ci;
+      priority_queues = new ArrayList<>();
+      for (int i = 0; i < NetworkPriority.values().length; ++i) {
+         priority_queues.add(new ArrayDeque<>());
+       }
+      queue_size = 0;
+      send_tokens = TOWER_SEND_BURST;
+      last_refill = System.nanoTime();
+      is_draining = false;
+      drain_task = null;
+    }
+   
+   synchronized int size()                      { return queue_size; }
+   
+   void addCommand(byte cmd,byte sid,byte value,NetworkPriority p) {
+      int key = getCommandKey(for_controller.getId(),cmd,sid);
+      OutboundItem item = new OutboundItem(cmd,sid,value,p,key);
+      synchronized (this) {
+         for (int i = p.ordinal() + 1; i < priority_queues.size(); ++i) {
+            Deque<OutboundItem> q = priority_queues.get(i);
+            if (q.removeIf((oi) -> oi.getKey() == key)) {
+               queue_size = countQueued();
+               superseded_count.incrementAndGet();
+             }
+          }
+       }
+      // give a burst of commands (a route, a sweep) a chance to share a batch;
+      // a timer tick is longer than that, so urgent commands go at once
+      long delay = 0;
+      if (for_controller.supportsBatch() && p.compareTo(NetworkPriority.SAFETY) > 0) {
+         delay = BATCH_DELAY;
+       }
+      add(item,delay);
+    }
+   
+   void addMessage(byte [] msg,int len,NetworkPriority p) {
+      add(new OutboundItem(msg,len,p),0);
+    }
+   
+   void addResend(PendingBatch pb) {
+      add(new OutboundItem(pb),0);
+    }
+   
+   private void add(OutboundItem item,long delay) {
+      synchronized (this) {
+         priority_queues.get(item.getPriority().ordinal()).add(item);
+         ++queue_size;
+         // a running drain or a scheduled one will pick this up
+         if (is_draining) return;
+         if (drain_task != null) {
+            if (delay > 0) return;
+            drain_task.cancel();
+            drain_task = null;
+          }
+         if (delay > 0) {
+            drain_task = ShoreTimer.getTimer().schedule(this,delay);
+            return;
+          }
+       }
+      run();
+    }
+   
+   @Override public void run() {
+      synchronized (this) {
+         drain_task = null;
+         if (is_draining) return;
+         is_draining = true;
+       }
+      for ( ; ; ) {
+         List<OutboundItem> items = new ArrayList<>();
+         TowerBatch tb = nextDatagram(items);
+         if (items.isEmpty()) break;
+         long now = System.nanoTime();
+         for (OutboundItem oi : items) {
+            getStats().noteQueueWait(oi.getPriority(),now - oi.getQueueTime());
+          }
+         try {
+            if (tb != null) for_controller.sendBatch(tb,items.get(0).getPriority());
+            else items.get(0).send(for_controller);
+          }
+         catch (Throwable t) {
+            ShoreLog.logE("NETWORK","Problem sending to " + for_controller,t);
+          }
+       }
+    }
+   
+   /**
+    *    Take the contents of the next datagram off the queue, returning a
+    *    batch if the items should be sent together.  Leaves items empty 
+    *    and ends the drain if nothing can be sent now.
+    **/
+   
+   private synchronized TowerBatch nextDatagram(List<OutboundItem> items) {
+      refill();
+      // emergency items don't wait for tokens, but still use them up
+      boolean urgent = !priority_queues.get(NetworkPriority.EMERGENCY.ordinal()).isEmpty();
+      if (queue_size == 0 || (send_tokens < 1 && !urgent)) {
+         if (queue_size > 0 && drain_task == null) {
+            double wait = (1 - send_tokens) * 1000 / TOWER_SEND_RATE;
+            drain_task = ShoreTimer.getTimer().schedule(this,(long) Math.ceil(wait));
+          }
+         is_draining = false;
+         return null;
+       }
+      send_tokens -= 1;
+      
+      OutboundItem first = null;
+      for (Deque<OutboundItem> q : priority_queues) {
+         first = q.poll();
+         if (first != null) break;
+       }
+      items.add(first);
+      --queue_size;
+      if (!first.isCommand() || !for_controller.supportsBatch()) return null;
+      
+      // stop at the first message so nothing is sent ahead of it
+      TowerBatch tb = new TowerBatch((byte) for_controller.getId());
+      first.addTo(tb);
+      for (Deque<OutboundItem> q : priority_queues) {
+         while (!tb.isFull() && !q.isEmpty() && q.peek().isCommand()) {
+            OutboundItem oi = q.poll();
+            items.add(oi);
+            oi.addTo(tb);
+            --queue_size;
+          }
+         if (tb.isFull() || !q.isEmpty()) break;
+       }
+      return tb;
+    }
+   
+   private void refill() {
+      long now = System.nanoTime();
+      double add = (now - last_refill) * TOWER_SEND_RATE / 1e9;
+      send_tokens = Math.min(TOWER_SEND_BURST,send_tokens + add);
+      last_refill = now;
+    }
+   
+   private int countQueued() {
+      int ct = 0;
+      for (Deque<OutboundItem> q : priority_queues) ct += q.size();
+      return ct;
+    }
+   
+}       // end of inner class OutboundQueue
+
+
+
+/**
+ *      A queued command (which may share a batch), complete message, or
+ *      resend of a sequenced batch.
+ **/
+
+private static final class OutboundItem {
+   
+   private byte [] item_data;
+   private int item_length;
+   private boolean is_command;
+   private NetworkPriority item_priority;
+   private long queue_time;
+   private PendingBatch resend_batch;
+   private int item_key;
+   
+   OutboundItem(byte cmd,byte sid,byte value,NetworkPriority p,int key) {
+      item_data = new byte [] { cmd, 0, sid, value };
+      item_length = 4;
+      is_command = true;
+      item_key = key;
+      item_priority = p;
+      queue_time = System.nanoTime();
+      resend_batch = null;
+    }
+   
+   OutboundItem(byte [] msg,int len,NetworkPriority p) {
+      item_data = msg;
+      item_length = len;
+      is_command = false;
+      item_key = -1;
+      item_priority = p;
+      queue_time = System.nanoTime();
+      resend_batch = null;
+    }
+   
+   OutboundItem(PendingBatch pb) {
+      item_data = null;
+      item_length = 0;
+      is_command = false;
+      item_key = -1;
+      item_priority = pb.getPriority();
+      queue_time = System.nanoTime();
+      resend_batch = pb;
+    }
+   
+   boolean isCommand()                          { return is_command; }
+   NetworkPriority getPriority()                { return item_priority; }
+   long getQueueTime()                          { return queue_time; }
+   
+   // from getCommandKey; messages never match a command
+   int getKey()                                 { return item_key; }
+   
+   void addTo(TowerBatch tb) {
+      tb.add(item_data[0],item_data[2],item_data[3]);
+    }
+   
+   void send(ControllerInfo ci) {
+      if (resend_batch != null) {
+         ci.resendBatch(resend_batch);
+         return;
+       }
+      if (is_command) item_data[1] = (byte) ci.getId();
+      ci.transmit(item_data,item_length);
+    }
+   
+}       // end of inner class OutboundItem
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Sequenced delivery                                                      */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Tracks the sequenced batches sent to one controller until they are 
+ *      acked.  Unacked batches are resent individually after RETRANSMIT_DELAY,
+ *      minus any command that a later batch has since overridden (so a 
+ *      resend can't undo a newer setting).  Resends wait in the outbound 
+ *      queue like anything else, so that check is made when the resend is
+ *      actually sent.  If a batch can't be delivered the controller falls 
+ *      back to a full definitions and status resend.
+ **/
+
+private final class ReliableSender implements Runnable {
+   
+   private ControllerInfo for_controller;
+   private int next_sequence;
+   private Map<Integer,PendingBatch> unacked_batches;
+   private Map<Integer,Integer> latest_sequence;
+   private TimerHandle retry_task;
+   
+   ReliableSender(ControllerInfo ci) {
+      for_controller = ci;
+      next_sequence = 1;
+      unacked_batches = new LinkedHashMap<>();
+      latest_sequence = new HashMap<>();
+      retry_task = null;
+    }
+   
+   synchronized void reset() {
+      unacked_batches.clear();
+      latest_sequence.clear();
+      if (retry_task != null) retry_task.cancel();
+      retry_task = null;
+    }
+   
+   synchronized void send(TowerBatch tb,NetworkPriority p) {
+      if (unacked_batches.size() >= MAX_UNACKED) {
+         giveUp();
+       }
+      int seq = next_sequence;
+      next_sequence = next_sequence % 255 + 1;
+      tb.setSequence((byte) seq);
+      for (int i = 0; i < tb.getCount(); ++i) {
+         latest_sequence.put(getBatchKey(tb,i),seq);
+       }
+      unacked_batches.put(seq,new PendingBatch(tb,p));
+      if (retry_task == null) {
+         retry_task = ShoreTimer.getTimer().schedule(this,RETRANSMIT_DELAY);
+       }
+      for_controller.transmitBatch(tb);
+    }
+   
+   synchronized void noteAck(int seq) {
+      PendingBatch pb = unacked_batches.remove(seq & 0xff);
+      if (pb != null) {
+         long rtt = System.currentTimeMillis() - pb.getSendTime();
+         for_controller.getDeviceStats().noteReply(rtt);
+       }
+    }
+   
+   @Override public void run() {
+      // resends go through the outbound queue, so queue them after unlocking
+      List<PendingBatch> resend = new ArrayList<>();
+      synchronized (this) {
+         retry_task = null;
+         if (!findResends(resend)) return;
+         if (!unacked_batches.isEmpty()) {
+            retry_task = ShoreTimer.getTimer().schedule(this,RETRANSMIT_DELAY);
+          }
+       }
+      for (PendingBatch pb : resend) {
+         for_controller.retransmitBatch(pb);
+       }
+    }
+   
+   /**
+    *    Send a queued resend, keeping only the commands no later batch has
+    *    overridden.  Nothing is sent if the batch was acked or dropped while
+    *    it waited.
+    **/
+   
+   synchronized void resend(PendingBatch pb) {
+      TowerBatch tb = pb.getBatch();
+      int seq = tb.getSequence() & 0xff;
+      if (unacked_batches.get(seq) != pb) return;
+      
+      TowerBatch rb = new TowerBatch(tb.getControllerId());
+      for (int i = 0; i < tb.getCount(); ++i) {
+         Integer lseq = latest_sequence.get(getBatchKey(tb,i));
+         if (lseq != null && lseq == seq) rb.addCommand(tb,i);
+       }
+      if (rb.isEmpty()) {
+         unacked_batches.remove(seq);
+         return;
+       }
+      rb.setSequence((byte) seq);
+      pb.setBatch(rb);
+      retransmit_count.incrementAndGet();
+      for_controller.transmitBatch(rb);
+    }
+   
+   // the same key the outbound queue uses, so R aliases match their switch
+   private int getBatchKey(TowerBatch tb,int idx) {
+      return getCommandKey(tb.getControllerId(),tb.getCommand(idx),tb.getIndex(idx));
+    }
+   
+   private boolean findResends(List<PendingBatch> resend) {
+      long now = System.currentTimeMillis();
+      for (PendingBatch pb : unacked_batches.values()) {
+         if (now - pb.getSendTime() < RETRANSMIT_DELAY) continue;
+         if (pb.getTries() >= MAX_RETRANSMIT) {
+            giveUp();
+            return false;
+          }
+         // the timer restarts now so a queued resend isn't queued again
+         pb.noteResend(now);
+         resend.add(pb);
+       }
+      return true;
+    }
+   
+   private void giveUp() {
+      ShoreLog.logI("NETWORK","Sequenced delivery failed for " + for_controller);
+      for_controller.getDeviceStats().noteTimeout();
+      reset();
+      for_controller.noteNeedsDefinitions();
+    }
+   
+}       // end of inner class ReliableSender
+
+
+
+private static final class PendingBatch {
+
+   private TowerBatch batch_data;
+   private NetworkPriority batch_priority;
+   private long send_time;
+   private int num_tries;
+   
+   PendingBatch(TowerBatch tb,NetworkPriority p) {
+      batch_data = tb;
+      batch_priority = p;
+      send_time = System.currentTimeMillis();
+      num_tries = 0;
+    }
+   
+   TowerBatch getBatch()                        { return batch_data; }
+   NetworkPriority getPriority()                { return batch_priority; }
+   long getSendTime()                           { return send_time; }
+   int getTries()                               { return num_tries; }
+   
+   void setBatch(TowerBatch tb)                 { batch_data = tb; }
+   
+   void noteResend(long when) {
+      send_time = when;
+      ++num_tries;
+    }
+
+}       // end of inner class PendingBatch
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Batch message encoder                                                   */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Encoder for CONTROL_BATCH messages: a 4-byte header giving the count
+ *      and sequence number followed by standard 4-byte commands, up to 
+ *      BUFFER_SIZE bytes.
+ **/
+
+static final class TowerBatch {
+
+   private byte [] batch_data;
+   private int num_commands;
+   
+   static final int HEADER_SIZE = 4;
+   static final int MAX_COMMANDS = (BUFFER_SIZE - HEADER_SIZE) / 4;
+   
+   TowerBatch(byte cid) {
+      batch_data = new byte[HEADER_SIZE + MAX_COMMANDS * 4];
+      batch_data[0] = CONTROL_BATCH;
+      batch_data[1] = cid;
+      num_commands = 0;
+    }
+   
+   void add(byte cmd,byte sid,byte value) {
+      int off = HEADER_SIZE + num_commands * 4;
+      batch_data[off] = cmd;
+      batch_data[off+1] = batch_data[1];
+      batch_data[off+2] = sid;
+      batch_data[off+3] = value;
+      ++num_commands;
+      batch_data[2] = (byte) num_commands;
+    }
+   
+   void addCommand(TowerBatch from,int idx) {
+      int off = HEADER_SIZE + idx * 4;
+      add(from.batch_data[off],from.batch_data[off+2],from.batch_data[off+3]);
+    }
+   
+   boolean isFull()                             { return num_commands >= MAX_COMMANDS; }
+   boolean isEmpty()                            { return num_commands == 0; }
+   byte [] getData()                            { return batch_data; }
+   int getLength()                              { return HEADER_SIZE + num_commands * 4; }
+   int getCount()                               { return num_commands; }
+   byte getControllerId()                       { return batch_data[1]; }
+   byte getSequence()                           { return batch_data[3]; }
+   void setSequence(byte seq)                   { batch_data[3] = seq; }
+   
+   byte getCommand(int idx)                     { return batch_data[HEADER_SIZE + idx*4]; }
+   byte getIndex(int idx)                       { return batch_data[HEADER_SIZE + idx*4 + 2]; }
+
+}       // end of inner class TowerBatch
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Tower address table                                                     */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Map from (tower id, index) to a model object.  Both are bytes on the 
+ *      wire, so each tower gets a small array sized to its largest index.
+ **/
+
+private static final class AddressTable<T> {
+
+   private Object [][] tower_items;
+   
+   AddressTable() {
+      tower_items = new Object[0][];
+    }
+   
+   void add(int tower,int idx,T item) {
+      int t = tower & 0xff;
+      int i = idx & 0xff;
+      if (t >= tower_items.length) {
+         tower_items = Arrays.copyOf(tower_items,t+1);
+       }
+      Object [] items = tower_items[t];
+      if (items == null) {
+         items = new Object[i+1];
+       }
+      else if (i >= items.length) {
+         items = Arrays.copyOf(items,i+1);
+       }
+      items[i] = item;
+      tower_items[t] = items;
+    }
+   
+   @SuppressWarnings("unchecked")
+   T find(int tower,int idx) {
+      int t = tower & 0xff;
+      int i = idx & 0xff;
+      if (t >= tower_items.length) return null;
+      Object [] items = tower_items[t];
+      if (items == null || i >= items.length) return null;
+      return (T) items[i];
+    }
+   
+}       // end of inner class AddressTable
+
+
+
 }       // end of class NetworkProcessorTower
 
 
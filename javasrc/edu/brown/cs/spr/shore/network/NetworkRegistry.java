@@ -0,0 +1,330 @@
+/********************************************************************************/
+/*                                                                              */
+/*              NetworkRegistry.java                                            */
+/*                                                                              */
+/*      Persistent record of last-known controller and engine addresses         */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2023 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2023, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ *  Permission to use, copy, modify, and distribute this software and its        *
+ *  documentation for any purpose other than its incorporation into a            *
+ *  commercial product is hereby granted without fee, provided that the          *
+ *  above copyright notice appear in all copies and that both that               *
+ *  copyright notice and this permission notice appear in supporting             *
+ *  documentation, and that the name of Brown University not be used in          *
+ *  advertising or publicity pertaining to distribution of the software          *
+ *  without specific, written prior permission.                                  *
+ *                                                                               *
+ *  BROWN UNIVERSITY DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS                *
+ *  SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND            *
+ *  FITNESS FOR ANY PARTICULAR PURPOSE.  IN NO EVENT SHALL BROWN UNIVERSITY      *
+ *  BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY          *
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS,              *
+ *  WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS               *
+ *  ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR PERFORMANCE          *
+ *  OF THIS SOFTWARE.                                                            *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+
+
+package edu.brown.cs.spr.shore.network;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.brown.cs.spr.shore.shore.ShoreLog;
+import edu.brown.cs.spr.shore.shore.ShoreTimer;
+import edu.brown.cs.spr.shore.shore.ShoreTimer.TimerHandle;
+
+/**
+ *      Remembers the addresses and ids of the towers and engines seen in
+ *      previous runs so they can be probed directly at startup rather than
+ *      waiting for mDNS.  mDNS results and replies from the devices keep the
+ *      registry current; the file is rewritten shortly after any change.
+ **/
+
+class NetworkRegistry implements NetworkConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private File                    registry_file;
+private Map<SocketAddress,DeviceEntry> known_devices;
+private TimerHandle             save_task;
+private int                     save_count;
+private int                     saved_count;
+private Object                  save_lock;
+
+private static final String     TOWER_KEY = "TOWER";
+private static final String     ENGINE_KEY = "ENGINE";
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+NetworkRegistry(File f)
+{
+   registry_file = f;
+   known_devices = new LinkedHashMap<>();
+   save_task = null;
+   save_count = 0;
+   saved_count = 0;
+   save_lock = new Object();
+   
+   loadRegistry();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+synchronized List<SocketAddress> getTowers()
+{
+   return getDevices(TOWER_KEY);
+}
+
+
+synchronized List<SocketAddress> getEngines()
+{
+   return getDevices(ENGINE_KEY);
+}
+
+
+private List<SocketAddress> getDevices(String kind)
+{
+   List<SocketAddress> rslt = new ArrayList<>();
+   for (DeviceEntry de : known_devices.values()) {
+      if (de.getKind().equals(kind)) rslt.add(de.getAddress());
+    }
+   return rslt;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Update methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+void noteTower(SocketAddress sa,int id)
+{
+   noteDevice(TOWER_KEY,sa,Integer.toString(id));
+}
+
+
+void noteEngine(SocketAddress sa,String id)
+{
+   noteDevice(ENGINE_KEY,sa,id);
+}
+
+
+private synchronized void noteDevice(String kind,SocketAddress sa,String id)
+{
+   if (!(sa instanceof InetSocketAddress) || id == null) return;
+   
+   long now = System.currentTimeMillis();
+   DeviceEntry de = known_devices.get(sa);
+   if (de != null && de.getKind().equals(kind) && de.getId().equals(id)) {
+      if (now - de.getLastSeen() > REGISTRY_REFRESH) scheduleSave();
+      de.setLastSeen(now);
+      return;
+    }
+   
+   // a device that moved leaves a stale entry under its old address
+   known_devices.values().removeIf((e) -> e.getKind().equals(kind) && 
+         e.getId().equals(id));
+   known_devices.put(sa,new DeviceEntry(kind,sa,id,now));
+   scheduleSave();
+}
+
+
+private void scheduleSave()
+{
+   if (save_task != null) save_task.cancel();
+   // timer tasks must not block, so the file is written on its own thread
+   save_task = ShoreTimer.getTimer().schedule(() -> new SaveThread().start(),
+         REGISTRY_SAVE_DELAY);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      I/O methods                                                             */
+/*                                                                              */
+/********************************************************************************/
+
+private void loadRegistry()
+{
+   if (!registry_file.exists()) return;
+   
+   long now = System.currentTimeMillis();
+   try (BufferedReader br = new BufferedReader(new FileReader(registry_file))) {
+      for ( ; ; ) {
+         String ln = br.readLine();
+         if (ln == null) break;
+         String [] args = ln.trim().split("\t");
+         if (args.length != 5) continue;
+         try {
+            long seen = Long.parseLong(args[4]);
+            if (now - seen > REGISTRY_EXPIRE) continue;
+            InetAddress ia = InetAddress.getByName(args[2]);
+            SocketAddress sa = new InetSocketAddress(ia,Integer.parseInt(args[3]));
+            known_devices.put(sa,new DeviceEntry(args[0],sa,args[1],seen));
+          }
+         catch (NumberFormatException | IOException e) {
+            ShoreLog.logD("NETWORK","Bad registry entry " + ln);
+          }
+       }
+    }
+   catch (IOException e) {
+      ShoreLog.logE("NETWORK","Problem reading device registry " + registry_file,e);
+    }
+   
+   ShoreLog.logD("NETWORK","Loaded " + known_devices.size() + " known devices");
+}
+
+
+/**
+ *      Write the registry.  The entries are copied under the registry lock,
+ *      which the selector thread needs for every heartbeat, and the file is
+ *      written after releasing it.  A save that finishes after a newer one
+ *      is dropped.
+ **/
+
+void saveRegistry()
+{
+   List<String> lines = new ArrayList<>();
+   int count = 0;
+   synchronized (this) {
+      save_task = null;
+      count = ++save_count;
+      for (DeviceEntry de : known_devices.values()) {
+         InetSocketAddress isa = de.getAddress();
+         lines.add(de.getKind() + "\t" + de.getId() + "\t" + 
+               isa.getAddress().getHostAddress() + "\t" + isa.getPort() + "\t" +
+               de.getLastSeen());
+       }
+    }
+   
+   synchronized (save_lock) {
+      if (count < saved_count) return;
+      saved_count = count;
+      writeRegistry(lines);
+    }
+}
+
+
+private void writeRegistry(List<String> lines)
+{
+   File tmp = new File(registry_file.getPath() + ".tmp");
+   try (PrintWriter pw = new PrintWriter(tmp)) {
+      for (String ln : lines) pw.println(ln);
+    }
+   catch (IOException e) {
+      ShoreLog.logE("NETWORK","Problem writing device registry " + tmp,e);
+      return;
+    }
+   
+   try {
+      Files.move(tmp.toPath(),registry_file.toPath(),StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+   catch (IOException e) {
+      ShoreLog.logE("NETWORK","Problem saving device registry " + registry_file,e);
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Save thread                                                             */
+/*                                                                              */
+/********************************************************************************/
+
+private final class SaveThread extends Thread {
+
+   SaveThread() {
+      super("RegistrySave");
+      setDaemon(true);
+    }
+   
+   @Override public void run() {
+      saveRegistry();
+    }
+
+}       // end of inner class SaveThread
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Registry entry                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+private static final class DeviceEntry {
+
+   private String device_kind;
+   private InetSocketAddress device_address;
+   private String device_id;
+   private long last_seen;
+   
+   DeviceEntry(String kind,SocketAddress sa,String id,long seen) {
+      device_kind = kind;
+      device_address = (InetSocketAddress) sa;
+      device_id = id;
+      last_seen = seen;
+    }
+   
+   String getKind()                             { return device_kind; }
+   InetSocketAddress getAddress()               { return device_address; }
+   String getId()                               { return device_id; }
+   long getLastSeen()                           { return last_seen; }
+   void setLastSeen(long t)                     { last_seen = t; }
+   
+}       // end of inner class DeviceEntry
+
+
+
+}       // end of class NetworkRegistry
+
+
+
+
+/* end of NetworkRegistry.java */
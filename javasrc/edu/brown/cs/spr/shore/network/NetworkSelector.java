@@ -0,0 +1,245 @@
+/********************************************************************************/
+/*                                                                              */
+/*              NetworkSelector.java                                            */
+/*                                                                              */
+/*      Single event loop servicing all of our UDP channels                     */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2023 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2023, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ *  Permission to use, copy, modify, and distribute this software and its        *
+ *  documentation for any purpose other than its incorporation into a            *
+ *  commercial product is hereby granted without fee, provided that the          *
+ *  above copyright notice appear in all copies and that both that               *
+ *  copyright notice and this permission notice appear in supporting             *
+ *  documentation, and that the name of Brown University not be used in          *
+ *  advertising or publicity pertaining to distribution of the software          *
+ *  without specific, written prior permission.                                  *
+ *                                                                               *
+ *  BROWN UNIVERSITY DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS                *
+ *  SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND            *
+ *  FITNESS FOR ANY PARTICULAR PURPOSE.  IN NO EVENT SHALL BROWN UNIVERSITY      *
+ *  BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY          *
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS,              *
+ *  WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS               *
+ *  ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR PERFORMANCE          *
+ *  OF THIS SOFTWARE.                                                            *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+
+
+package edu.brown.cs.spr.shore.network;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import edu.brown.cs.spr.shore.network.NetworkPacketPool.PooledPacket;
+import edu.brown.cs.spr.shore.shore.ShoreLog;
+
+class NetworkSelector extends Thread implements NetworkConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private Selector        our_selector;
+private Queue<ChannelData> pending_channels;
+private NetworkPacketPool packet_pool;
+private NetworkCapture  packet_capture;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+NetworkSelector(NetworkCapture cap) throws IOException
+{
+   super("ShoreNetworkSelector");
+   setDaemon(true);
+   
+   our_selector = Selector.open();
+   pending_channels = new ConcurrentLinkedQueue<>();
+   packet_pool = new NetworkPacketPool();
+   packet_capture = cap;
+}
+
+
+NetworkCapture getCapture()                     { return packet_capture; }
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Registration methods                                                    */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Add a channel to the event loop.  Incoming datagrams are first passed
+ *      to the processor's checkSync method (if there is a processor) and then 
+ *      to the handler.  Handlers run on the selector thread and must not block.
+ *      The packet passed to the handler is recycled once the handler returns,
+ *      so any data that is needed later must be copied.
+ **/
+
+void addChannel(DatagramChannel ch,NetworkProcessor proc,MessageHandler hdlr)
+{
+   if (ch == null) return;
+   if (hdlr == null) hdlr = proc;
+   
+   pending_channels.add(new ChannelData(ch,proc,hdlr));
+   our_selector.wakeup();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Event loop                                                              */
+/*                                                                              */
+/********************************************************************************/
+
+@Override public void run()
+{
+   for ( ; ; ) {
+      try {
+         our_selector.select();
+         registerPending();
+         Iterator<SelectionKey> it = our_selector.selectedKeys().iterator();
+         while (it.hasNext()) {
+            SelectionKey sk = it.next();
+            it.remove();
+            if (!sk.isValid() || !sk.isReadable()) continue;
+            ChannelData cd = (ChannelData) sk.attachment();
+            readChannel(cd);
+          }
+       }
+      catch (ClosedSelectorException e) {
+         ShoreLog.logE("NETWORK","Selector closed",e);
+         break;
+       }
+      catch (Throwable t) {
+         ShoreLog.logE("NETWORK","Problem in network selector",t);
+       }
+    }
+}
+
+
+private void registerPending()
+{
+   for ( ; ; ) {
+      ChannelData cd = pending_channels.poll();
+      if (cd == null) break;
+      try {
+         cd.getChannel().configureBlocking(false);
+         cd.getChannel().register(our_selector,SelectionKey.OP_READ,cd);
+         ShoreLog.logD("NETWORK","Selector listening on " + 
+               cd.getChannel().getLocalAddress());
+       }
+      catch (IOException e) {
+         ShoreLog.logE("NETWORK","Problem registering channel",e);
+       }
+    }
+}
+
+
+private void readChannel(ChannelData cd)
+{
+   // drain everything available on the channel before selecting again
+   NetworkProcessor np = cd.getProcessor();
+   int count = 0;
+   for ( ; ; ) {
+      PooledPacket pp = packet_pool.acquire();
+      try {
+         SocketAddress sa = null;
+         try {
+            sa = cd.getChannel().receive(pp.getBuffer());
+          }
+         catch (IOException e) {
+            ShoreLog.logE("NETWORK","Problem reading UDP",e);
+            return;
+          }
+         if (sa == null) {
+            if (np != null) np.getStats().noteDrain(count);
+            return;
+          }
+         ++count;
+         
+         DatagramPacket packet = pp.setupPacket(sa);
+         long start = System.nanoTime();
+         try {
+            if (np != null) {
+               np.captureReceive(cd.getChannel(),packet);
+               np.getStats().noteReceive(packet.getData()[packet.getOffset()],
+                     packet.getLength());
+               np.checkSync(packet);
+             }
+            cd.getHandler().handleMessage(packet);
+          }
+         catch (Throwable t) {
+            ShoreLog.logE("NETWORK","Problem processing message",t);
+          }
+         if (np != null) np.getStats().noteHandler(System.nanoTime() - start);
+       }
+      finally {
+         packet_pool.release(pp);
+       }
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Information about a registered channel                                  */
+/*                                                                              */
+/********************************************************************************/
+
+private static final class ChannelData {
+   
+   private DatagramChannel for_channel;
+   private NetworkProcessor for_processor;
+   private MessageHandler message_handler;
+   
+   ChannelData(DatagramChannel ch,NetworkProcessor proc,MessageHandler hdlr) {
+      for_channel = ch;
+      for_processor = proc;
+      message_handler = hdlr;
+    }
+   
+   DatagramChannel getChannel()                 { return for_channel; }
+   NetworkProcessor getProcessor()              { return for_processor; }
+   MessageHandler getHandler()                  { return message_handler; }
+   
+}       // end of inner class ChannelData
+
+
+
+}       // end of class NetworkSelector
+
+
+
+
+/* end of NetworkSelector.java */
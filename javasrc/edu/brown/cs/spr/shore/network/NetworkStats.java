@@ -0,0 +1,349 @@
+/********************************************************************************/
+/*                                                                              */
+/*              NetworkStats.java                                               */
+/*                                                                              */
+/*      Packet, handler and device statistics for a network processor           */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2023 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2023, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ *  Permission to use, copy, modify, and distribute this software and its        *
+ *  documentation for any purpose other than its incorporation into a            *
+ *  commercial product is hereby granted without fee, provided that the          *
+ *  above copyright notice appear in all copies and that both that               *
+ *  copyright notice and this permission notice appear in supporting             *
+ *  documentation, and that the name of Brown University not be used in          *
+ *  advertising or publicity pertaining to distribution of the software          *
+ *  without specific, written prior permission.                                  *
+ *                                                                               *
+ *  BROWN UNIVERSITY DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS                *
+ *  SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND            *
+ *  FITNESS FOR ANY PARTICULAR PURPOSE.  IN NO EVENT SHALL BROWN UNIVERSITY      *
+ *  BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY          *
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS,              *
+ *  WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS               *
+ *  ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR PERFORMANCE          *
+ *  OF THIS SOFTWARE.                                                            *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+
+
+package edu.brown.cs.spr.shore.network;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import edu.brown.cs.spr.shore.shore.ShoreLog;
+
+/**
+ *      Statistics for one network processor.  Updates are single atomic
+ *      increments so this can stay enabled; summaries are only computed
+ *      when read through JMX.
+ **/
+
+class NetworkStats implements NetworkStatsMBean, NetworkConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private NetworkProcessor        for_processor;
+private AtomicLongArray         packets_in;
+private AtomicLongArray         packets_out;
+private AtomicLong              bytes_in;
+private AtomicLong              bytes_out;
+private AtomicInteger           drain_high;
+private AtomicLongArray         handler_histogram;
+private AtomicLong              handler_total;
+private AtomicLong              handler_max;
+private Map<String,DeviceStats> device_stats;
+private AtomicLongArray         queue_waits;            // count, total, max per priority
+
+private static final int        HISTOGRAM_SIZE = 24;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+NetworkStats(NetworkProcessor np)
+{
+   for_processor = np;
+   packets_in = new AtomicLongArray(256);
+   packets_out = new AtomicLongArray(256);
+   bytes_in = new AtomicLong(0);
+   bytes_out = new AtomicLong(0);
+   drain_high = new AtomicInteger(0);
+   handler_histogram = new AtomicLongArray(HISTOGRAM_SIZE);
+   handler_total = new AtomicLong(0);
+   handler_max = new AtomicLong(0);
+   device_stats = new ConcurrentHashMap<>();
+   queue_waits = new AtomicLongArray(3 * NetworkPriority.values().length);
+}
+
+
+void register(String name)
+{
+   try {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      ObjectName on = new ObjectName("edu.brown.cs.spr.shore:type=Network,name=" + name);
+      if (mbs.isRegistered(on)) mbs.unregisterMBean(on);
+      mbs.registerMBean(this,on);
+    }
+   catch (JMException e) {
+      ShoreLog.logE("NETWORK","Problem registering statistics for " + name,e);
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Update methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+void noteReceive(byte opcode,int len)
+{
+   packets_in.incrementAndGet(opcode & 0xff);
+   bytes_in.addAndGet(len);
+}
+
+
+void noteSend(byte opcode,int len)
+{
+   packets_out.incrementAndGet(opcode & 0xff);
+   bytes_out.addAndGet(len);
+}
+
+
+void noteDrain(int count)
+{
+   if (count > drain_high.get()) drain_high.accumulateAndGet(count,Math::max);
+}
+
+
+void noteHandler(long nanos)
+{
+   long us = nanos / 1000;
+   int bucket = 63 - Long.numberOfLeadingZeros(Math.max(us,1));
+   handler_histogram.incrementAndGet(Math.min(bucket,HISTOGRAM_SIZE-1));
+   handler_total.addAndGet(us);
+   if (us > handler_max.get()) handler_max.accumulateAndGet(us,Math::max);
+}
+
+
+void noteQueueWait(NetworkPriority p,long nanos)
+{
+   long us = nanos / 1000;
+   int idx = 3 * p.ordinal();
+   queue_waits.incrementAndGet(idx);
+   queue_waits.addAndGet(idx+1,us);
+   if (us > queue_waits.get(idx+2)) queue_waits.accumulateAndGet(idx+2,us,Math::max);
+}
+
+
+// callers keep the entry so per-packet updates skip the lookup
+DeviceStats getDevice(String device)
+{
+   return device_stats.computeIfAbsent(device,(k) -> new DeviceStats());
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      MBean methods                                                           */
+/*                                                                              */
+/********************************************************************************/
+
+@Override public long getPacketsIn()            { return sum(packets_in); }
+@Override public long getPacketsOut()           { return sum(packets_out); }
+@Override public long getBytesIn()              { return bytes_in.get(); }
+@Override public long getBytesOut()             { return bytes_out.get(); }
+@Override public int getDrainHighWater()        { return drain_high.get(); }
+@Override public long getHandlerMaxMicros()     { return handler_max.get(); }
+
+@Override public String [] getPacketsInByOpcode()  { return byOpcode(packets_in); }
+@Override public String [] getPacketsOutByOpcode() { return byOpcode(packets_out); }
+
+
+@Override public long [] getHandlerHistogram()
+{
+   long [] rslt = new long[HISTOGRAM_SIZE];
+   for (int i = 0; i < HISTOGRAM_SIZE; ++i) {
+      rslt[i] = handler_histogram.get(i);
+    }
+   return rslt;
+}
+
+
+@Override public double getHandlerMeanMicros()
+{
+   long ct = sum(handler_histogram);
+   if (ct == 0) return 0;
+   return ((double) handler_total.get()) / ct;
+}
+
+
+@Override public String [] getQueueWaits()
+{
+   List<String> rslt = new ArrayList<>();
+   for (NetworkPriority p : NetworkPriority.values()) {
+      int idx = 3 * p.ordinal();
+      long ct = queue_waits.get(idx);
+      if (ct == 0) continue;
+      rslt.add(p + ": " + ct + " sent, mean " + (queue_waits.get(idx+1) / ct) + 
+            "us, max " + queue_waits.get(idx+2) + "us");
+    }
+   return rslt.toArray(new String[rslt.size()]);
+}
+
+
+@Override public String [] getDevices()
+{
+   long now = System.currentTimeMillis();
+   List<String> rslt = new ArrayList<>();
+   for (Map.Entry<String,DeviceStats> ent : new TreeMap<>(device_stats).entrySet()) {
+      rslt.add(ent.getKey() + ": " + ent.getValue().describe(now));
+    }
+   return rslt.toArray(new String[rslt.size()]);
+}
+
+
+@Override public String [] getCounters()
+{
+   Map<String,Long> cnts = new TreeMap<>();
+   for_processor.addCounters(cnts);
+   List<String> rslt = new ArrayList<>();
+   for (Map.Entry<String,Long> ent : cnts.entrySet()) {
+      rslt.add(ent.getKey() + "=" + ent.getValue());
+    }
+   return rslt.toArray(new String[rslt.size()]);
+}
+
+
+@Override public void reset()
+{
+   for (int i = 0; i < 256; ++i) {
+      packets_in.set(i,0);
+      packets_out.set(i,0);
+    }
+   for (int i = 0; i < HISTOGRAM_SIZE; ++i) {
+      handler_histogram.set(i,0);
+    }
+   for (int i = 0; i < queue_waits.length(); ++i) {
+      queue_waits.set(i,0);
+    }
+   bytes_in.set(0);
+   bytes_out.set(0);
+   drain_high.set(0);
+   handler_total.set(0);
+   handler_max.set(0);
+   // processors hold on to their device entries, so keep them and clear their counts
+   for (DeviceStats ds : device_stats.values()) ds.reset();
+}
+
+
+private static long sum(AtomicLongArray arr)
+{
+   long tot = 0;
+   for (int i = 0; i < arr.length(); ++i) tot += arr.get(i);
+   return tot;
+}
+
+
+private static String [] byOpcode(AtomicLongArray arr)
+{
+   List<String> rslt = new ArrayList<>();
+   for (int i = 0; i < arr.length(); ++i) {
+      long v = arr.get(i);
+      if (v != 0) rslt.add(String.format("0x%02x=%d",i,v));
+    }
+   return rslt.toArray(new String[rslt.size()]);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Per-device statistics                                                   */
+/*                                                                              */
+/********************************************************************************/
+
+static final class DeviceStats {
+
+   private AtomicLong reply_count;
+   private AtomicLong reply_total;
+   private AtomicLong reply_max;
+   private AtomicLong timeout_count;
+   private volatile long last_heard;
+   
+   DeviceStats() {
+      reply_count = new AtomicLong(0);
+      reply_total = new AtomicLong(0);
+      reply_max = new AtomicLong(0);
+      timeout_count = new AtomicLong(0);
+      last_heard = 0;
+    }
+   
+   void noteReply(long ms) {
+      reply_count.incrementAndGet();
+      reply_total.addAndGet(ms);
+      if (ms > reply_max.get()) reply_max.accumulateAndGet(ms,Math::max);
+      last_heard = System.currentTimeMillis();
+    }
+   
+   void noteTimeout()                           { timeout_count.incrementAndGet(); }
+   
+   void reset() {
+      reply_count.set(0);
+      reply_total.set(0);
+      reply_max.set(0);
+      timeout_count.set(0);
+    }
+   void noteHeard()                             { last_heard = System.currentTimeMillis(); }
+   
+   String describe(long now) {
+      long ct = reply_count.get();
+      String avg = (ct == 0 ? "-" : Long.toString(reply_total.get() / ct));
+      String age = (last_heard == 0 ? "never" : (now - last_heard) + "ms");
+      return "replies " + ct + " avg " + avg + "ms max " + reply_max.get() + 
+            "ms, timeouts " + timeout_count.get() + ", last heard " + age;
+    }
+
+}       // end of inner class DeviceStats
+
+
+
+}       // end of class NetworkStats
+
+
+
+
+/* end of NetworkStats.java */
@@ -0,0 +1,93 @@
+/********************************************************************************/
+/*                                                                              */
+/*              NetworkStatsMBean.java                                          */
+/*                                                                              */
+/*      JMX view of network processor statistics                                */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2023 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2023, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ *  Permission to use, copy, modify, and distribute this software and its        *
+ *  documentation for any purpose other than its incorporation into a            *
+ *  commercial product is hereby granted without fee, provided that the          *
+ *  above copyright notice appear in all copies and that both that               *
+ *  copyright notice and this permission notice appear in supporting             *
+ *  documentation, and that the name of Brown University not be used in          *
+ *  advertising or publicity pertaining to distribution of the software          *
+ *  without specific, written prior permission.                                  *
+ *                                                                               *
+ *  BROWN UNIVERSITY DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS                *
+ *  SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND            *
+ *  FITNESS FOR ANY PARTICULAR PURPOSE.  IN NO EVENT SHALL BROWN UNIVERSITY      *
+ *  BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY          *
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS,              *
+ *  WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS               *
+ *  ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR PERFORMANCE          *
+ *  OF THIS SOFTWARE.                                                            *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+
+
+package edu.brown.cs.spr.shore.network;
+
+/**
+ *      Management interface for the statistics kept by each network processor.
+ *      Registered as edu.brown.cs.spr.shore:type=Network,name=<processor>.
+ **/
+
+public interface NetworkStatsMBean
+{
+
+long getPacketsIn();
+long getPacketsOut();
+long getBytesIn();
+long getBytesOut();
+
+/**
+ *      Packet counts by opcode (first byte), as "0xNN=count" for nonzero counts
+ **/
+String [] getPacketsInByOpcode();
+String [] getPacketsOutByOpcode();
+
+/**
+ *      Largest number of datagrams read from one socket in a single wakeup
+ **/
+int getDrainHighWater();
+
+/**
+ *      Handler times: bucket i counts calls taking [2^i,2^(i+1)) microseconds
+ **/
+long [] getHandlerHistogram();
+double getHandlerMeanMicros();
+long getHandlerMaxMicros();
+
+/**
+ *      Time outbound messages waited to be sent, by priority
+ **/
+String [] getQueueWaits();
+
+/**
+ *      Per-device reply times, timeouts and time since last heard from
+ **/
+String [] getDevices();
+
+/**
+ *      Processor-specific counters (throttle coalescing, retransmits, ...)
+ **/
+String [] getCounters();
+
+void reset();
+
+}       // end of interface NetworkStatsMBean
+
+
+
+
+/* end of NetworkStatsMBean.java */
@@ -0,0 +1,519 @@
+/********************************************************************************/
+/*                                                                              */
+/*              NetworkTowerSimulator.java                                      */
+/*                                                                              */
+/*      Local stand-in for a tower controller                                   */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2023 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2023, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ *  Permission to use, copy, modify, and distribute this software and its        *
+ *  documentation for any purpose other than its incorporation into a            *
+ *  commercial product is hereby granted without fee, provided that the          *
+ *  above copyright notice appear in all copies and that both that               *
+ *  copyright notice and this permission notice appear in supporting             *
+ *  documentation, and that the name of Brown University not be used in          *
+ *  advertising or publicity pertaining to distribution of the software          *
+ *  without specific, written prior permission.                                  *
+ *                                                                               *
+ *  BROWN UNIVERSITY DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS                *
+ *  SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND            *
+ *  FITNESS FOR ANY PARTICULAR PURPOSE.  IN NO EVENT SHALL BROWN UNIVERSITY      *
+ *  BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY          *
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS,              *
+ *  WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS               *
+ *  ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR PERFORMANCE          *
+ *  OF THIS SOFTWARE.                                                            *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+
+package edu.brown.cs.spr.shore.network;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.Random;
+
+import edu.brown.cs.spr.shore.shore.ShoreTimer;
+
+public class NetworkTowerSimulator implements NetworkConstants, NetworkControlMessages
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Main program                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+public static void main(String [] args)
+{
+   String host = null;
+   int port = UDP_PORT;
+   int id = 0;
+   boolean batch = true;
+   boolean reliable = false;
+   
+   for (int i = 0; i < args.length; ++i) {
+      if (args[i].startsWith("-h") && i+1 < args.length) {          // -host <master>
+         host = args[++i];
+       }
+      else if (args[i].startsWith("-p") && i+1 < args.length) {     // -port <port>
+         port = Integer.parseInt(args[++i]);
+       }
+      else if (args[i].startsWith("-i") && i+1 < args.length) {     // -id <tower>
+         id = Integer.parseInt(args[++i]);
+       }
+      else if (args[i].startsWith("-n")) {                          // -nobatch
+         batch = false;
+       }
+      else if (args[i].startsWith("-s")) {                          // -sequenced
+         reliable = true;
+       }
+      else {
+         System.err.println("TOWERSIM -host <master> -port <port> -id <tower> [-nobatch] [-sequenced]");
+         System.exit(1);
+       }
+    }
+   
+   try {
+      InetAddress addr = (host == null ? InetAddress.getLocalHost() : 
+         InetAddress.getByName(host));
+      NetworkTowerSimulator sim = new NetworkTowerSimulator(
+            new InetSocketAddress(addr,port),id,batch);
+      sim.setReliable(reliable);
+      sim.start();
+      for ( ; ; ) {
+         Thread.sleep(10000);
+         System.err.println("TOWERSIM: " + sim.getPacketCount() + " packets, " + 
+               sim.getCommandCount() + " commands, " + sim.getBatchCount() + " batches");
+       }
+    }
+   catch (Exception e) {
+      System.err.println("TOWERSIM: Problem running simulator: " + e);
+      System.exit(1);
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private SocketAddress   master_address;
+private DatagramSocket  tower_socket;
+private byte            tower_id;
+private boolean         accept_batch;
+private boolean         ack_sequenced;
+private boolean []      seen_sequence;
+private long            duplicate_count;
+private byte []         switch_state;
+private byte []         signal_state;
+private byte []         sensor_state;
+private long            packet_count;
+private long            command_count;
+private long            batch_count;
+private double          packet_loss;
+private long            reply_delay;
+private Random          random_gen;
+private CommandListener command_listener;
+private volatile boolean is_running;
+
+private static final long HEARTBEAT_INTERVAL = 30000;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Create a simulated tower that talks to the given master.  The tower
+ *      speaks the standard 4-byte protocol and, if batch is true, announces
+ *      and accepts CONTROL_BATCH messages.
+ **/
+
+public NetworkTowerSimulator(SocketAddress master,int id,boolean batch) throws SocketException
+{
+   this(master,id,batch,null);
+}
+
+
+public NetworkTowerSimulator(SocketAddress master,int id,boolean batch,
+      InetAddress local) throws SocketException
+{
+   master_address = master;
+   tower_id = (byte) id;
+   accept_batch = batch;
+   ack_sequenced = false;
+   seen_sequence = new boolean[256];
+   duplicate_count = 0;
+   tower_socket = new DatagramSocket(new InetSocketAddress(local,0));
+   switch_state = new byte[256];
+   signal_state = new byte[256];
+   sensor_state = new byte[256];
+   for (int i = 0; i < 256; ++i) {
+      switch_state[i] = -1;
+      signal_state[i] = -1;
+      sensor_state[i] = -1;
+    }
+   packet_count = 0;
+   command_count = 0;
+   batch_count = 0;
+   packet_loss = 0;
+   reply_delay = 0;
+   random_gen = new Random();
+   command_listener = null;
+   is_running = false;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+public synchronized long getPacketCount()               { return packet_count; }
+public synchronized long getCommandCount()              { return command_count; }
+public synchronized long getBatchCount()                { return batch_count; }
+public synchronized long getDuplicateCount()            { return duplicate_count; }
+
+public int getTowerId()                                 { return tower_id; }
+
+public synchronized int getSwitchState(int idx)         { return switch_state[idx & 0xff]; }
+public synchronized int getSignalState(int idx)         { return signal_state[idx & 0xff]; }
+
+public static int getMasterPort()                       { return UDP_PORT; }
+public static boolean isSwitchCommand(byte cmd)         { return cmd == CONTROL_SETSWTICH; }
+public static boolean isSignalCommand(byte cmd)         { return cmd == CONTROL_SETSIGNAL; }
+
+/**
+ *      Fraction of packets, in either direction, that are silently dropped.
+ **/
+
+public void setPacketLoss(double p)                     { packet_loss = p; }
+
+/**
+ *      Time in ms before each outgoing message is sent.
+ **/
+
+public void setReplyDelay(long ms)                      { reply_delay = ms; }
+
+/**
+ *      Announce MESSAGE_CAP_RELIABLE and ack sequenced batches.  Must be 
+ *      set before start(); only meaningful for batching towers.
+ **/
+
+public void setReliable(boolean fg)                     { ack_sequenced = fg; }
+
+/**
+ *      Register a listener that sees each command as it arrives.
+ **/
+
+public void setCommandListener(CommandListener cl)      { command_listener = cl; }
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Start and stop                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+public void start()
+{
+   is_running = true;
+   new ReaderThread().start();
+   new HeartbeatThread().start();
+}
+
+
+public void stop()
+{
+   is_running = false;
+   tower_socket.close();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Outgoing messages                                                       */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Report a sensor change to the master, as a tower does when a 
+ *      sensor trips.
+ **/
+
+public void reportSensor(int idx,boolean on)
+{
+   byte v = (on ? MESSAGE_ON : MESSAGE_OFF);
+   synchronized (this) {
+      sensor_state[idx & 0xff] = v;
+    }
+   send(CONTROL_SENSOR,(byte) idx,v);
+}
+
+
+private void sendId(boolean first)
+{
+   byte caps = (accept_batch ? MESSAGE_CAP_BATCH : 0);
+   if (accept_batch && ack_sequenced) caps |= MESSAGE_CAP_RELIABLE;
+   send(CONTROL_ID,(byte) (first ? 1 : 0),caps);
+}
+
+
+private void send(byte cmd,byte idx,byte value)
+{
+   byte [] msg = { cmd, tower_id, idx, value };
+   if (isLost()) return;
+   if (reply_delay > 0) {
+      ShoreTimer.getTimer().schedule(() -> sendNow(msg),reply_delay);
+    }
+   else sendNow(msg);
+}
+
+
+private void sendNow(byte [] msg)
+{
+   try {
+      tower_socket.send(new DatagramPacket(msg,4,master_address));
+    }
+   catch (IOException e) {
+      if (is_running) System.err.println("TOWERSIM: Problem sending: " + e);
+    }
+}
+
+
+private boolean isLost()
+{
+   if (packet_loss <= 0) return false;
+   synchronized (random_gen) {
+      return random_gen.nextDouble() < packet_loss;
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Incoming messages                                                       */
+/*                                                                              */
+/********************************************************************************/
+
+private void handlePacket(byte [] data,int len)
+{
+   if (isLost()) return;
+   synchronized (this) {
+      ++packet_count;
+    }
+   if (len < 4) return;
+   
+   if (data[0] == CONTROL_BATCH) {
+      if (!accept_batch) return;
+      synchronized (this) {
+         ++batch_count;
+       }
+      if (data[3] != 0 && ack_sequenced && !noteSequence(data[3])) return;
+      int ct = data[2] & 0xff;
+      for (int i = 0; i < ct; ++i) {
+         int off = 4 + i*4;
+         if (off + 4 > len) break;
+         handleCommand(data[off],data[off+2],data[off+3]);
+       }
+    }
+   else {
+      handleCommand(data[0],data[2],data[3]);
+    }
+}
+
+
+/**
+ *      Ack a sequenced batch; returns false if it is a duplicate that
+ *      should not be applied again.
+ **/
+
+private boolean noteSequence(byte seq)
+{
+   send(CONTROL_ACK,seq,(byte) 0);
+   int s = seq & 0xff;
+   synchronized (this) {
+      // forget the half of the sequence space furthest from this one
+      seen_sequence[(s + 128) & 0xff] = false;
+      if (seen_sequence[s]) {
+         ++duplicate_count;
+         return false;
+       }
+      seen_sequence[s] = true;
+    }
+   return true;
+}
+
+
+private void handleCommand(byte cmd,byte idx,byte value)
+{
+   synchronized (this) {
+      ++command_count;
+    }
+   CommandListener cl = command_listener;
+   if (cl != null) cl.commandReceived(this,cmd,idx,value);
+   
+   switch (cmd) {
+      case CONTROL_SETSWTICH :
+         synchronized (this) {
+            switch_state[idx & 0xff] = value;
+          }
+         send(CONTROL_SWITCH,idx,value);
+         break;
+      case CONTROL_SETSIGNAL :
+         synchronized (this) {
+            signal_state[idx & 0xff] = value;
+          }
+         send(CONTROL_SIGNAL,idx,value);
+         break;
+      case CONTROL_SETSENSOR :
+         synchronized (this) {
+            sensor_state[idx & 0xff] = value;
+          }
+         break;
+      case CONTROL_SYNC :
+         sendSync();
+         break;
+      case CONTROL_QUERY :
+         sendId(false);
+         break;
+      case CONTROL_RESET :
+      case CONTROL_REBOOT :
+         sendId(true);
+         break;
+      default :
+         break;
+    }
+}
+
+
+private void sendSync()
+{
+   byte [] sws;
+   byte [] sigs;
+   byte [] sens;
+   synchronized (this) {
+      sws = switch_state.clone();
+      sigs = signal_state.clone();
+      sens = sensor_state.clone();
+    }
+   for (int i = 0; i < 256; ++i) {
+      if (sws[i] >= 0) send(CONTROL_SWITCH,(byte) i,sws[i]);
+      if (sigs[i] >= 0) send(CONTROL_SIGNAL,(byte) i,sigs[i]);
+      if (sens[i] >= 0) send(CONTROL_SENSOR,(byte) i,sens[i]);
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Command listener                                                        */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Callback for each command (individual or within a batch) the tower
+ *      receives from the master.  Called on the reader thread.
+ **/
+
+public interface CommandListener {
+
+   void commandReceived(NetworkTowerSimulator tower,byte cmd,byte idx,byte value);
+
+}       // end of inner interface CommandListener
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Reader thread                                                           */
+/*                                                                              */
+/********************************************************************************/
+
+private final class ReaderThread extends Thread {
+
+   ReaderThread() {
+      super("TowerSimReader_" + tower_id);
+      setDaemon(true);
+    }
+   
+   @Override public void run() {
+      byte [] buf = new byte[BUFFER_SIZE];
+      DatagramPacket pkt = new DatagramPacket(buf,buf.length);
+      while (is_running) {
+         try {
+            pkt.setLength(buf.length);
+            tower_socket.receive(pkt);
+            handlePacket(buf,pkt.getLength());
+          }
+         catch (IOException e) {
+            if (is_running) System.err.println("TOWERSIM: Problem reading: " + e);
+          }
+       }
+    }
+
+}       // end of inner class ReaderThread
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Heartbeat thread                                                        */
+/*                                                                              */
+/********************************************************************************/
+
+private final class HeartbeatThread extends Thread {
+
+   HeartbeatThread() {
+      super("TowerSimHeartbeat_" + tower_id);
+      setDaemon(true);
+    }
+   
+   @Override public void run() {
+      boolean first = true;
+      while (is_running) {
+         sendId(first);
+         first = false;
+         try {
+            Thread.sleep(HEARTBEAT_INTERVAL);
+          }
+         catch (InterruptedException e) { }
+       }
+    }
+
+}       // end of inner class HeartbeatThread
+
+
+
+}       // end of class NetworkTowerSimulator
+
+
+
+
+/* end of NetworkTowerSimulator.java */
@@ -146,12 +146,7 @@ abstract boolean isRelevant(IfaceBlock from,IfaceConnection c);
 
 protected IfaceBlock findBlockById(String bid)
 {
-   for (IfaceBlock bb : layout_model.getBlocks()) {
-      if (bb.getId().equals(bid)) {
-         return bb;
-       }
-    } 
-   return null;
+   return layout_model.findBlockById(bid);
 }
 
 
@@ -170,13 +165,7 @@ protected IfaceSwitch findSwitchForPoint(IfacePoint pt)
 {
    if (pt == null) return null;
    
-   for (IfaceSwitch ms : layout_model.getSwitches()) { 
-      if (ms.getPivotPoint() == pt) {
-         return ms;
-       }
-    }
-   
-   return null;
+   return layout_model.findSwitchForPoint(pt);
 }
 
 
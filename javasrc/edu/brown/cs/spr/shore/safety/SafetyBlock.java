@@ -40,7 +40,6 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.TimerTask;
 
 import edu.brown.cs.spr.shore.iface.IfaceBlock;
 import edu.brown.cs.spr.shore.iface.IfaceConnection;
@@ -48,6 +47,7 @@ import edu.brown.cs.spr.shore.iface.IfacePoint;
 import edu.brown.cs.spr.shore.iface.IfaceSensor;
 import edu.brown.cs.spr.shore.iface.IfaceSwitch;
 import edu.brown.cs.spr.shore.shore.ShoreLog;
+import edu.brown.cs.spr.shore.shore.ShoreTimer.TimerHandle;
 
 class SafetyBlock implements SafetyConstants
 {
@@ -289,6 +289,7 @@ private class BlockData {
    private IfacePoint prior_point;
    private Set<IfaceSensor> hit_sensors;
    private long exit_time;
+   private TimerHandle exit_task;
    private boolean is_verified;
    
    BlockData(IfaceBlock blk,IfaceSensor s) {
@@ -296,6 +297,7 @@ private class BlockData {
       current_point = null;
       prior_point = null;
       hit_sensors = new HashSet<>();
+      exit_task = null;
       noteBlockSensor(s);
       exit_time = 0;
     }
@@ -324,6 +326,11 @@ private class BlockData {
           }
        }
       exit_time = 0;
+      if (exit_task != null) {
+         // block is still occupied; no need for the pending exit check
+         exit_task.cancel();
+         exit_task = null;
+       }
       
       if (s.getSensorState() == ShoreSensorState.OFF && !is_verified) {
          ShoreLog.logD("SAFETY","Begin verification delay for " + for_block);
@@ -351,7 +358,8 @@ private class BlockData {
    void checkEmptyBlock() {
       ShoreLog.logD("SAFETY","Note block " + for_block + " seems empty");
       exit_time = System.currentTimeMillis();
-      safety_factory.schedule(new BlockTask(this,exit_time),BLOCK_DELAY);
+      if (exit_task != null) exit_task.cancel();
+      exit_task = safety_factory.schedule(new BlockTask(this,exit_time),BLOCK_DELAY);
     }
    
    void checkVerified() {
@@ -401,7 +409,7 @@ private class BlockData {
 
 
 
-private class VerifyTask extends TimerTask {
+private class VerifyTask implements Runnable {
 
    private BlockData block_data;
    
@@ -415,7 +423,7 @@ private class VerifyTask extends TimerTask {
    
 }       // end of inner class VerifyTask
 
-private class BlockTask extends TimerTask {
+private class BlockTask implements Runnable {
    
    private BlockData block_data;
    private long start_time;
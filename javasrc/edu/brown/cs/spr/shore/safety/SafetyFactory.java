@@ -38,8 +38,6 @@ package edu.brown.cs.spr.shore.safety;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import edu.brown.cs.spr.shore.iface.IfaceNetwork;
 import edu.brown.cs.spr.shore.iface.IfaceSafety;
@@ -50,7 +48,9 @@ import edu.brown.cs.spr.shore.iface.IfaceSignal;
 import edu.brown.cs.spr.shore.iface.IfaceSwitch;
 import edu.brown.cs.spr.shore.iface.IfaceTrains;
 import edu.brown.cs.spr.shore.iface.IfaceModel.ModelCallback;
+import edu.brown.cs.spr.shore.shore.ShoreControlLoop;
 import edu.brown.cs.spr.shore.shore.ShoreLog;
+import edu.brown.cs.spr.shore.shore.ShoreTimer.TimerHandle;
 
 public class SafetyFactory implements IfaceSafety, SafetyConstants
 {
@@ -64,7 +64,6 @@ public class SafetyFactory implements IfaceSafety, SafetyConstants
 
 private IfaceNetwork    network_model;
 private IfaceModel      layout_model;
-private Timer           safety_timer;
 private Map<IfaceSensor,ShoreSensorState> sensor_map;
 private SafetySwitch    safety_switch;
 private SafetySignal    safety_signal;
@@ -82,7 +81,6 @@ public SafetyFactory(IfaceNetwork net,IfaceModel mdl,IfaceTrains trains)
    network_model = net;
    layout_model = mdl;
    
-   safety_timer = new Timer("SensorTimer",true);
    sensor_map = new HashMap<>();
    
    safety_switch = new SafetySwitch(this); 
@@ -110,9 +108,10 @@ boolean checkPriorSensors(Collection<IfaceSensor> prior)
 }
 
 
-void schedule(TimerTask task,long delay)
+// safety timeouts run on the control thread with the safety callbacks
+TimerHandle schedule(Runnable task,long delay)
 {
-   safety_timer.schedule(task,delay);
+   return ShoreControlLoop.getLoop().schedule(task,delay);
 }
 
 
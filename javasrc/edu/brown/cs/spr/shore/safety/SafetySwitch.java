@@ -37,12 +37,12 @@ package edu.brown.cs.spr.shore.safety;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.TimerTask;
 
 import edu.brown.cs.spr.shore.iface.IfaceBlock;
 import edu.brown.cs.spr.shore.iface.IfaceSensor;
 import edu.brown.cs.spr.shore.iface.IfaceSwitch;
 import edu.brown.cs.spr.shore.shore.ShoreLog;
+import edu.brown.cs.spr.shore.shore.ShoreTimer.TimerHandle;
 
 
 class SafetySwitch implements SafetyConstants
@@ -162,11 +162,13 @@ private class SwitchData {
    private SwitchMode  current_mode;
    private ShoreSwitchState last_state;
    private long last_trigger;
+   private TimerHandle done_task;
    
    SwitchData(IfaceSwitch sw) {
       for_switch = sw;
       current_mode = SwitchMode.NORMAL;
       last_trigger = 0;
+      done_task = null;
     }
    
    void trigger(ShoreSensorState sen,ShoreSwitchState state) {
@@ -187,7 +189,7 @@ private class SwitchData {
                last_trigger = System.currentTimeMillis();
                current_mode = SwitchMode.DONE;
                SwitchTask task = new SwitchTask(this,last_trigger);
-               safety_factory.schedule(task,SWITCH_DELAY);
+               done_task = safety_factory.schedule(task,SWITCH_DELAY);
              }
             break;
          case DONE :
@@ -207,6 +209,10 @@ private class SwitchData {
     }
    
    private void doTrigger(ShoreSwitchState state) {
+      if (done_task != null) {
+         done_task.cancel();
+         done_task = null;
+       }
       safety_factory.getNetworkModel().setSwitch(for_switch,state);
       current_mode = SwitchMode.SET;
       last_trigger = 0;
@@ -216,7 +222,7 @@ private class SwitchData {
 }
 
 
-private class SwitchTask extends TimerTask {
+private class SwitchTask implements Runnable {
    
    private SwitchData switch_data;
    private long start_time;
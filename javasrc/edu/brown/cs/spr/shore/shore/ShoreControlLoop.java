@@ -0,0 +1,230 @@
+/********************************************************************************/
+/*                                                                              */
+/*              ShoreControlLoop.java                                           */
+/*                                                                              */
+/*      Single thread that applies control changes and runs their callbacks     */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2023 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2023, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ *  Permission to use, copy, modify, and distribute this software and its        *
+ *  documentation for any purpose other than its incorporation into a            *
+ *  commercial product is hereby granted without fee, provided that the          *
+ *  above copyright notice appear in all copies and that both that               *
+ *  copyright notice and this permission notice appear in supporting             *
+ *  documentation, and that the name of Brown University not be used in          *
+ *  advertising or publicity pertaining to distribution of the software          *
+ *  without specific, written prior permission.                                  *
+ *                                                                               *
+ *  BROWN UNIVERSITY DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS                *
+ *  SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND            *
+ *  FITNESS FOR ANY PARTICULAR PURPOSE.  IN NO EVENT SHALL BROWN UNIVERSITY      *
+ *  BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY          *
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS,              *
+ *  WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS               *
+ *  ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR PERFORMANCE          *
+ *  OF THIS SOFTWARE.                                                            *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+
+
+package edu.brown.cs.spr.shore.shore;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.brown.cs.spr.shore.shore.ShoreTimer.TimerHandle;
+
+public final class ShoreControlLoop implements ShoreConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private Queue<Runnable> event_queue;
+private LoopThread      loop_thread;
+private volatile boolean is_waiting;
+
+private static ShoreControlLoop the_loop = null;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Static access                                                           */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Return the shared control loop.  Changes to the layout model (sensor,
+ *      switch, signal and block state) are made on this one thread and the
+ *      model, safety and train callbacks run here in the order the changes 
+ *      were made.  It does not depend on JavaFX; views that need the FX 
+ *      thread hop there themselves.  Tasks must be short and must not block.
+ **/
+
+public static synchronized ShoreControlLoop getLoop()
+{
+   if (the_loop == null) {
+      the_loop = new ShoreControlLoop();
+    }
+   return the_loop;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+private ShoreControlLoop()
+{
+   event_queue = new ConcurrentLinkedQueue<>();
+   is_waiting = false;
+   
+   loop_thread = new LoopThread();
+   loop_thread.start();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Queue a task to run on the control thread after anything already
+ *      queued.
+ **/
+
+public void execute(Runnable task)
+{
+   event_queue.add(task);
+   if (is_waiting) LockSupport.unpark(loop_thread);
+}
+
+
+/**
+ *      Run the task now if this is the control thread, otherwise queue it.
+ **/
+
+public void run(Runnable task)
+{
+   if (isControlThread()) task.run();
+   else execute(task);
+}
+
+
+public boolean isControlThread()
+{
+   return Thread.currentThread() == loop_thread;
+}
+
+
+/**
+ *      Run the task on the control thread after delay milliseconds.  The
+ *      shared timer only hands the task over, so timeouts are handled in
+ *      order with everything else.  Cancelling the handle on the control
+ *      thread stops the task even if the timer has already fired.
+ **/
+
+public TimerHandle schedule(Runnable task,long delay)
+{
+   DelayedTask dt = new DelayedTask(task);
+   TimerHandle th = ShoreTimer.getTimer().schedule(dt,delay);
+   dt.setHandle(th);
+   return th;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Delayed tasks                                                           */
+/*                                                                              */
+/********************************************************************************/
+
+private final class DelayedTask implements Runnable {
+   
+   private Runnable loop_task;
+   private volatile TimerHandle timer_handle;
+   
+   DelayedTask(Runnable task) {
+      loop_task = task;
+      timer_handle = null;
+    }
+   
+   void setHandle(TimerHandle th)               { timer_handle = th; }
+   
+   @Override public void run() {
+      execute(this::runTask);
+    }
+   
+   private void runTask() {
+      TimerHandle th = timer_handle;
+      if (th != null && th.isCancelled()) return;
+      loop_task.run();
+    }
+   
+}       // end of inner class DelayedTask
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Processing thread                                                       */
+/*                                                                              */
+/********************************************************************************/
+
+private final class LoopThread extends Thread {
+
+   LoopThread() {
+      super("ShoreControl");
+      setDaemon(true);
+    }
+   
+   @Override public void run() {
+      for ( ; ; ) {
+         Runnable task = event_queue.poll();
+         if (task == null) {
+            // check again after saying we are waiting so an add isn't missed
+            is_waiting = true;
+            if (event_queue.isEmpty()) LockSupport.park(this);
+            is_waiting = false;
+            continue;
+          }
+         try {
+            task.run();
+          }
+         catch (Throwable t) {
+            ShoreLog.logE("SHORE","Problem running control task",t);
+          }
+       }
+    }
+
+}       // end of inner class LoopThread
+
+
+
+}       // end of class ShoreControlLoop
+
+
+
+
+/* end of ShoreControlLoop.java */
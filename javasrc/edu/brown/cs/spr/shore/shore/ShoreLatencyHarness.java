@@ -0,0 +1,431 @@
+/********************************************************************************/
+/*                                                                              */
+/*              ShoreLatencyHarness.java                                        */
+/*                                                                              */
+/*      Headless sensor-to-command latency measurement                          */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2023 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2023, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ *  Permission to use, copy, modify, and distribute this software and its        *
+ *  documentation for any purpose other than its incorporation into a            *
+ *  commercial product is hereby granted without fee, provided that the          *
+ *  above copyright notice appear in all copies and that both that               *
+ *  copyright notice and this permission notice appear in supporting             *
+ *  documentation, and that the name of Brown University not be used in          *
+ *  advertising or publicity pertaining to distribution of the software          *
+ *  without specific, written prior permission.                                  *
+ *                                                                               *
+ *  BROWN UNIVERSITY DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS                *
+ *  SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND            *
+ *  FITNESS FOR ANY PARTICULAR PURPOSE.  IN NO EVENT SHALL BROWN UNIVERSITY      *
+ *  BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY          *
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS,              *
+ *  WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS               *
+ *  ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR PERFORMANCE          *
+ *  OF THIS SOFTWARE.                                                            *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+
+
+package edu.brown.cs.spr.shore.shore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import edu.brown.cs.spr.shore.iface.IfaceConstants;
+import edu.brown.cs.spr.shore.iface.IfaceSensor;
+import edu.brown.cs.spr.shore.iface.IfaceSignal;
+import edu.brown.cs.spr.shore.iface.IfaceSwitch;
+import edu.brown.cs.spr.shore.model.ModelBase;
+import edu.brown.cs.spr.shore.network.NetworkMonitor;
+import edu.brown.cs.spr.shore.network.NetworkTowerSimulator;
+import edu.brown.cs.spr.shore.safety.SafetyFactory;
+import edu.brown.cs.spr.shore.train.TrainFactory;
+
+/**
+ *      Runs the model, train, safety and network modules without the display
+ *      against simulated towers on loopback, toggles sensors at a fixed rate,
+ *      and measures the time from each sensor report leaving a tower to the 
+ *      switch and signal commands it causes arriving back at a tower.  The
+ *      percentiles are written as JSON so runs can be compared.
+ **/
+
+public final class ShoreLatencyHarness implements ShoreConstants, IfaceConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Main program                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+public static void main(String [] args)
+{
+   ShoreLatencyHarness slh = new ShoreLatencyHarness(args);
+   try {
+      slh.process();
+    }
+   catch (Exception e) {
+      System.err.println("LATENCY: Problem running harness: " + e);
+      System.exit(1);
+    }
+   System.exit(0);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private File            model_file;
+private File            report_file;
+private double          event_rate;
+private int             event_count;
+private long            random_seed;
+private long            settle_time;
+
+private volatile long   last_inject;
+private volatile boolean got_response;
+private LatencyLog      first_latency;
+private LatencyLog      signal_latency;
+private LatencyLog      switch_latency;
+private int             unanswered_count;
+private Map<Integer,Integer> tower_values;
+private Map<Integer,IfaceSwitch> alias_switches;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+private ShoreLatencyHarness(String [] args)
+{
+   ShoreLog.setup();
+   
+   model_file = null;
+   report_file = new File("shore.latency.json");
+   event_rate = 20;
+   event_count = 1000;
+   random_seed = 1;
+   settle_time = 3000;
+   last_inject = 0;
+   got_response = true;
+   first_latency = new LatencyLog();
+   signal_latency = new LatencyLog();
+   switch_latency = new LatencyLog();
+   unanswered_count = 0;
+   tower_values = new HashMap<>();
+   alias_switches = new HashMap<>();
+   
+   scanArgs(args);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Argument scanning methods                                               */
+/*                                                                              */
+/********************************************************************************/
+
+private void scanArgs(String [] args)
+{
+   try {
+      for (int i = 0; i < args.length; ++i) {
+         String arg = args[i];
+         boolean more = i+1 < args.length;
+         if (arg.startsWith("-m") && more) {                    // -model <file>
+            model_file = new File(args[++i]);
+          }
+         else if (arg.startsWith("-o") && more) {               // -output <file>
+            report_file = new File(args[++i]);
+          }
+         else if (arg.startsWith("-r") && more) {               // -rate <events/s>
+            event_rate = Double.parseDouble(args[++i]);
+          }
+         else if (arg.startsWith("-n") && more) {               // -number <events>
+            event_count = Integer.parseInt(args[++i]);
+          }
+         else if (arg.startsWith("-s") && more) {               // -seed <n>
+            random_seed = Long.parseLong(args[++i]);
+          }
+         else if (!arg.startsWith("-") && model_file == null) {
+            model_file = new File(arg);
+          }
+         else badArgs();
+       }
+    }
+   catch (NumberFormatException e) {
+      badArgs();
+    }
+   
+   if (model_file == null || !model_file.canRead() || event_rate <= 0) badArgs();
+}
+
+
+private void badArgs()
+{
+   System.err.println("LATENCY -m <modelfile> [-o <report>] [-rate <events/s>] " +
+         "[-number <events>] [-seed <n>]");
+   System.exit(1);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Processing methods                                                      */
+/*                                                                              */
+/********************************************************************************/
+
+private void process() throws Exception
+{
+   InetAddress local = InetAddress.getLoopbackAddress();
+   ModelBase model = new ModelBase(model_file);
+   TrainFactory trains = new TrainFactory(model);
+   // the simulated towers announce themselves; keep them out of any registry,
+   // and don't overwrite the capture of a real session
+   NetworkMonitor network = new NetworkMonitor(model,trains,local,null,null);
+   trains.setNetworkModel(network);
+   new SafetyFactory(network,model,trains);
+   
+   Map<Integer,NetworkTowerSimulator> towers = startTowers(model,local);
+   network.start();
+   Thread.sleep(settle_time);
+   
+   // sensors without a tower can't be reported
+   List<IfaceSensor> sensors = new ArrayList<>();
+   for (IfaceSensor s : model.getSensors()) {
+      if (s.getTowerId() >= 0) sensors.add(s);
+    }
+   Random rand = new Random(random_seed);
+   long period = Math.round(1000000000.0 / event_rate);
+   long next = System.nanoTime();
+   for (int i = 0; i < event_count; ++i) {
+      // each sensor is turned on by one event and off by the next
+      IfaceSensor sen = sensors.get(rand.nextInt(sensors.size()));
+      NetworkTowerSimulator tower = towers.get((int) sen.getTowerId());
+      noteInject();
+      tower.reportSensor(sen.getTowerSensor(),true);
+      next = pause(next + period);
+      noteInject();
+      tower.reportSensor(sen.getTowerSensor(),false);
+      next = pause(next + period);
+    }
+   noteInject();
+   
+   for (NetworkTowerSimulator tower : towers.values()) tower.stop();
+   writeReport(towers.size());
+}
+
+
+private Map<Integer,NetworkTowerSimulator> startTowers(ModelBase model,InetAddress local)
+      throws IOException
+{
+   Map<Integer,NetworkTowerSimulator> rslt = new TreeMap<>();
+   List<Integer> ids = new ArrayList<>();
+   for (IfaceSensor s : model.getSensors()) ids.add((int) s.getTowerId());
+   for (IfaceSwitch s : model.getSwitches()) {
+      ids.add((int) s.getTowerId());
+      if (s.getTowerRSwitch() >= 0) {
+         alias_switches.put(getTargetKey(s.getTowerId(),s.getTowerRSwitch()),s);
+       }
+    }
+   for (IfaceSignal s : model.getSignals()) ids.add((int) s.getTowerId());
+   // items without a tower would get a tower the master never maps
+   ids.removeIf((id) -> id < 0);
+   
+   SocketAddress master = new InetSocketAddress(local,
+         NetworkTowerSimulator.getMasterPort());
+   for (Integer id : ids) {
+      if (rslt.containsKey(id)) continue;
+      NetworkTowerSimulator tower = new NetworkTowerSimulator(master,id,true,local);
+      tower.setCommandListener(this::handleCommand);
+      tower.start();
+      rslt.put(id,tower);
+    }
+   
+   return rslt;
+}
+
+
+private long pause(long until)
+{
+   for ( ; ; ) {
+      long now = System.nanoTime();
+      if (now >= until) return until;
+      try {
+         Thread.sleep((until - now) / 1000000,(int) ((until - now) % 1000000));
+       }
+      catch (InterruptedException e) { }
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Latency tracking                                                        */
+/*                                                                              */
+/********************************************************************************/
+
+private synchronized void noteInject()
+{
+   if (last_inject != 0 && !got_response) ++unanswered_count;
+   last_inject = System.nanoTime();
+   got_response = false;
+}
+
+
+/**
+ *      Only commands that change what the tower holds are charged to the
+ *      latest event.  Resends and resyncs of the current state (the 
+ *      master's housekeeping traffic) repeat a value the tower already has.
+ **/
+
+private synchronized void handleCommand(NetworkTowerSimulator tower,byte cmd,byte idx,byte value)
+{
+   boolean sw = NetworkTowerSimulator.isSwitchCommand(cmd);
+   if (!sw && !NetworkTowerSimulator.isSignalCommand(cmd)) return;
+   
+   // a switch's R alias sets the same switch, so record it as R
+   int key = getTargetKey(tower.getTowerId(),idx);
+   int v = value;
+   if (sw) {
+      IfaceSwitch asw = alias_switches.get(key);
+      if (asw != null) {
+         key = getTargetKey(tower.getTowerId(),asw.getTowerSwitch());
+         v = ShoreSwitchState.R.ordinal();
+       }
+    }
+   else key |= 1 << 16;
+   Integer prior = tower_values.put(key,v);
+   if (prior != null && prior == v) return;
+   if (last_inject == 0) return;
+   
+   long delta = System.nanoTime() - last_inject;
+   if (sw) switch_latency.add(delta);
+   else signal_latency.add(delta);
+   if (!got_response) {
+      got_response = true;
+      first_latency.add(delta);
+    }
+}
+
+
+
+private static int getTargetKey(int tower,int idx)
+{
+   return ((tower & 0xff) << 8) | (idx & 0xff);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Report output                                                           */
+/*                                                                              */
+/********************************************************************************/
+
+private void writeReport(int ntower) throws IOException
+{
+   try (PrintWriter pw = new PrintWriter(report_file)) {
+      pw.println("{");
+      pw.println("  \"model\": \"" + model_file.getName() + "\",");
+      pw.println("  \"towers\": " + ntower + ",");
+      pw.println("  \"rate\": " + event_rate + ",");
+      pw.println("  \"events\": " + (2 * event_count) + ",");
+      pw.println("  \"seed\": " + random_seed + ",");
+      pw.println("  \"unanswered\": " + unanswered_count + ",");
+      pw.println("  \"first\": " + first_latency.toJson() + ",");
+      pw.println("  \"signal\": " + signal_latency.toJson() + ",");
+      pw.println("  \"switch\": " + switch_latency.toJson());
+      pw.println("}");
+    }
+   System.err.println("LATENCY: first response " + first_latency.toJson());
+   System.err.println("LATENCY: report written to " + report_file);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Latency samples                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private static final class LatencyLog {
+
+   private long [] sample_values;
+   private int sample_count;
+   
+   LatencyLog() {
+      sample_values = new long[1024];
+      sample_count = 0;
+    }
+   
+   void add(long nanos) {
+      if (sample_count == sample_values.length) {
+         sample_values = Arrays.copyOf(sample_values,sample_count * 2);
+       }
+      sample_values[sample_count++] = nanos;
+    }
+   
+   String toJson() {
+      long [] v = Arrays.copyOf(sample_values,sample_count);
+      Arrays.sort(v);
+      StringBuffer buf = new StringBuffer();
+      buf.append("{ \"count\": " + v.length);
+      if (v.length > 0) {
+         buf.append(", \"p50_us\": " + percentile(v,0.50));
+         buf.append(", \"p90_us\": " + percentile(v,0.90));
+         buf.append(", \"p99_us\": " + percentile(v,0.99));
+         buf.append(", \"p999_us\": " + percentile(v,0.999));
+         buf.append(", \"max_us\": " + v[v.length-1] / 1000);
+       }
+      buf.append(" }");
+      return buf.toString();
+    }
+   
+   private long percentile(long [] sorted,double p) {
+      int idx = (int) Math.ceil(p * sorted.length) - 1;
+      idx = Math.max(0,Math.min(idx,sorted.length-1));
+      return sorted[idx] / 1000;
+    }
+   
+}       // end of inner class LatencyLog
+
+
+
+}       // end of class ShoreLatencyHarness
+
+
+
+
+/* end of ShoreLatencyHarness.java */
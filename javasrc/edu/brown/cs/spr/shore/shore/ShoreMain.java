@@ -36,6 +36,8 @@
 package edu.brown.cs.spr.shore.shore;
 
 import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.Date;
 
 import edu.brown.cs.spr.shore.model.ModelBase;
@@ -80,6 +82,10 @@ private VisionFactory   vision_base;
 
 private File            model_file;
 private File            report_file;
+private InetAddress     network_address;
+private File            registry_file;
+private File            capture_file;
+private boolean         use_capture;
 
 
 
@@ -100,6 +106,10 @@ private ShoreMain(String [] args)
    safety_base = null;
    report_file = null;
    vision_base = null;
+   network_address = null;
+   registry_file = null;
+   capture_file = null;
+   use_capture = true;
    
    scanArgs(args);
 }
@@ -122,7 +132,11 @@ private void process()
    if (report_file != null) {
       model_base.createReport(report_file,train_base);    
     }
-   network_monitor = new NetworkMonitor(model_base,train_base);
+   File reg = registry_file;
+   if (reg == null) reg = NetworkMonitor.getDefaultRegistry(network_address);
+   File cap = capture_file;
+   if (cap == null && use_capture) cap = NetworkMonitor.getDefaultCapture();
+   network_monitor = new NetworkMonitor(model_base,train_base,network_address,reg,cap);
    train_base.setNetworkModel(network_monitor);
    
    safety_base = new SafetyFactory(network_monitor,model_base,train_base); 
@@ -162,9 +176,26 @@ private void scanArgs(String [] args)
              }
             else badArgs();
           }
+         else if (arg.startsWith("-reg") && i+1 < args.length) { // -registry <file>
+            registry_file = new File(args[++i]);
+          }
+         else if (arg.startsWith("-c") && i+1 < args.length) {  // -capture <file>
+            capture_file = new File(args[++i]);
+          }
+         else if (arg.startsWith("-noc")) {                     // -nocapture
+            use_capture = false;
+          }
          else if (arg.startsWith("-r") && i+1 < args.length) {  // -report <file>
             report_file = new File(args[++i]);
           }
+         else if (arg.startsWith("-a") && i+1 < args.length) {  // -address <local>
+            try {
+               network_address = InetAddress.getByName(args[++i]);
+             }
+            catch (UnknownHostException e) {
+               badArgs();
+             }
+          }
          else badArgs();
        }
       else if (model_file == null) {
@@ -178,7 +209,8 @@ private void scanArgs(String [] args)
 
 private void badArgs()
 {
-   System.err.println("SHORE -m <modelfile>");
+   System.err.println("SHORE -m <modelfile> [-r <report>] [-a <local address>] " +
+         "[-registry <file>] [-capture <file> | -nocapture]");
    System.exit(1);
 }
 
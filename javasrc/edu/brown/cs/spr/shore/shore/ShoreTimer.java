@@ -0,0 +1,283 @@
+/********************************************************************************/
+/*                                                                              */
+/*              ShoreTimer.java                                                 */
+/*                                                                              */
+/*      Shared timing-wheel scheduler for SHORE                                 */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2023 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2023, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ *  Permission to use, copy, modify, and distribute this software and its        *
+ *  documentation for any purpose other than its incorporation into a            *
+ *  commercial product is hereby granted without fee, provided that the          *
+ *  above copyright notice appear in all copies and that both that               *
+ *  copyright notice and this permission notice appear in supporting             *
+ *  documentation, and that the name of Brown University not be used in          *
+ *  advertising or publicity pertaining to distribution of the software          *
+ *  without specific, written prior permission.                                  *
+ *                                                                               *
+ *  BROWN UNIVERSITY DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS                *
+ *  SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND            *
+ *  FITNESS FOR ANY PARTICULAR PURPOSE.  IN NO EVENT SHALL BROWN UNIVERSITY      *
+ *  BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY          *
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS,              *
+ *  WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS               *
+ *  ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR PERFORMANCE          *
+ *  OF THIS SOFTWARE.                                                            *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+
+package edu.brown.cs.spr.shore.shore;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+public final class ShoreTimer implements ShoreConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private List<ArrayDeque<TimerHandle>> wheel_buckets;
+private Queue<TimerHandle> new_timers;
+private long            start_time;
+private long            current_tick;
+
+private static ShoreTimer the_timer = null;
+
+private static final long       TICK_TIME = 5;          // ms per tick
+private static final int        WHEEL_SIZE = 512;       // power of 2
+private static final long       TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_TIME);
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Static access                                                           */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Return the shared timer.  All delayed and periodic work in SHORE
+ *      (safety and train timeouts, tower heartbeats, engine polling) runs
+ *      on this one thread, so tasks must be short and must not block.
+ *      Times are accurate to TICK_TIME.
+ **/
+
+public static synchronized ShoreTimer getTimer()
+{
+   if (the_timer == null) {
+      the_timer = new ShoreTimer();
+    }
+   return the_timer;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+private ShoreTimer()
+{
+   wheel_buckets = new ArrayList<>(WHEEL_SIZE);
+   for (int i = 0; i < WHEEL_SIZE; ++i) {
+      wheel_buckets.add(new ArrayDeque<>());
+    }
+   new_timers = new ConcurrentLinkedQueue<>();
+   start_time = System.nanoTime();
+   current_tick = 0;
+   
+   WheelThread wt = new WheelThread();
+   wt.start();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Scheduling methods                                                      */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Run the task once after delay milliseconds.
+ **/
+
+public TimerHandle schedule(Runnable task,long delay)
+{
+   return addTimer(new TimerHandle(task,0),delay);
+}
+
+
+/**
+ *      Run the task after delay milliseconds and then every period 
+ *      milliseconds after each run finishes, until cancelled.
+ **/
+
+public TimerHandle scheduleRepeating(Runnable task,long delay,long period)
+{
+   return addTimer(new TimerHandle(task,Math.max(period,TICK_TIME)),delay);
+}
+
+
+private TimerHandle addTimer(TimerHandle th,long delay)
+{
+   th.setDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(delay,0)));
+   new_timers.add(th);
+   return th;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Wheel processing                                                        */
+/*                                                                              */
+/********************************************************************************/
+
+private void addNewTimers()
+{
+   for ( ; ; ) {
+      TimerHandle th = new_timers.poll();
+      if (th == null) break;
+      if (th.isCancelled()) continue;
+      long tick = (th.getDeadline() - start_time + TICK_NANOS - 1) / TICK_NANOS;
+      if (tick < current_tick) tick = current_tick;
+      th.setTick(tick);
+      wheel_buckets.get((int) (tick & (WHEEL_SIZE-1))).add(th);
+    }
+}
+
+
+private void processTick()
+{
+   addNewTimers();
+   
+   ArrayDeque<TimerHandle> bucket = wheel_buckets.get((int) (current_tick & (WHEEL_SIZE-1)));
+   List<TimerHandle> torun = null;
+   for (Iterator<TimerHandle> it = bucket.iterator(); it.hasNext(); ) {
+      TimerHandle th = it.next();
+      if (th.isCancelled()) {
+         it.remove();
+       }
+      else if (th.getTick() <= current_tick) {
+         // later rounds of the wheel stay in the bucket
+         it.remove();
+         if (torun == null) torun = new ArrayList<>();
+         torun.add(th);
+       }
+    }
+   
+   if (torun != null) {
+      for (TimerHandle th : torun) {
+         if (th.isCancelled()) continue;
+         try {
+            th.getTask().run();
+          }
+         catch (Throwable t) {
+            ShoreLog.logE("SHORE","Problem running timer task",t);
+          }
+         if (th.getPeriod() > 0 && !th.isCancelled()) {
+            addTimer(th,th.getPeriod());
+          }
+       }
+    }
+   
+   ++current_tick;
+}
+
+
+
+private final class WheelThread extends Thread {
+
+   WheelThread() {
+      super("ShoreTimer");
+      setDaemon(true);
+    }
+   
+   @Override public void run() {
+      for ( ; ; ) {
+         long next = start_time + (current_tick + 1) * TICK_NANOS;
+         long wait = next - System.nanoTime();
+         if (wait > 0) {
+            try {
+               TimeUnit.NANOSECONDS.sleep(wait);
+             }
+            catch (InterruptedException e) { }
+            continue;
+          }
+         processTick();
+       }
+    }
+
+}       // end of inner class WheelThread
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Handle for a scheduled task                                             */
+/*                                                                              */
+/********************************************************************************/
+
+public static final class TimerHandle {
+
+   private Runnable timer_task;
+   private long repeat_period;
+   private long deadline_time;
+   private long deadline_tick;
+   private volatile boolean is_cancelled;
+   
+   private TimerHandle(Runnable task,long period) {
+      timer_task = task;
+      repeat_period = period;
+      deadline_time = 0;
+      deadline_tick = 0;
+      is_cancelled = false;
+    }
+   
+   /**
+    *    Cancel the task.  A task that is already running completes, but 
+    *    won't run again.
+    **/
+   
+   public void cancel()                         { is_cancelled = true; }
+   
+   public boolean isCancelled()                 { return is_cancelled; }
+   
+   Runnable getTask()                           { return timer_task; }
+   long getPeriod()                             { return repeat_period; }
+   long getDeadline()                           { return deadline_time; }
+   void setDeadline(long t)                     { deadline_time = t; }
+   long getTick()                               { return deadline_tick; }
+   void setTick(long t)                         { deadline_tick = t; }
+
+}       // end of inner class TimerHandle
+
+
+
+}       // end of class ShoreTimer
+
+
+
+
+/* end of ShoreTimer.java */
@@ -71,6 +71,16 @@ int SHUTDOWN_TIME = 4000;
  **/
 double SLOW_THROTTLE = 0.35;
 
+/**
+ *      Number of speed/rpm telemetry samples kept per engine
+ **/
+int TELEMETRY_SIZE = 256;
+
+/**
+ *      Minimum time between change events caused by telemetry alone
+ **/
+long TELEMETRY_EVENT_INTERVAL = 250;
+
 }       // end of interface TrainConstants
 
 
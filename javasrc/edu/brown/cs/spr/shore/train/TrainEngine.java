@@ -45,8 +45,8 @@ import edu.brown.cs.ivy.swing.SwingEventListenerList;
 import edu.brown.cs.spr.shore.iface.IfaceBlock;
 import edu.brown.cs.spr.shore.iface.IfaceEngine;
 import edu.brown.cs.spr.shore.iface.IfacePoint;
+import edu.brown.cs.spr.shore.shore.ShoreControlLoop;
 import edu.brown.cs.spr.shore.shore.ShoreLog;
-import javafx.application.Platform;
 import javafx.scene.paint.Color;
 
 class TrainEngine implements TrainConstants, IfaceEngine, Comparable<IfaceEngine>
@@ -91,6 +91,11 @@ private IfacePoint              prior_point;
 private Map<ShoreSlowReason,Double> saved_throttle;
 
 private SwingEventListenerList<EngineCallback> engine_listeners;
+private TrainTelemetry          engine_telemetry;
+private int                     reported_step;
+private double                  shown_speed;
+private double                  shown_rpm;
+private long                    shown_time;
 
 private static boolean use_emergency_stop = false;
 
@@ -113,6 +118,8 @@ TrainEngine(TrainFactory fac,String name,String id,Color color)
     }
    else engine_id = null;
    
+   engine_telemetry = new TrainTelemetry(TELEMETRY_SIZE);
+   
    initialize();
     
    engine_listeners = new SwingEventListenerList<>(EngineCallback.class);
@@ -133,6 +140,10 @@ private void initialize()
    engine_speed = 0;
    engine_rpm = 0;
    engine_throttle = 0;
+   reported_step = 0;
+   shown_speed = 0;
+   shown_rpm = 0;
+   shown_time = 0;
    front_light = false;
    rear_light = false;
    has_rear_light = true;
@@ -146,6 +157,7 @@ private void initialize()
    use_kmph = false;
    car_count = 0;
    saved_throttle = new HashMap<>();
+   engine_telemetry.clear();
 }
 
 
@@ -241,6 +253,12 @@ void setNoRearLight()                                   { has_rear_light = false
 
 
 @Override public double getSpeed()                      { return engine_speed; }
+@Override public long getLastTelemetryTime()            { return engine_telemetry.getLastTime(); }
+@Override public int getTelemetry(long [] times,int [] steps,double [] rpms,double [] speeds)
+{
+   return engine_telemetry.getSamples(times,steps,rpms,speeds);
+}
+
 @Override public double getThrottleMax()                { return max_speed; }
 @Override public double getSpeedMax()                   { return max_display; }
 @Override public boolean isSpeedKMPH()                  { return use_kmph; }      
@@ -532,17 +550,53 @@ boolean hasSavedThrottle(ShoreSlowReason reason)
          break;
       case RUNNING :
       case READY :
-         double v0 = (rpmstep - start_speed);
-         v0 /= (max_speed - start_speed);
-         v0 = v0 * (MAX_RPM - MIN_RPM) + MIN_RPM;
-//       v0 = rpmstep;
-         engine_rpm = v0;
+         engine_rpm = computeRpm(rpmstep);
          break;
     } 
    
    // might want to check if there is a change
    fireEngineChanged();
 }
+
+
+/**
+ *      Reports arrive several times a second for each engine.  The reported
+ *      step is only recorded; the throttle stays what was last commanded.
+ *      Listeners hear about a report only when the speed or rpm shown has
+ *      changed, and then at most every TELEMETRY_EVENT_INTERVAL.
+ **/
+
+@Override public void noteTelemetry(int speedstep,int rpmstep,int speed)
+{
+   if (speedstep >= 0) reported_step = speedstep;
+   if (speed >= 0 && !is_emergency) engine_speed = speed;
+   if (rpmstep >= 0) {
+      switch (engine_state) {
+         case RUNNING :
+         case READY :
+            engine_rpm = computeRpm(rpmstep);
+            break;
+         default :
+            break;
+       }
+    }
+   
+   long now = System.currentTimeMillis();
+   engine_telemetry.addSample(now,reported_step,engine_rpm,engine_speed);
+   
+   if (engine_speed == shown_speed && engine_rpm == shown_rpm) return;
+   if (now - shown_time < TELEMETRY_EVENT_INTERVAL) return;
+   fireEngineChanged();
+}
+
+
+private double computeRpm(int rpmstep)
+{
+   double v0 = (rpmstep - start_speed);
+   v0 /= (max_speed - start_speed);
+   v0 = v0 * (MAX_RPM - MIN_RPM) + MIN_RPM;
+   return v0;
+}
   
 
 
@@ -581,7 +635,7 @@ void enterBlock(IfaceBlock blk)
 
 public void exitBlock(IfaceBlock blk)
 {
-   Platform.runLater(() -> { train_blocks.remove(blk); });
+   ShoreControlLoop.getLoop().execute(() -> { train_blocks.remove(blk); });
 }
 
 void setCurrentPoints(IfacePoint cur,IfacePoint prior)
@@ -625,15 +679,19 @@ void setCurrentPoints(IfacePoint cur,IfacePoint prior)
 
 private void fireEngineChanged()
 {
+   // what listeners were last told, for filtering telemetry
+   shown_speed = engine_speed;
+   shown_rpm = engine_rpm;
+   shown_time = System.currentTimeMillis();
    for (EngineCallback cb : engine_listeners) {
-      Platform.runLater(() -> cb.engineChanged(this));
+      ShoreControlLoop.getLoop().execute(() -> cb.engineChanged(this));
     }
 }
 
 private void fireEnginePositionChanged()
 {
    for (EngineCallback cb : engine_listeners) {
-      Platform.runLater(() -> cb.enginePositionChanged(this));
+      ShoreControlLoop.getLoop().execute(() -> cb.enginePositionChanged(this));
     }
 }
 
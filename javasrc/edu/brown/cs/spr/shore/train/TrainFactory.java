@@ -45,8 +45,6 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.TreeSet;
 
 import org.w3c.dom.Element;
@@ -64,7 +62,9 @@ import edu.brown.cs.spr.shore.iface.IfaceSpeedZone;
 import edu.brown.cs.spr.shore.iface.IfaceSwitch;
 import edu.brown.cs.spr.shore.iface.IfaceTrains;
 import edu.brown.cs.spr.shore.iface.IfaceEngine.EngineState;
+import edu.brown.cs.spr.shore.shore.ShoreControlLoop;
 import edu.brown.cs.spr.shore.shore.ShoreLog;
+import edu.brown.cs.spr.shore.shore.ShoreTimer.TimerHandle;
 
 public class TrainFactory implements TrainConstants, IfaceTrains 
 {
@@ -83,7 +83,6 @@ private int             train_index;
 private Map<SocketAddress,TrainEngine> assigned_trains;
 private Map<IfaceBlock,TrainData> train_locations;
 private ZoneUpdater     zone_updater;
-private Timer           train_timer;
 
 private static final long EXIT_DELAY = 500;
 
@@ -104,7 +103,6 @@ public TrainFactory(IfaceModel mdl)
    train_locations = new HashMap<>();
    train_index = 0;
    zone_updater = null;
-   train_timer = null;
    
    loadTrains();
    
@@ -127,12 +125,13 @@ public TrainEngine createTrain(String name,String id)
    if (name == null) return null; 
    
    TrainEngine eng = known_trains.get(name);
-   if (eng == null && id != null) eng = known_trains.get(id);
+   if (eng == null && id != null) eng = known_trains.get(id.toUpperCase());
    if (eng == null) { 
       int idx = train_index++;
       eng = new TrainEngine(this,name,id,ENGINE_COLORS[idx]);  
       known_trains.put(name,eng); 
-      if (id != null) known_trains.put(id,eng);
+      // key by the normalized id, which is what the controllers report
+      if (eng.getEngineId() != null) known_trains.put(eng.getEngineId(),eng);
     }
    return eng;
 }
@@ -162,7 +161,9 @@ public TrainEngine setEngineSocket(IfaceEngine engine0,SocketAddress sa)
 @Override public TrainEngine findTrain(String nameorid)
 {
    if (nameorid == null) return null;
-   return known_trains.get(nameorid);
+   TrainEngine eng = known_trains.get(nameorid);
+   if (eng == null) eng = known_trains.get(nameorid.toUpperCase());
+   return eng;
 }
 
 
@@ -637,7 +638,6 @@ private void setupZoneUpdater()
    if (ctr != 0) {
       ShoreLog.logD("TRAIN","Zone updater setup");
       zone_updater = new ZoneUpdater(maxsensor);
-      if (maxsensor != 0) train_timer = new Timer("Train timer");
     }
 }
 
@@ -701,7 +701,7 @@ private final class SensorBuffer {
    private IfaceSpeedZone sensor_zone;
    private IfaceSpeedZone block_zone;
    private boolean is_done;
-   private ZoneCheckTask end_task;
+   private TimerHandle end_task;
    
    SensorBuffer(IfaceEngine eng,int max) {
       for_engine = eng;
@@ -785,7 +785,7 @@ private final class SensorBuffer {
          ShoreLog.logD("TRAIN","Start exit check for speed zone");
          is_done = true;
          ZoneCheckTask task = new ZoneCheckTask(this);
-         train_timer.schedule(task,EXIT_DELAY);
+         end_task = ShoreControlLoop.getLoop().schedule(task,EXIT_DELAY);
        }
    }
    
@@ -875,7 +875,7 @@ private final class SensorBuffer {
 }       // end of inner class SensorBuffer
 
 
-private class ZoneCheckTask extends TimerTask {
+private class ZoneCheckTask implements Runnable {
    
    private SensorBuffer for_buffer;
    
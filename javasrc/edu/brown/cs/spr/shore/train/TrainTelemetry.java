@@ -0,0 +1,160 @@
+/********************************************************************************/
+/*                                                                              */
+/*              TrainTelemetry.java                                             */
+/*                                                                              */
+/*      Fixed-size history of speed and rpm reports for an engine               */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2023 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2023, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ *  Permission to use, copy, modify, and distribute this software and its        *
+ *  documentation for any purpose other than its incorporation into a            *
+ *  commercial product is hereby granted without fee, provided that the          *
+ *  above copyright notice appear in all copies and that both that               *
+ *  copyright notice and this permission notice appear in supporting             *
+ *  documentation, and that the name of Brown University not be used in          *
+ *  advertising or publicity pertaining to distribution of the software          *
+ *  without specific, written prior permission.                                  *
+ *                                                                               *
+ *  BROWN UNIVERSITY DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS                *
+ *  SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND            *
+ *  FITNESS FOR ANY PARTICULAR PURPOSE.  IN NO EVENT SHALL BROWN UNIVERSITY      *
+ *  BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY          *
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS,              *
+ *  WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS               *
+ *  ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR PERFORMANCE          *
+ *  OF THIS SOFTWARE.                                                            *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+
+
+package edu.brown.cs.spr.shore.train;
+
+
+/**
+ *      Ring buffer of telemetry samples reported by an engine.  Samples are
+ *      kept in parallel primitive arrays so that recording a report does not
+ *      allocate; once the buffer is full the oldest samples are overwritten.
+ **/
+
+class TrainTelemetry implements TrainConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private long []         sample_time;
+private int []          sample_step;
+private double []       sample_rpm;
+private double []       sample_speed;
+private int             next_sample;
+private int             sample_count;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+TrainTelemetry(int size)
+{
+   sample_time = new long[size];
+   sample_step = new int[size];
+   sample_rpm = new double[size];
+   sample_speed = new double[size];
+   next_sample = 0;
+   sample_count = 0;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Update methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+synchronized void addSample(long when,int step,double rpm,double speed)
+{
+   sample_time[next_sample] = when;
+   sample_step[next_sample] = step;
+   sample_rpm[next_sample] = rpm;
+   sample_speed[next_sample] = speed;
+   next_sample = (next_sample + 1) % sample_time.length;
+   if (sample_count < sample_time.length) ++sample_count;
+}
+
+
+synchronized void clear()
+{
+   next_sample = 0;
+   sample_count = 0;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+synchronized int getSampleCount()               { return sample_count; }
+
+
+synchronized long getLastTime()
+{
+   if (sample_count == 0) return 0;
+   int idx = (next_sample + sample_time.length - 1) % sample_time.length;
+   return sample_time[idx];
+}
+
+
+/**
+ *      Copy the most recent samples, oldest first, into the given arrays.
+ *      Any array may be null.  Returns the number of samples copied, which
+ *      is bounded by the shortest non-null array.
+ **/
+
+synchronized int getSamples(long [] times,int [] steps,double [] rpms,double [] speeds)
+{
+   int n = sample_count;
+   if (times != null) n = Math.min(n,times.length);
+   if (steps != null) n = Math.min(n,steps.length);
+   if (rpms != null) n = Math.min(n,rpms.length);
+   if (speeds != null) n = Math.min(n,speeds.length);
+   
+   int size = sample_time.length;
+   int start = (next_sample + size - n) % size;
+   for (int i = 0; i < n; ++i) {
+      int idx = (start + i) % size;
+      if (times != null) times[i] = sample_time[idx];
+      if (steps != null) steps[i] = sample_step[idx];
+      if (rpms != null) rpms[i] = sample_rpm[idx];
+      if (speeds != null) speeds[i] = sample_speed[idx];
+    }
+   
+   return n;
+}
+
+
+
+}       // end of class TrainTelemetry
+
+
+
+
+/* end of TrainTelemetry.java */
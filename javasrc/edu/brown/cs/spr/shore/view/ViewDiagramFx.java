@@ -53,6 +53,7 @@ import edu.brown.cs.spr.shore.iface.IfaceSignal;
 import edu.brown.cs.spr.shore.iface.IfaceSwitch;
 import edu.brown.cs.spr.shore.iface.IfaceTrains;
 import edu.brown.cs.spr.shore.iface.IfaceModel.ModelCallback;
+import edu.brown.cs.spr.shore.shore.ShoreControlLoop;
 import edu.brown.cs.spr.shore.shore.ShoreLog;
 import javafx.application.Platform;
 import javafx.beans.value.ChangeListener;
@@ -205,7 +206,7 @@ ViewDiagramFx(ViewFactory fac,IfaceDiagram dgm,IfaceTrains trains)
    engine_map = new HashMap<>();
    
    CallbackHandler hdlr = new CallbackHandler();
-   fac.getLayoutModel().addModelCallback(hdlr);
+   fac.getLayoutModel().addModelCallback(new ViewFxAdapter(hdlr));
 }
 
 
@@ -600,7 +601,9 @@ private class SwitchHandler implements EventHandler<MouseEvent> {
                break;
           }
          if (nss != ShoreSwitchState.UNKNOWN) {
-            view_factory.getSafetyModel().setSwitch(for_switch, nss);
+            ShoreSwitchState set = nss;
+            ShoreControlLoop.getLoop().execute(() ->
+               view_factory.getSafetyModel().setSwitch(for_switch,set));
           }
        }
     }
@@ -681,10 +684,12 @@ private void setAllSignals(ShoreSignalState state)
 {
    ShoreLog.logD("VIEW", "Set all signals " + state);
    
-   for (IfaceSignal sig : for_diagram.getSignals()) {
-      if (sig.isUnused()) continue;
-      view_factory.getSafetyModel().setSignal(sig, state);
-    }
+   ShoreControlLoop.getLoop().execute(() -> {
+      for (IfaceSignal sig : for_diagram.getSignals()) {
+         if (sig.isUnused()) continue;
+         view_factory.getSafetyModel().setSignal(sig,state);
+       }
+    });
 }
 
 
@@ -791,7 +796,9 @@ private class SignalHandler implements EventHandler<MouseEvent> {
                 }
                break;
           }
-         view_factory.getSafetyModel().setSignal(for_signal, next);
+         ShoreSignalState set = next;
+         ShoreControlLoop.getLoop().execute(() ->
+            view_factory.getSafetyModel().setSignal(for_signal,set));
        }
     }
    
@@ -887,7 +894,9 @@ private class SensorHandler implements EventHandler<MouseEvent> {
                next = ShoreSensorState.OFF;
                break;
           }
-         view_factory.getSafetyModel().setSensor(for_sensor, next);
+         ShoreSensorState set = next;
+         ShoreControlLoop.getLoop().execute(() ->
+            view_factory.getSafetyModel().setSensor(for_sensor,set));
        }
     }
    
@@ -929,7 +938,7 @@ private class EngineDrawData implements IfaceEngine.EngineCallback {
       engine_shape.setStrokeWidth(1);
       engine_shape.setStrokeType(StrokeType.CENTERED);
       doSetEngine();
-      for_engine.addEngineCallback(this);
+      for_engine.addEngineCallback(new ViewFxAdapter(this));
     }
    
    Shape getShape() {
@@ -227,7 +227,7 @@ ViewEngineerFx(ViewFactory fac,IfaceEngine engine)
    setOnKeyReleased(chh);
    
    CallbackHandler hdlr = new CallbackHandler();
-   for_engine.addEngineCallback(hdlr);
+   for_engine.addEngineCallback(new ViewFxAdapter(hdlr));
    doEngineChanged();
 }
 
@@ -0,0 +1,166 @@
+/********************************************************************************/
+/*                                                                              */
+/*              ViewFxAdapter.java                                              */
+/*                                                                              */
+/*      Forward model and engine callbacks onto the JavaFX thread               */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2023 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2023, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ *  Permission to use, copy, modify, and distribute this software and its        *
+ *  documentation for any purpose other than its incorporation into a            *
+ *  commercial product is hereby granted without fee, provided that the          *
+ *  above copyright notice appear in all copies and that both that               *
+ *  copyright notice and this permission notice appear in supporting             *
+ *  documentation, and that the name of Brown University not be used in          *
+ *  advertising or publicity pertaining to distribution of the software          *
+ *  without specific, written prior permission.                                  *
+ *                                                                               *
+ *  BROWN UNIVERSITY DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS                *
+ *  SOFTWARE, INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND            *
+ *  FITNESS FOR ANY PARTICULAR PURPOSE.  IN NO EVENT SHALL BROWN UNIVERSITY      *
+ *  BE LIABLE FOR ANY SPECIAL, INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY          *
+ *  DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS,              *
+ *  WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS               *
+ *  ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR PERFORMANCE          *
+ *  OF THIS SOFTWARE.                                                            *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+
+
+package edu.brown.cs.spr.shore.view;
+
+import edu.brown.cs.spr.shore.iface.IfaceBlock;
+import edu.brown.cs.spr.shore.iface.IfaceEngine;
+import edu.brown.cs.spr.shore.iface.IfaceEngine.EngineCallback;
+import edu.brown.cs.spr.shore.iface.IfaceModel.ModelCallback;
+import edu.brown.cs.spr.shore.iface.IfaceSensor;
+import edu.brown.cs.spr.shore.iface.IfaceSignal;
+import edu.brown.cs.spr.shore.iface.IfaceSwitch;
+import javafx.application.Platform;
+
+/**
+ *      Model and engine callbacks are made on the control thread.  Views
+ *      register through this adapter so their handlers run on the FX 
+ *      thread instead, without holding up the safety and train logic.
+ **/
+
+final class ViewFxAdapter implements ViewConstants, ModelCallback, EngineCallback
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private ModelCallback   model_callback;
+private EngineCallback  engine_callback;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+ViewFxAdapter(ModelCallback cb)
+{
+   model_callback = cb;
+   engine_callback = null;
+}
+
+
+ViewFxAdapter(EngineCallback cb)
+{
+   model_callback = null;
+   engine_callback = cb;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Model callbacks                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+@Override public void preSensorChanged(IfaceSensor sensor)
+{
+   if (model_callback != null) {
+      Platform.runLater(() -> model_callback.preSensorChanged(sensor));
+    }
+}
+
+
+@Override public void sensorChanged(IfaceSensor sensor)
+{
+   if (model_callback != null) {
+      Platform.runLater(() -> model_callback.sensorChanged(sensor));
+    }
+}
+
+
+@Override public void switchChanged(IfaceSwitch sw)
+{
+   if (model_callback != null) {
+      Platform.runLater(() -> model_callback.switchChanged(sw));
+    }
+}
+
+
+@Override public void signalChanged(IfaceSignal sig)
+{
+   if (model_callback != null) {
+      Platform.runLater(() -> model_callback.signalChanged(sig));
+    }
+}
+
+
+@Override public void blockChanged(IfaceBlock blk)
+{
+   if (model_callback != null) {
+      Platform.runLater(() -> model_callback.blockChanged(blk));
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Engine callbacks                                                        */
+/*                                                                              */
+/********************************************************************************/
+
+@Override public void engineChanged(IfaceEngine engine)
+{
+   if (engine_callback != null) {
+      Platform.runLater(() -> engine_callback.engineChanged(engine));
+    }
+}
+
+
+@Override public void enginePositionChanged(IfaceEngine engine)
+{
+   if (engine_callback != null) {
+      Platform.runLater(() -> engine_callback.enginePositionChanged(engine));
+    }
+}
+
+
+
+}       // end of class ViewFxAdapter
+
+
+
+
+/* end of ViewFxAdapter.java */
@@ -146,7 +146,7 @@ ViewPlannerFx(ViewFactory vf)
    getChildren().addAll(train_planner,spacer,control_box);
    
    
-   EngineChanged cb = new EngineChanged();
+   ViewFxAdapter cb = new ViewFxAdapter(new EngineChanged());
    for (IfaceEngine eng : vf.getTrainModel().getAllEngines()) {
       eng.addEngineCallback(cb);
     }
@@ -890,6 +890,8 @@ private final class ControlBox extends VBox {
       b3.setOnAction(new ClearSwitchStates());
       Button b4 = new Button("Clear Blocks");
       b4.setOnAction(new ClearBlocks());
+      Button b5 = new Button("Stop All Engines");
+      b5.setOnAction(new StopAllEngines());
       pause_button = new Button("Pause Vision Recording");
       pause_button.setDisable(true);
       pause_button.setOnAction(new PauseRecording());
@@ -898,7 +900,7 @@ private final class ControlBox extends VBox {
       sensor_button.setOnAction(new VirtualSensor());
       record_button = new Button("Start Vision Recording");
       record_button.setOnAction(new RecordState());
-      getChildren().addAll(b1,b2,b3,b4,record_button,pause_button,sensor_button);
+      getChildren().addAll(b5,b1,b2,b3,b4,record_button,pause_button,sensor_button);
      
       setSpacing(15.0);
       BackgroundFill fill = new BackgroundFill(Color.LIGHTYELLOW,CornerRadii.EMPTY,
@@ -960,6 +962,24 @@ private class ClearBlocks implements EventHandler<ActionEvent> {
 }       // end of inner class SignalSetter
 
 
+private class StopAllEngines implements EventHandler<ActionEvent> {
+   
+   StopAllEngines() { }
+   
+   @Override public void handle(ActionEvent evt) {
+      Button bx = (Button) evt.getSource();
+      network_model.stopAllEngines().thenAccept((rpt) -> {
+         String txt = "Stop All Engines";
+         int ct = rpt.getUnconfirmedEngines().size();
+         if (ct > 0) txt += " (" + ct + " unconfirmed)";
+         String ftxt = txt;
+         Platform.runLater(() -> bx.setText(ftxt));
+       });
+    }
+   
+}       // end of inner class StopAllEngines
+
+
 private class RecordState implements EventHandler<ActionEvent> {
    
    RecordState() { }